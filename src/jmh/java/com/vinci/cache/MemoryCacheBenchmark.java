@@ -0,0 +1,157 @@
+package com.vinci.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Get throughput of the memory cache as the number of reading threads grows, against a
+ * LinkedHashMap guarded by a single monitor (the way LruBucket used to work). The readWrite group
+ * models UI-thread style readers racing a loader thread inserting results.
+ *
+ * Run with {@code gradle jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MemoryCacheBenchmark {
+    private static final int ENTRIES = 4096;
+    private static final int KEYS = ENTRIES * 2;
+    private static final int KEY_MASK = KEYS - 1;
+
+    @Param({ "lru", "wtinylfu", "locked" })
+    public String mImplementation;
+
+    private Cache mCache;
+    private Integer[] mKeys;
+
+    @Setup
+    public void setUp() {
+        if ("locked".equals(mImplementation)) {
+            mCache = new LockedCache();
+        } else {
+            final EvictionPolicy<Integer> policy = "lru".equals(mImplementation)
+                    ? new LruPolicy<Integer>()
+                    : new WTinyLfuPolicy<Integer>();
+            mCache = new ConcurrentCache(policy);
+        }
+
+        // Half of the keys are resident; a skewed key stream gives a realistic hit rate
+        mKeys = new Integer[KEYS];
+        final Random random = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            mKeys[i] = (int) Math.abs(random.nextGaussian() * ENTRIES / 2);
+        }
+        for (int i = 0; i < ENTRIES; i++) {
+            mCache.put(i);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int mIndex = new Random().nextInt(KEYS);
+
+        private int next() {
+            mIndex = (mIndex + 1) & KEY_MASK;
+            return mIndex;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object get_1(Cursor cursor) {
+        return mCache.get(mKeys[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Object get_2(Cursor cursor) {
+        return mCache.get(mKeys[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object get_4(Cursor cursor) {
+        return mCache.get(mKeys[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object get_8(Cursor cursor) {
+        return mCache.get(mKeys[cursor.next()]);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(6)
+    public Object readWrite_get(Cursor cursor) {
+        return mCache.get(mKeys[cursor.next()]);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(2)
+    public void readWrite_put(Cursor cursor) {
+        mCache.put(mKeys[cursor.next()]);
+    }
+
+    private interface Cache {
+        Object get(Integer key);
+        void put(Integer key);
+    }
+
+    private static final class ConcurrentCache implements Cache {
+        private final MemoryCache<Integer, Integer> mCache;
+
+        private ConcurrentCache(EvictionPolicy<Integer> policy) {
+            mCache = new MemoryCache<Integer, Integer>(ENTRIES, Weighers.<Integer>singleton(), policy, null);
+        }
+
+        @Override
+        public Object get(Integer key) {
+            return mCache.get(key);
+        }
+
+        @Override
+        public void put(Integer key) {
+            mCache.put(key, key);
+        }
+    }
+
+    private static final class LockedCache implements Cache {
+        private final LinkedHashMap<Integer, Integer> mMap = new LinkedHashMap<Integer, Integer>(ENTRIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(java.util.Map.Entry<Integer, Integer> eldest) {
+                return size() > ENTRIES;
+            }
+        };
+
+        @Override
+        public synchronized Object get(Integer key) {
+            return mMap.get(key);
+        }
+
+        @Override
+        public synchronized void put(Integer key) {
+            mMap.put(key, key);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.vinci.disk;
+
+import com.vinci.util.FileUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read and write throughput of the file-per-entry {@link JournaledDiskCache} against the packed
+ * {@link BlobStoreDiskCache}, with thumbnail-sized entries. Reads copy the entry into a reused
+ * array the way LruBucket's decoder does.
+ *
+ * Run with {@code gradle jmh}. Numbers from a desktop's page cache flatter both; run on a device
+ * for eMMC figures.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiskCacheBenchmark {
+    private static final int ENTRIES = 2048;
+    private static final int ENTRY_SIZE = 12 * 1024;
+    private static final long MAX_SIZE = 2L * ENTRIES * ENTRY_SIZE;
+
+    @Param({ "file", "blob" })
+    public String mImplementation;
+
+    private File mDirectory;
+    private DiskCache mCache;
+    private String[] mKeys;
+    private byte[] mData;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = new File(System.getProperty("java.io.tmpdir"), "vinci-disk-benchmark-" + mImplementation);
+        FileUtil.deleteDirectory(mDirectory);
+        mCache = "file".equals(mImplementation)
+                ? JournaledDiskCache.open(mDirectory, MAX_SIZE)
+                : BlobStoreDiskCache.open(mDirectory, MAX_SIZE);
+
+        mData = new byte[ENTRY_SIZE];
+        new Random(42).nextBytes(mData);
+        mKeys = new String[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            mKeys[i] = i + ".jpg";
+            write(mKeys[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mCache.close();
+        FileUtil.deleteDirectory(mDirectory);
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        private final byte[] mBuffer = new byte[ENTRY_SIZE];
+        private final Random mRandom = new Random();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int read_1(Reader reader) throws IOException {
+        return read(reader);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int read_4(Reader reader) throws IOException {
+        return read(reader);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void write_1(Reader reader) throws IOException {
+        write(mKeys[reader.mRandom.nextInt(ENTRIES)]);
+    }
+
+    private int read(Reader reader) throws IOException {
+        final DiskCache.Snapshot snapshot = mCache.get(mKeys[reader.mRandom.nextInt(ENTRIES)]);
+        if (snapshot == null) {
+            return 0;
+        }
+
+        try {
+            final int length = (int) snapshot.getLength();
+            snapshot.getBuffer().get(reader.mBuffer, 0, length);
+            return length;
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private void write(String key) throws IOException {
+        final DiskCache.Editor editor = mCache.edit(key);
+        if (editor == null) {
+            return;
+        }
+
+        final OutputStream os = editor.newOutputStream();
+        os.write(mData);
+        editor.commit();
+    }
+}
@@ -0,0 +1,160 @@
+package com.vinci.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acquire/release throughput of the pool as the number of contending threads grows, against a
+ * pool guarded by a single monitor. The acquireRelease benchmarks have a resource for every
+ * thread; the oversubscribed one has eight threads sharing two, so threads regularly park and
+ * steal from each other's magazines.
+ *
+ * Run with {@code gradle jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AbstractBlockingPoolBenchmark {
+    private static final int MAX_THREADS = 8;
+    private static final int OVERSUBSCRIBED_SIZE = 2;
+
+    @Param({ "pool", "locked" })
+    public String mImplementation;
+
+    private Pool<Object> mPool;
+    private Pool<Object> mOversubscribedPool;
+
+    @Setup
+    public void setUp() {
+        mPool = newPool(MAX_THREADS);
+        mOversubscribedPool = newPool(OVERSUBSCRIBED_SIZE);
+    }
+
+    private Pool<Object> newPool(int capacity) {
+        if ("locked".equals(mImplementation)) {
+            return new LockedPool(capacity);
+        }
+
+        return new AbstractBlockingPool<Object>(capacity) {
+            @Override
+            protected Object produce() {
+                return new Object();
+            }
+        };
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void acquireRelease_1() {
+        mPool.release(mPool.acquire());
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void acquireRelease_2() {
+        mPool.release(mPool.acquire());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void acquireRelease_4() {
+        mPool.release(mPool.acquire());
+    }
+
+    @Benchmark
+    @Threads(MAX_THREADS)
+    public void acquireRelease_8() {
+        mPool.release(mPool.acquire());
+    }
+
+    @Benchmark
+    @Threads(MAX_THREADS)
+    public void oversubscribed_8() {
+        mOversubscribedPool.release(mOversubscribedPool.acquire());
+    }
+
+    /**
+     * Baseline - a pool guarded by a single monitor.
+     */
+    private static final class LockedPool implements Pool<Object> {
+        private final LinkedList<Object> mAvailable = new LinkedList<Object>();
+        private final int mCapacity;
+        private int mCreated = 0;
+
+        private LockedPool(int capacity) {
+            mCapacity = capacity;
+        }
+
+        @Override
+        public synchronized Object acquire() {
+            while (mAvailable.isEmpty() && mCreated >= mCapacity) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            return take();
+        }
+
+        @Override
+        public synchronized Object tryAcquire(long timeout, TimeUnit unit) {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (mAvailable.isEmpty() && mCreated >= mCapacity) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            return take();
+        }
+
+        @Override
+        public synchronized void release(Object resource) {
+            mAvailable.addFirst(resource);
+            notify();
+        }
+
+        @Override
+        public synchronized void drain() {
+            mCreated -= mAvailable.size();
+            mAvailable.clear();
+        }
+
+        /**
+         * Called with the monitor held.
+         */
+        private Object take() {
+            if (mAvailable.isEmpty()) {
+                mCreated++;
+                return new Object();
+            }
+
+            return mAvailable.removeFirst();
+        }
+    }
+}
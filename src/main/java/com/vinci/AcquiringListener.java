@@ -0,0 +1,12 @@
+package com.vinci;
+
+import android.graphics.drawable.Drawable;
+
+/**
+ * A listener that {@link com.vinci.util.PooledBitmapDrawable#acquire(Drawable) acquires} its own
+ * reference on any drawable it keeps past {@link #onLoaded}. Buckets hand every other listener a
+ * reference of its own along with the drawable, which keeps the bitmap out of the pool for good
+ * unless the listener releases it.
+ */
+public interface AcquiringListener extends BucketListener {
+}
@@ -2,12 +2,53 @@ package com.vinci;
 
 import android.graphics.drawable.Drawable;
 
+import java.util.concurrent.Executor;
+
 /**
  * Created by austinh on 4/7/14.
  */
 public interface Bucket {
+    /**
+     * @return the image if it's in memory. Its bitmap may be pooled and reused once it's evicted,
+     *         so it comes with a reference: the listener's, or without a listener the caller's,
+     *         which the caller must {@link com.vinci.util.PooledBitmapDrawable#release(Drawable)
+     *         release} once done with the image.
+     */
     Drawable get(String path, int width, int height, BucketListener listener);
     Drawable precache(String path, int width, int height);
     Drawable prefetch(String path, int width, int height);
+
+    /**
+     * Requests an image for a caller that isn't a view. The request completes on the loader
+     * thread, without waiting on the main thread, and its listeners run on the given executor.
+     *
+     * @param executor eg. {@link ImageRequest#DIRECT}, or a main thread executor for UI work
+     */
+    ImageRequest submit(String path, int width, int height, Executor executor);
+
+    /**
+     * Stops listening for a request, eg. when its view is recycled. The load itself is cancelled
+     * once nobody else is waiting for it.
+     */
+    void cancel(String path, int width, int height, BucketListener listener);
+
+    /**
+     * Holds back loads, eg. while a list is flung - see {@link PauseOnScrollListener}. Images in
+     * memory are still returned straight away; anything else waits for {@link #resume()}, which
+     * loads only the requests that haven't been cancelled in the meantime.
+     */
+    void pause();
+    void resume();
+
+    /**
+     * Gives memory back, eg. from {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     * The memory cache shrinks to a fraction of its budget that falls as the level rises, down to
+     * nothing once the app is about to be killed, and idle pooled bitmaps and buffers go too.
+     *
+     * @param level one of the {@code ComponentCallbacks2.TRIM_MEMORY_} levels
+     * @return the bytes let go of. Bitmaps still drawn by a view are freed once the view lets
+     *         go of them too.
+     */
+    long trimMemory(int level);
     void destroy();
 }
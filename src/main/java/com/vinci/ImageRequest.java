@@ -0,0 +1,221 @@
+package com.vinci;
+
+import android.graphics.drawable.Drawable;
+import com.vinci.util.PooledBitmapDrawable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A pending image, for callers that aren't views - eg. a notification renderer that can wait a
+ * moment for a thumbnail. Buckets complete it on the thread that finished the load rather than
+ * posting to the main thread, and its listeners run on the executor it was submitted with;
+ * {@link #DIRECT} runs them right there on the loader thread, so keep them short.
+ *
+ * Cancelling it stops listening, and cancels the load itself if nobody else wants it. A loaded
+ * request holds a reference on its drawable; {@link #release()} it once done with the image so
+ * its bitmap can be reused.
+ */
+public class ImageRequest implements Future<Drawable>, AcquiringListener {
+    /**
+     * Runs listeners on whichever thread completed the request.
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Bucket mBucket;
+    private final String mPath;
+    private final int mWidth;
+    private final int mHeight;
+    private final Executor mExecutor;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final List<BucketListener> mListeners = new ArrayList<BucketListener>(1);
+    private State mState = State.PENDING;
+    private Drawable mDrawable;
+    private boolean mReleased = false;
+
+    public ImageRequest(Bucket bucket, String path, int width, int height, Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Invalid executor.");
+        }
+
+        mBucket = bucket;
+        mPath = path;
+        mWidth = width;
+        mHeight = height;
+        mExecutor = executor;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Calls the listener on the request's executor once it completes, or straight away if it
+     * already has. Failed and cancelled requests call {@link BucketListener#onFailure}.
+     */
+    public ImageRequest addListener(BucketListener listener) {
+        synchronized (this) {
+            if (mState == State.PENDING) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+
+        notify(listener);
+        return this;
+    }
+
+    @Override
+    public void onLoaded(String path, Drawable drawable, int width, int height) {
+        // Keep the image until the caller releases it
+        if (!PooledBitmapDrawable.acquire(drawable)) {
+            complete(State.FAILED, null);
+        } else if (!complete(State.LOADED, drawable)) {
+            PooledBitmapDrawable.release(drawable);
+        }
+    }
+
+    /**
+     * Gives up the request's hold on its image, so its bitmap may be reused. The drawable
+     * mustn't be drawn afterwards.
+     */
+    public void release() {
+        final Drawable drawable;
+        synchronized (this) {
+            if (mState != State.LOADED || mReleased) {
+                return;
+            }
+
+            mReleased = true;
+            drawable = mDrawable;
+        }
+
+        PooledBitmapDrawable.release(drawable);
+    }
+
+    @Override
+    public void onFailure(String path, int width, int height) {
+        complete(State.FAILED, null);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(State.CANCELLED, null)) {
+            return false;
+        }
+
+        mBucket.cancel(mPath, mWidth, mHeight, this);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == State.CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != State.PENDING;
+    }
+
+    @Override
+    public Drawable get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    /**
+     * Waits at most the given time. Timing out leaves the request running; cancel it if the
+     * image is no longer wanted.
+     */
+    @Override
+    public Drawable get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException("Timed out loading " + mPath);
+        }
+
+        return getResult();
+    }
+
+    private synchronized Drawable getResult() throws ExecutionException {
+        switch (mState) {
+            case LOADED:
+                return mDrawable;
+            case CANCELLED:
+                throw new CancellationException();
+            case FAILED:
+            default:
+                throw new ExecutionException(new IOException("Unable to load " + mPath));
+        }
+    }
+
+    /**
+     * @return false if the request had already completed
+     */
+    private boolean complete(State state, Drawable drawable) {
+        final List<BucketListener> listeners;
+        synchronized (this) {
+            if (mState != State.PENDING) {
+                return false;
+            }
+
+            mState = state;
+            mDrawable = drawable;
+            listeners = new ArrayList<BucketListener>(mListeners);
+            mListeners.clear();
+        }
+
+        mDone.countDown();
+        for (int i = 0; i < listeners.size(); i++) {
+            notify(listeners.get(i));
+        }
+
+        return true;
+    }
+
+    private void notify(final BucketListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Drawable drawable;
+                synchronized (ImageRequest.this) {
+                    drawable = mDrawable;
+                }
+
+                if (drawable != null) {
+                    listener.onLoaded(mPath, drawable, mWidth, mHeight);
+                } else {
+                    listener.onFailure(mPath, mWidth, mHeight);
+                }
+            }
+        });
+    }
+
+    private enum State {
+        PENDING,
+        LOADED,
+        FAILED,
+        CANCELLED
+    }
+}
@@ -2,7 +2,9 @@ package com.vinci;
 
 import android.graphics.drawable.Drawable;
 import android.widget.ImageView;
+import com.vinci.canvas.CanvasRequest;
 import com.vinci.canvas.MutableCanvas;
+import com.vinci.canvas.TargetSizes;
 
 /**
  * Created by austinh on 4/7/14.
@@ -10,7 +12,9 @@ import com.vinci.canvas.MutableCanvas;
 public class Palette {
     private final Object mLock = new Object();
     private Drawable mStub;
-    private Canvas mCanvas;
+    private MutableCanvas mCanvas;
+    private Bucket mBucket;
+    private TargetSizes mSizes = TargetSizes.DEFAULT;
 
     public Palette into(ImageView imageView) {
         initCanvas(MutableCanvas.CanvasType.ImageView, imageView);
@@ -24,6 +28,72 @@ public class Palette {
         return this;
     }
 
+    public Palette from(Bucket bucket) {
+        mBucket = bucket;
+        return this;
+    }
+
+    /**
+     * The sizes {@link #load(String)} snaps views to. Defaults to {@link TargetSizes#DEFAULT}.
+     */
+    public Palette sizes(TargetSizes sizes) {
+        mSizes = sizes;
+        return this;
+    }
+
+    /**
+     * Loads the image at the size the view is drawn at, snapped to one of the palette's
+     * {@link #sizes(TargetSizes) sizes}. Waits for the view to be measured if it hasn't been.
+     */
+    public Palette load(String path) {
+        checkCanLoad();
+
+        final Object view = mCanvas.getCanvas();
+        if (view == null) {
+            return this;
+        }
+
+        final CanvasRequest request = CanvasRequest.bind(view, mCanvas, mBucket, path, mSizes);
+        if (request != null) {
+            request.start();
+        }
+
+        return this;
+    }
+
+    /**
+     * Loads the image into the canvas. Whatever the canvas was loading before is let go of, and
+     * cancelled if nothing else wants it, so binding a recycled row to a new image is enough.
+     */
+    public Palette load(String path, int width, int height) {
+        checkCanLoad();
+
+        final Object view = mCanvas.getCanvas();
+        if (view == null) {
+            return this;
+        }
+
+        final CanvasRequest request = CanvasRequest.bind(view, mCanvas, mBucket, path, width, height);
+        if (request != null) {
+            request.start();
+        }
+
+        return this;
+    }
+
+    /**
+     * Stops loading into the view, eg. when its row is recycled.
+     */
+    public static void cancel(ImageView imageView) {
+        CanvasRequest.unbind(imageView);
+    }
+
+    private void checkCanLoad() {
+        if (mBucket == null || mCanvas == null) {
+            throw new IllegalStateException("Palette needs a bucket and a canvas to load into.");
+        }
+    }
+
     private void applyStub() {
         if (mStub != null && mCanvas != null) {
             mCanvas.setDrawable(mStub);
@@ -34,7 +104,9 @@ public class Palette {
         if (mCanvas == null) {
             synchronized (mLock) {
                 if (mCanvas == null) {
-                    mCanvas = new MutableCanvas(canvasType, canvas);
+                    // Every palette for the view draws into the same canvas, so it knows what's on screen
+                    final MutableCanvas existing = CanvasRequest.getCanvas(canvas);
+                    mCanvas = existing != null ? existing : new MutableCanvas(canvasType, canvas);
                 }
             }
         }
@@ -0,0 +1,66 @@
+package com.vinci;
+
+import android.widget.AbsListView;
+
+/**
+ * Pauses a bucket while a list is flung, so rows that are only on screen for a few frames don't
+ * start downloads and decodes, and resumes it once the list settles. Images already in memory
+ * still show straight away.
+ *
+ * Attach with {@link AbsListView#setOnScrollListener}, passing on any listener the list already
+ * had.
+ */
+public class PauseOnScrollListener implements AbsListView.OnScrollListener {
+    private final Bucket mBucket;
+    private final boolean mPauseOnTouchScroll;
+    private final AbsListView.OnScrollListener mListener;
+
+    public PauseOnScrollListener(Bucket bucket) {
+        this(bucket, false, null);
+    }
+
+    /**
+     * @param pauseOnTouchScroll also pause while the list is dragged, not just while it's flung
+     * @param listener called for every scroll event too, or null
+     */
+    public PauseOnScrollListener(Bucket bucket, boolean pauseOnTouchScroll, AbsListView.OnScrollListener listener) {
+        if (bucket == null) {
+            throw new IllegalArgumentException("Invalid bucket.");
+        }
+
+        mBucket = bucket;
+        mPauseOnTouchScroll = pauseOnTouchScroll;
+        mListener = listener;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        switch (scrollState) {
+            case SCROLL_STATE_FLING:
+                mBucket.pause();
+                break;
+            case SCROLL_STATE_TOUCH_SCROLL:
+                if (mPauseOnTouchScroll) {
+                    mBucket.pause();
+                } else {
+                    mBucket.resume();
+                }
+                break;
+            case SCROLL_STATE_IDLE:
+            default:
+                mBucket.resume();
+                break;
+        }
+
+        if (mListener != null) {
+            mListener.onScrollStateChanged(view, scrollState);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (mListener != null) {
+            mListener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+    }
+}
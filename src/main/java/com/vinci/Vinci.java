@@ -2,7 +2,13 @@ package com.vinci;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import com.vinci.bucket.BucketEngine;
 import com.vinci.bucket.LruBucket;
+import com.vinci.cache.EvictionPolicy;
+import com.vinci.cache.LruPolicy;
+import com.vinci.cache.Weighers;
+import com.vinci.disk.DiskCache;
+import com.vinci.util.BitmapPool;
 
 /**
  * Created by austinh on 4/7/14.
@@ -11,4 +17,65 @@ public class Vinci {
     public static Bucket createBucket(Context context, String cachePath, int width, int height, int capacity) {
         return new LruBucket(context, cachePath, capacity, width, height, Bitmap.Config.RGB_565);
     }
+
+    public static Bucket createBucket(Context context, String cachePath, int capacity, BitmapPool bitmapPool) {
+        return new LruBucket(context, cachePath, capacity, Bitmap.Config.RGB_565, bitmapPool);
+    }
+
+    /**
+     * Creates a bucket whose memory cache is bounded by the byte size of its bitmaps rather than
+     * by entry count. See {@link #getHeapBudget(float)}.
+     */
+    public static Bucket createBucket(Context context, String cachePath, long maxBytes) {
+        return new LruBucket(context, cachePath, maxBytes, Weighers.bitmapBytes(), Bitmap.Config.RGB_565,
+                new BitmapPool(maxBytes / 4));
+    }
+
+    /**
+     * Creates a byte-budgeted bucket with a custom memory eviction policy.
+     */
+    public static Bucket createBucket(Context context, String cachePath, long maxBytes, EvictionPolicy<Object> policy) {
+        return new LruBucket(context, cachePath, maxBytes, Weighers.bitmapBytes(), policy, Bitmap.Config.RGB_565,
+                new BitmapPool(maxBytes / 4));
+    }
+
+    /**
+     * Creates a byte-budgeted bucket on top of the given disk cache, eg. a
+     * {@link com.vinci.disk.BlobStoreDiskCache} to pack thumbnails into a few large files.
+     */
+    public static Bucket createBucket(Context context, DiskCache diskCache, long maxBytes) {
+        return new LruBucket(context, diskCache, maxBytes, Weighers.bitmapBytes(), new LruPolicy<Object>(),
+                Bitmap.Config.RGB_565, new BitmapPool(maxBytes / 4));
+    }
+
+    /**
+     * Creates the threads, pools and memory budget for buckets to share, so several buckets cost
+     * one set of loader threads and one byte budget. See {@link #getHeapBudget(float)}.
+     */
+    public static BucketEngine createEngine(long maxBytes) {
+        return new BucketEngine(maxBytes);
+    }
+
+    /**
+     * Creates a bucket on a shared engine. Its memory cache is guaranteed shares / total shares
+     * of the engine's budget, and borrows from colder buckets past that.
+     */
+    public static Bucket createBucket(Context context, BucketEngine engine, String cachePath, int shares) {
+        return new LruBucket(context, cachePath, engine, shares, Bitmap.Config.RGB_565);
+    }
+
+    /**
+     * @return the given fraction of the maximum heap size, in bytes
+     */
+    public static long getHeapBudget(float fraction) {
+        if (fraction <= 0 || fraction > 1) {
+            throw new IllegalArgumentException("Invalid heap fraction.");
+        }
+
+        return (long) (Runtime.getRuntime().maxMemory() * fraction);
+    }
+
+    public static BitmapPool createBitmapPool(long maxBytes) {
+        return new BitmapPool(maxBytes);
+    }
 }
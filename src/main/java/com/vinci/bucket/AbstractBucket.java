@@ -1,22 +1,35 @@
 package com.vinci.bucket;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import com.vinci.AcquiringListener;
 import com.vinci.Bucket;
 import com.vinci.BucketListener;
+import com.vinci.ImageRequest;
+import com.vinci.cache.NegativeCache;
+import com.vinci.disk.DiskCache;
+import com.vinci.disk.JournaledDiskCache;
+import com.vinci.scheduler.Priority;
+import com.vinci.scheduler.RequestScheduler;
+import com.vinci.util.PooledBitmapDrawable;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -25,78 +38,292 @@ import java.util.concurrent.TimeUnit;
 public abstract class AbstractBucket implements Bucket, BucketListener {
     private final static String TAG = AbstractBucket.class.getSimpleName();
     private final static int DEFAULT_POOL_SIZE = 1;
-    private final static int NO_SIZE = -1;
+    private final static int DISK_POOL_SIZE = 2;
+    private final static int DECODE_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    private final static int DEFAULT_MAX_QUEUED = 128;
+    private final static int MAX_RECYCLED = 32;
+    private final static long PRECACHE_TIMEOUT_MS = 10 * 1000;
+    private final static long PREFETCH_TIMEOUT_MS = 30 * 1000;
+    /* package */ final static long DEFAULT_DISK_CACHE_SIZE = 50 * 1024 * 1024;
 
-    private final String mCachePath;
-    private final Handler mMainHandler;
-    private final ExecutorService mExecutorService;
-    private final Set<Runnable> mLoaders = new HashSet<Runnable>();
-    private final LoaderRunnable mLoaderKey = new LoaderRunnable();
-    private final Map<String, Set<BucketListener>> mListenerMap = new HashMap<String, Set<BucketListener>>();
+    private final DiskCache mDiskCache;
+    private final BucketEngine mEngine;
+    private final boolean mOwnsEngine;
+    private final NotifyDispatcher mNotifyDispatcher;
+    private final RequestScheduler mNetworkScheduler;
+    private final RequestScheduler mDiskScheduler;
+    private final RequestScheduler mDecodeScheduler;
+    private final Prefetcher mPrefetcher;
+    private final NegativeCache mNegativeCache = new NegativeCache();
+    private final Map<RequestKey, LoaderRunnable> mLoaders = new HashMap<RequestKey, LoaderRunnable>();
+    private final Map<RequestKey, Priority> mParked = new LinkedHashMap<RequestKey, Priority>();
+    private final ArrayDeque<LoaderRunnable> mRecycledLoaders = new ArrayDeque<LoaderRunnable>();
+    private final Map<String, DownloadJob> mDownloads = new HashMap<String, DownloadJob>();
+    private final RequestKey mLoaderKey = new RequestKey();
+    private final Map<RequestKey, List<BucketListener>> mListenerMap = new HashMap<RequestKey, List<BucketListener>>();
+    private final ArrayDeque<List<BucketListener>> mRecycledListeners = new ArrayDeque<List<BucketListener>>();
+    private final ArrayDeque<NotifyRunnable> mRecycledNotifies = new ArrayDeque<NotifyRunnable>();
+    private boolean mPaused = false;
 
     protected AbstractBucket(String cachePath) {
         this(cachePath, DEFAULT_POOL_SIZE);
     }
 
     protected AbstractBucket(String cachePath, int threadPoolSize) {
-        this(cachePath, threadPoolSize, new Handler(Looper.getMainLooper()));
+        this(cachePath, threadPoolSize, DEFAULT_DISK_CACHE_SIZE);
+    }
+
+    protected AbstractBucket(String cachePath, int threadPoolSize, long maxDiskCacheSize) {
+        this(openDiskCache(cachePath, maxDiskCacheSize), threadPoolSize, new Handler(Looper.getMainLooper()));
+    }
+
+    protected AbstractBucket(DiskCache diskCache, int threadPoolSize) {
+        this(diskCache, threadPoolSize, new Handler(Looper.getMainLooper()));
     }
 
     /* package */ AbstractBucket(String cachePath, int threadPoolSize, Handler handler) {
-        // Make sure we don't have to add / later on
-        if (!cachePath.endsWith("/")) {
-            cachePath += "/";
-        }
-        mCachePath = cachePath;
-
-        mMainHandler = handler;
-        mExecutorService = new ThreadPoolExecutor(
-                threadPoolSize,
-                threadPoolSize,
-                10,
-                TimeUnit.MILLISECONDS,
-                new LinkedBlockingDeque<Runnable>() {
-                    @Override
-                    public boolean add(Runnable runnable) {
-                        super.addFirst(runnable);
-                        return true;
-                    }
+        this(openDiskCache(cachePath, DEFAULT_DISK_CACHE_SIZE), threadPoolSize, handler);
+    }
 
-                    @Override
-                    public boolean offer(Runnable runnable) {
-                        return offerFirst(runnable);
-                    }
+    /* package */ AbstractBucket(DiskCache diskCache, int threadPoolSize, Handler handler) {
+        this(diskCache, threadPoolSize, DISK_POOL_SIZE, DECODE_POOL_SIZE, handler);
+    }
 
-                    @Override
-                    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) throws InterruptedException {
-                        return offerFirst(runnable, timeout, unit);
-                    }
+    /**
+     * Loads run in stages, each on its own threads: downloads, reading cached images off disk, and
+     * scaling and decoding. A download only ever holds up other downloads.
+     *
+     * @param networkPoolSize threads for downloads, which mostly wait on the network
+     * @param diskPoolSize threads for opening and paging in cached images
+     * @param decodePoolSize threads for scaling and decoding, which are CPU bound
+     */
+    /* package */ AbstractBucket(DiskCache diskCache, int networkPoolSize, int diskPoolSize, int decodePoolSize,
+                                 Handler handler) {
+        this(diskCache, new BucketEngine(TAG, networkPoolSize, diskPoolSize, decodePoolSize, DEFAULT_MAX_QUEUED),
+                true, handler);
+    }
 
-                    @Override
-                    public void put(Runnable runnable) throws InterruptedException {
-                        putFirst(runnable);
-                    }
-                });
+    /**
+     * A bucket running its loads on the engine's threads, alongside the engine's other buckets.
+     */
+    protected AbstractBucket(DiskCache diskCache, BucketEngine engine) {
+        this(diskCache, engine, new Handler(Looper.getMainLooper()));
+    }
+
+    /* package */ AbstractBucket(DiskCache diskCache, BucketEngine engine, Handler handler) {
+        this(diskCache, engine, false, handler);
+    }
+
+    private AbstractBucket(DiskCache diskCache, BucketEngine engine, boolean ownsEngine, Handler handler) {
+        mDiskCache = diskCache;
+        mEngine = engine;
+        mOwnsEngine = ownsEngine;
+        mNotifyDispatcher = new NotifyDispatcher(handler);
+        mNetworkScheduler = engine.getNetworkScheduler();
+        mDiskScheduler = engine.getDiskScheduler();
+        mDecodeScheduler = engine.getDecodeScheduler();
+        mPrefetcher = new Prefetcher(this, diskCache, mNetworkScheduler);
+    }
 
-        final File cacheDirectory = new File(cachePath);
-        if (!cacheDirectory.exists()) {
-            cacheDirectory.mkdirs();
+    /* package */ static DiskCache openDiskCache(String cachePath, long maxSize) {
+        try {
+            return JournaledDiskCache.open(new File(cachePath), maxSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open disk cache " + cachePath, e);
         }
     }
 
-    protected abstract Drawable loadFromDisk(String path);
+    /**
+     * Decodes a drawable from a cached image. The bucket closes the snapshot.
+     */
+    protected abstract Drawable loadFromDisk(DiskCache.Snapshot snapshot);
+
+    /**
+     * Downloads the image at path into the given stream, which the bucket commits and closes.
+     *
+     * @return false if the download failed and the written bytes should be thrown away
+     */
+    protected abstract boolean saveFromWeb(String path, OutputStream os);
+
+    /**
+     * Writes a version of the cached source image sized for width x height into the given stream.
+     *
+     * @return false if scaling failed and the written bytes should be thrown away
+     */
+    protected abstract boolean scale(DiskCache.Snapshot source, int width, int height, OutputStream os);
+
+    /**
+     * Called on the loader thread once a drawable has loaded, before any listeners hear about it.
+     * The loader's reference on the drawable goes to the listeners, so anything kept past this
+     * call, eg. in a memory cache, must {@link PooledBitmapDrawable#acquire(Drawable) acquire}
+     * its own.
+     *
+     * @param fromNetwork whether the image had to be downloaded, as opposed to being found on disk
+     */
+    protected void onLoaded(String path, Drawable drawable, int width, int height, boolean fromNetwork) {
+        onLoaded(path, drawable, width, height);
+    }
+
+    /**
+     * Hands a loaded drawable to a listener. A listener that doesn't take references of its own
+     * is given one to keep, so the bitmap is never reused under it.
+     *
+     * @return false if the drawable went back to the pool before the listener could have it
+     */
+    protected static boolean notifyLoaded(BucketListener listener, String path, Drawable drawable, int width,
+                                          int height) {
+        if (!(listener instanceof AcquiringListener) && !PooledBitmapDrawable.acquire(drawable)) {
+            return false;
+        }
+
+        listener.onLoaded(path, drawable, width, height);
+        return true;
+    }
+
+    /**
+     * Whether {@link #derive(String, int, int)} might produce the image without the disk, eg. from
+     * a larger size that's already loaded. Called with the loaders lock held, so keep it quick.
+     */
+    protected boolean canDerive(String path, int width, int height) {
+        return false;
+    }
+
+    /**
+     * Shrinks the bucket's caches and pools for {@link #trimMemory(int)}.
+     *
+     * @param retainedFraction how much of its budget each cache and pool may keep, from 0 to 1
+     * @return the bytes let go of
+     */
+    protected long onTrimMemory(float retainedFraction) {
+        return 0;
+    }
+
+    /**
+     * Produces the image from something already loaded, on a decode thread.
+     *
+     * @return null to load it from disk or the network instead
+     */
+    protected Drawable derive(String path, int width, int height) {
+        return null;
+    }
+
+    @Override
+    public ImageRequest submit(String path, int width, int height, Executor executor) {
+        final ImageRequest request = new ImageRequest(this, path, width, height, executor);
+        get(path, width, height, request);
+        return request;
+    }
+
+    @Override
+    public long trimMemory(int level) {
+        final long bytes = onTrimMemory(getRetainedFraction(level));
+
+        // The recycled loaders, lists and notifications only pay off while images are loading
+        synchronized (mLoaders) {
+            mRecycledLoaders.clear();
+        }
+        synchronized (mListenerMap) {
+            mRecycledListeners.clear();
+            mRecycledNotifies.clear();
+        }
+
+        return bytes;
+    }
 
-    protected abstract boolean saveFromWeb(String path, String localPath);
+    /**
+     * @return how much of its budget a cache may keep at the given trim level. The running
+     *         levels and the levels once the UI is hidden each get more severe on their own, so
+     *         hiding the UI starts back at half.
+     */
+    /* package */ static float getRetainedFraction(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.75f;
+        }
 
-    protected abstract boolean scale(String path, int width, int height, String destination);
+        return 1f;
+    }
 
     @Override
     public void destroy() {
-        mExecutorService.shutdownNow();
+        // Nobody is told about loads that will never finish
+        synchronized (mListenerMap) {
+            mListenerMap.clear();
+        }
+
+        // A shared engine's threads carry on for its other buckets, so nothing of ours may be left on them
+        synchronized (mLoaders) {
+            mParked.clear();
+            for (LoaderRunnable loader : new ArrayList<LoaderRunnable>(mLoaders.values())) {
+                loader.cancel();
+            }
+            for (DownloadJob download : mDownloads.values()) {
+                if (download.mTask != null) {
+                    download.mTask.cancel();
+                }
+            }
+        }
+        mPrefetcher.cancelAll();
+
+        if (mOwnsEngine) {
+            mEngine.shutdown();
+        }
+
+        try {
+            mDiskCache.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing disk cache", e);
+        }
     }
 
-    public String getCachePath() {
-        return mCachePath;
+    protected DiskCache getDiskCache() {
+        return mDiskCache;
+    }
+
+    protected BucketEngine getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * @return the URLs whose downloads failed recently, and how often they've been turned away
+     */
+    public NegativeCache getNegativeCache() {
+        return mNegativeCache;
+    }
+
+    /**
+     * Limits background prefetching. Defaults to 2 downloads at a time and 512 KB/s between them.
+     *
+     * @param maxBytesPerSecond 0 for no limit
+     */
+    public void setPrefetchLimits(int maxConcurrentDownloads, long maxBytesPerSecond) {
+        mPrefetcher.setLimits(maxConcurrentDownloads, maxBytesPerSecond);
+    }
+
+    /**
+     * Limits how listeners are called back on the main thread. Completed loads are delivered in
+     * one batch per frame interval, and a batch that runs past maxBatchTimeMs leaves the rest for
+     * the next frame. Defaults to 16ms frames and 4ms batches.
+     */
+    public void setDispatchLimits(long frameIntervalMs, long maxBatchTimeMs) {
+        mNotifyDispatcher.setLimits(frameIntervalMs, maxBatchTimeMs);
+    }
+
+    /**
+     * Downloads the image into the disk cache in the background, without decoding it. Prefetches
+     * wait while anything more urgent needs the network.
+     */
+    protected void prefetchToDisk(String remotePath) {
+        mPrefetcher.prefetch(remotePath);
     }
 
     protected void load(String remotePath, int width, int height) {
@@ -104,74 +331,312 @@ public abstract class AbstractBucket implements Bucket, BucketListener {
     }
 
     protected void load(String remotePath, int width, int height, BucketListener listener) {
+        final NotifyRunnable failed;
+        synchronized (mLoaders) {
+            mLoaderKey.set(remotePath, width, height);
+            failed = startLoad(mLoaderKey, listener, Priority.VISIBLE);
+        }
+
+        if (failed != null) {
+            failed.deliver();
+        }
+    }
+
+    /**
+     * Starts loading the request unless it's already loading, in which case the load is moved up
+     * to the given priority if that's more urgent. Precache and prefetch loads are dropped if
+     * they wait in the queue for too long.
+     *
+     * @param key the request; copied if a loader is started, so it may be a reused lookup key
+     */
+    protected void load(RequestKey key, BucketListener listener, Priority priority) {
+        final NotifyRunnable failed;
+        synchronized (mLoaders) {
+            failed = startLoad(key, listener, priority);
+        }
+
+        if (failed != null) {
+            failed.deliver();
+        }
+    }
+
+    /**
+     * Called with mLoaders held.
+     *
+     * @return the failure to {@link NotifyRunnable#deliver() deliver} once mLoaders is released,
+     *         if the request failed fast, or else null
+     */
+    private NotifyRunnable startLoad(RequestKey key, BucketListener listener, Priority priority) {
+        if (listener != null) {
+            addListener(key, listener);
+        }
+
         // Check for the loader already running
+        if (promote(key, priority)) {
+            return null;
+        }
+
+        // Broken URLs fail fast until their backoff runs out
+        if (mNegativeCache.isSuppressed(key.getPath())) {
+            onFailure(key.getPath(), key.getWidth(), key.getHeight());
+            return takeListeners(key, null);
+        }
+
+        // Held back until resumed - by then the view may well have moved on to another image
+        if (mPaused) {
+            mParked.put(key.copy(), priority);
+            return null;
+        }
+
+        // Register before scheduling - a full queue may drop the loader straight away
+        final LoaderRunnable loader = obtainLoader(key);
+        mLoaders.put(loader.mKey, loader);
+        loader.start(priority);
+        return null;
+    }
+
+    /**
+     * Moves a queued load up to the given priority if that's more urgent.
+     *
+     * @return false if the request isn't loading
+     */
+    protected boolean promote(RequestKey key, Priority priority) {
         synchronized (mLoaders) {
+            final LoaderRunnable loader = mLoaders.get(key);
+            if (loader != null) {
+                loader.promote(priority);
+                return true;
+            }
+
+            // Parked loads start at the most urgent priority they were asked for
+            final Priority parked = mParked.get(key);
+            if (parked == null) {
+                return false;
+            }
+
+            if (priority.compareTo(parked) < 0) {
+                mParked.put(key, priority);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Holds back new loads, eg. while a list is flung. Loads already running carry on.
+     */
+    @Override
+    public void pause() {
+        synchronized (mLoaders) {
+            mPaused = true;
+        }
+    }
+
+    /**
+     * Starts the loads parked while paused. Those cancelled in the meantime were dropped as they
+     * were cancelled, so only images still wanted are loaded.
+     */
+    @Override
+    public void resume() {
+        final List<NotifyRunnable> failed = new ArrayList<NotifyRunnable>();
+        synchronized (mLoaders) {
+            if (!mPaused) {
+                return;
+            }
+            mPaused = false;
+
+            // A fresh iterator each time - a failing load calls onFailure(), which may cancel others
+            while (!mParked.isEmpty()) {
+                final Iterator<Map.Entry<RequestKey, Priority>> parked = mParked.entrySet().iterator();
+                final Map.Entry<RequestKey, Priority> entry = parked.next();
+                parked.remove();
+
+                // Its listeners are registered already
+                final NotifyRunnable notify = startLoad(entry.getKey(), null, entry.getValue());
+                if (notify != null) {
+                    failed.add(notify);
+                }
+            }
+        }
+
+        // Listeners may cancel or start loads of their own
+        for (NotifyRunnable notify : failed) {
+            notify.deliver();
+        }
+    }
+
+    public boolean isPaused() {
+        synchronized (mLoaders) {
+            return mPaused;
+        }
+    }
+
+    @Override
+    public void cancel(String path, int width, int height, BucketListener listener) {
+        synchronized (mLoaders) {
+            mLoaderKey.set(path, width, height);
             if (listener != null) {
-                addListener(remotePath, listener);
+                removeListener(mLoaderKey, listener);
             }
 
-            mLoaderKey.updateHashCode(remotePath, width, height);
-            if (mLoaders.contains(mLoaderKey)) {
+            // Somebody else still wants this size
+            if (hasListeners(mLoaderKey)) {
                 return;
             }
 
-            final Runnable loader = new LoaderRunnable(remotePath, width, height);
-            mLoaders.add(loader);
-            mExecutorService.execute(loader);
+            final LoaderRunnable loader = mLoaders.get(mLoaderKey);
+            if (loader != null) {
+                loader.cancel();
+            } else if (mParked.remove(mLoaderKey) != null) {
+                // Never started - just let go of the request, as a cancelled loader would
+                onFailure(path, width, height);
+            }
         }
     }
 
-    protected String getFilename(String remotePath) {
-        return getFilename(remotePath, NO_SIZE, NO_SIZE);
+    /**
+     * Called with mLoaders held.
+     */
+    private LoaderRunnable obtainLoader(RequestKey key) {
+        LoaderRunnable loader = mRecycledLoaders.pollFirst();
+        if (loader == null) {
+            loader = new LoaderRunnable();
+        }
+
+        loader.reset(key);
+        return loader;
     }
 
-    protected String getFilename(String remotePath, int width, int height) {
-        if (remotePath == null) {
-            throw new IllegalArgumentException("Invalid remote path.");
+    /**
+     * Called with mLoaders held, once the loader is out of mLoaders and no stage holds it.
+     */
+    private void recycleLoader(LoaderRunnable loader) {
+        if (mRecycledLoaders.size() < MAX_RECYCLED) {
+            mRecycledLoaders.addFirst(loader);
         }
+    }
 
-        if (width == NO_SIZE && height == NO_SIZE) {
-            return String.format("%s%d.jpg", mCachePath, remotePath.hashCode());
-        } else {
-            return String.format("%s%d-%d-%d.jpg", mCachePath, width, height, remotePath.hashCode());
+    private RequestScheduler getScheduler(Stage stage) {
+        switch (stage) {
+            case NETWORK:
+                return mNetworkScheduler;
+            case DISK:
+                return mDiskScheduler;
+            case DERIVE:
+            case DECODE:
+            default:
+                return mDecodeScheduler;
         }
     }
 
-    protected void addListener(String remotePath, BucketListener listener) {
+    private static long getTimeout(Priority priority) {
+        switch (priority) {
+            case PRECACHE:
+                return PRECACHE_TIMEOUT_MS;
+            case PREFETCH:
+                return PREFETCH_TIMEOUT_MS;
+            case VISIBLE:
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Listens for the request at its size - other sizes of the image finish on their own.
+     *
+     * @param key the request; copied if nobody was listening for it yet, so it may be a reused
+     *            lookup key
+     */
+    protected void addListener(RequestKey key, BucketListener listener) {
         synchronized (mListenerMap) {
-            Set<BucketListener> listeners = mListenerMap.get(remotePath);
+            List<BucketListener> listeners = mListenerMap.get(key);
             if (listeners == null) {
-                listeners = new LinkedHashSet<BucketListener>();
-                mListenerMap.put(remotePath, listeners);
+                listeners = mRecycledListeners.pollFirst();
+                if (listeners == null) {
+                    listeners = new ArrayList<BucketListener>(2);
+                }
+                mListenerMap.put(key.copy(), listeners);
             }
 
-            listeners.add(listener);
+            // Almost always one or two - a scan is cheaper than a hashed set's entries
+            if (!listeners.contains(listener)) {
+                listeners.add(listener);
+            }
+        }
+    }
+
+    private boolean hasListeners(RequestKey key) {
+        synchronized (mListenerMap) {
+            return mListenerMap.containsKey(key);
         }
     }
 
-    private void notifyListeners(String remotePath, Drawable drawable, int width, int height) {
-        final Set<BucketListener> listeners;
+    /**
+     * @return true if the listener was registered and has been removed
+     */
+    protected boolean removeListener(RequestKey key, BucketListener listener) {
         synchronized (mListenerMap) {
-            // Grab the listeners
-            listeners = mListenerMap.get(remotePath);
+            final List<BucketListener> listeners = mListenerMap.get(key);
+            if (listeners == null || !listeners.remove(listener)) {
+                return false;
+            }
+
+            if (listeners.isEmpty()) {
+                mListenerMap.remove(key);
+                recycleListeners(listeners);
+            }
 
-            // Remove the listeners from the map
-            mListenerMap.remove(remotePath);
+            return true;
         }
+    }
 
-        if (listeners != null && listeners.size() > 0) {
-            mMainHandler.post(new NotifyRunnable(remotePath, drawable, width, height, listeners));
+    /**
+     * Called with mListenerMap held.
+     */
+    private void recycleListeners(List<BucketListener> listeners) {
+        listeners.clear();
+        if (mRecycledListeners.size() < MAX_RECYCLED) {
+            mRecycledListeners.addFirst(listeners);
         }
     }
 
+    /**
+     * Takes the listeners waiting on the request out of the map, so later listeners wait for the
+     * next load.
+     *
+     * @return the notification to {@link NotifyRunnable#deliver() deliver}, or null if nobody's
+     *         listening
+     */
+    private NotifyRunnable takeListeners(RequestKey key, Drawable drawable) {
+        synchronized (mListenerMap) {
+            final List<BucketListener> listeners = mListenerMap.remove(key);
+            if (listeners == null) {
+                return null;
+            }
+
+            if (listeners.isEmpty()) {
+                recycleListeners(listeners);
+                return null;
+            }
+
+            final NotifyRunnable recycled = mRecycledNotifies.pollFirst();
+            final NotifyRunnable notify = recycled != null ? recycled : new NotifyRunnable();
+            notify.set(key.getPath(), drawable, key.getWidth(), key.getHeight(), listeners);
+            return notify;
+        }
+    }
+
+    /**
+     * Delivers one completed load, holding a reference on the drawable until every listener has
+     * had it. Recycled, along with its listeners list, once it has run.
+     */
     private class NotifyRunnable implements Runnable {
-        private final String mRemotePath;
-        private final int mWidth;
-        private final int mHeight;
-        private final Drawable mDrawable;
-        private final Set<BucketListener> mListeners;
+        private String mRemotePath;
+        private int mWidth;
+        private int mHeight;
+        private Drawable mDrawable;
+        private List<BucketListener> mListeners;
 
-        private NotifyRunnable(String remotePath, Drawable drawable, int width, int height, Set<BucketListener> listeners) {
+        private void set(String remotePath, Drawable drawable, int width, int height, List<BucketListener> listeners) {
             mRemotePath = remotePath;
             mWidth = width;
             mHeight = height;
@@ -179,126 +644,492 @@ public abstract class AbstractBucket implements Bucket, BucketListener {
             mListeners = listeners;
         }
 
+        /**
+         * Completes image requests right here - they run their listeners on their own executors -
+         * and sends the rest to the main thread.
+         */
+        private void deliver() {
+            boolean main = false;
+            for (int i = 0; i < mListeners.size(); i++) {
+                final BucketListener listener = mListeners.get(i);
+                if (listener instanceof ImageRequest) {
+                    notify(listener);
+                } else {
+                    main = true;
+                }
+            }
+
+            if (main) {
+                mNotifyDispatcher.dispatch(this);
+            } else {
+                recycle();
+            }
+        }
+
         @Override
         public void run() {
-            if (mDrawable != null) {
-                for (BucketListener listener : mListeners) {
-                    listener.onLoaded(mRemotePath, mDrawable, mWidth, mHeight);
+            try {
+                for (int i = 0; i < mListeners.size(); i++) {
+                    final BucketListener listener = mListeners.get(i);
+                    if (!(listener instanceof ImageRequest)) {
+                        notify(listener);
+                    }
                 }
+            } finally {
+                recycle();
+            }
+        }
+
+        private void notify(BucketListener listener) {
+            if (mDrawable != null) {
+                // Still holding our own reference, so the listener's can't fail
+                notifyLoaded(listener, mRemotePath, mDrawable, mWidth, mHeight);
             } else {
-                for (BucketListener listener : mListeners) {
-                    listener.onFailure(mRemotePath, mWidth, mHeight);
+                listener.onFailure(mRemotePath, mWidth, mHeight);
+            }
+        }
+
+        private void recycle() {
+            PooledBitmapDrawable.release(mDrawable);
+
+            synchronized (mListenerMap) {
+                recycleListeners(mListeners);
+                set(null, null, 0, 0, null);
+                if (mRecycledNotifies.size() < MAX_RECYCLED) {
+                    mRecycledNotifies.addFirst(this);
                 }
             }
         }
     }
 
-    private class LoaderRunnable implements Runnable {
+    /**
+     * Downloads a source image once for every size of it that's waiting, then hands each of them
+     * on to be scaled on its own.
+     */
+    private class DownloadJob implements RequestScheduler.Job {
+        private final String mRemotePath;
+        private final String mKey;
+        private final List<LoaderRunnable> mWaiters = new ArrayList<LoaderRunnable>();
+        private RequestScheduler.Task mTask;
+
+        private DownloadJob(String remotePath, String key) {
+            mRemotePath = remotePath;
+            mKey = key;
+        }
+
+        @Override
+        public void run(RequestScheduler.Task task) {
+            boolean downloaded = false;
+            try {
+                final DiskCache.Editor editor = edit();
+                if (editor != null) {
+                    downloaded = download(editor);
+                } else if (mDiskCache.contains(mKey)) {
+                    // A prefetch finished it first
+                    downloaded = true;
+                } else {
+                    // Still busy - going round again beats failing every size that's waiting
+                    retry(task);
+                    return;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, String.format("Error accessing disk cache! %s", mRemotePath), e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, String.format("Error downloading! %s", mRemotePath));
+            }
+
+            release(downloaded, task);
+        }
+
+        @Override
+        public void onDropped(RequestScheduler.Task task) {
+            release(false, task);
+        }
+
+        /**
+         * Called with mLoaders held.
+         */
+        private void promote(Priority priority) {
+            if (mTask != null && priority.compareTo(mTask.getPriority()) < 0) {
+                mTask.setPriority(priority);
+            }
+        }
+
+        /**
+         * Called with mLoaders held.
+         */
+        private void remove(LoaderRunnable waiter) {
+            mWaiters.remove(waiter);
+            waiter.mDownload = null;
+
+            // A running download is left to finish - the source is worth having on disk
+            if (mWaiters.isEmpty() && mTask != null) {
+                mTask.cancel();
+            }
+        }
+
+        private void release(boolean downloaded, RequestScheduler.Task task) {
+            final List<LoaderRunnable> waiters;
+            synchronized (mLoaders) {
+                if (mDownloads.get(mRemotePath) == this) {
+                    mDownloads.remove(mRemotePath);
+                }
+
+                waiters = new ArrayList<LoaderRunnable>(mWaiters);
+                for (LoaderRunnable waiter : waiters) {
+                    waiter.mDownload = null;
+                }
+                mWaiters.clear();
+            }
+
+            for (LoaderRunnable waiter : waiters) {
+                if (!downloaded || !waiter.handOff(Stage.DISK, task)) {
+                    waiter.finish(null);
+                }
+            }
+        }
+
+        /**
+         * Opens the source for writing, waiting for a prefetch of it to give way first. Returns
+         * null if it's still being written, or was written in the meantime.
+         */
+        private DiskCache.Editor edit() throws IOException {
+            final DiskCache.Editor editor = mDiskCache.edit(mKey);
+            if (editor != null) {
+                return editor;
+            }
+
+            mPrefetcher.awaitWrite(mRemotePath);
+            return mDiskCache.contains(mKey) ? null : mDiskCache.edit(mKey);
+        }
+
+        private void retry(RequestScheduler.Task task) {
+            synchronized (mLoaders) {
+                if (mDownloads.get(mRemotePath) == this && !mWaiters.isEmpty()) {
+                    mTask = mNetworkScheduler.handOff(this, task, task.getSequence());
+                    return;
+                }
+            }
+
+            release(false, task);
+        }
+
+        private boolean download(DiskCache.Editor editor) throws IOException {
+            boolean committed = false;
+            try {
+                if (saveFromWeb(mRemotePath, editor.newOutputStream())) {
+                    editor.commit();
+                    committed = true;
+                    mNegativeCache.onSuccess(mRemotePath);
+                } else {
+                    mNegativeCache.onFailure(mRemotePath);
+                }
+            } finally {
+                if (!committed) {
+                    editor.abort();
+                }
+            }
+
+            return committed;
+        }
+    }
+
+    private enum Stage {
+        DERIVE,
+        NETWORK,
+        DISK,
+        DECODE
+    }
+
+    /**
+     * Carries one request through the stages: downloaded if it's not on disk, opened and paged in,
+     * then scaled if need be and decoded. Recycled once finished, so a loader's fields are only
+     * valid between {@link #reset(RequestKey)} and {@link #finish(Drawable)}.
+     */
+    private class LoaderRunnable implements RequestScheduler.Job {
+        private final RequestKey mKey = new RequestKey();
         private String mRemotePath;
         private int mWidth;
         private int mHeight;
-        private int mHashCode = -1;
+        private boolean mFromNetwork;
+        private Stage mStage;
+        private RequestScheduler.Task mTask;
+        private long mSequence;
+        private DownloadJob mDownload;
+        private boolean mCancelled;
+        private DiskCache.Snapshot mSnapshot;
+        private boolean mScaled;
 
-        private LoaderRunnable() {
+        /**
+         * Called with mLoaders held.
+         */
+        private void reset(RequestKey key) {
+            mKey.set(key);
+            mRemotePath = key.getPath();
+            mWidth = key.getWidth();
+            mHeight = key.getHeight();
+            mFromNetwork = false;
+            mStage = null;
+            mTask = null;
+            mSequence = 0;
+            mDownload = null;
+            mCancelled = false;
+            mSnapshot = null;
+            mScaled = false;
         }
 
-        private LoaderRunnable(String remotePath, int width, int height) {
-            mRemotePath = remotePath;
-            mWidth = width;
-            mHeight = height;
+        /**
+         * Called with mLoaders held.
+         */
+        private void start(Priority priority) {
+            // Later stages queue by when the request was made, not when the stage before finished
+            mSequence = RequestScheduler.nextSequence();
+
+            if (canDerive(mRemotePath, mWidth, mHeight)) {
+                mStage = Stage.DERIVE;
+                mTask = mDecodeScheduler.schedule(this, priority, getTimeout(priority), TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            route(priority);
+        }
+
+        /**
+         * Sends the loader to the disk, or to the network if the image isn't on disk. Called with
+         * mLoaders held.
+         */
+        private void route(Priority priority) {
+            // contains() is answered from memory, so a warm disk never queues behind downloads
+            final boolean cached = mDiskCache.contains(mKey.getFilename())
+                    || mDiskCache.contains(mKey.getSourceFilename());
+
+            if (cached) {
+                mStage = Stage.DISK;
+                mTask = mDiskScheduler.schedule(this, priority, getTimeout(priority), TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            // Take over from a prefetch - the download waits for it to let go of the entry
+            mPrefetcher.cancel(mRemotePath);
+
+            // Every size of the image waits on the one download
+            mStage = Stage.NETWORK;
+            mFromNetwork = true;
+            mDownload = mDownloads.get(mRemotePath);
+            if (mDownload != null) {
+                mDownload.mWaiters.add(this);
+                mDownload.promote(priority);
+                return;
+            }
+
+            // Register before scheduling - a full queue may drop the download straight away
+            mDownload = new DownloadJob(mRemotePath, mKey.getSourceFilename());
+            mDownload.mWaiters.add(this);
+            mDownloads.put(mRemotePath, mDownload);
+            mDownload.mTask = mNetworkScheduler.schedule(mDownload, priority, getTimeout(priority), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Called with mLoaders held.
+         */
+        private void promote(Priority priority) {
+            if (mDownload != null) {
+                mDownload.promote(priority);
+            } else if (mTask != null && priority.compareTo(mTask.getPriority()) < 0) {
+                mTask.setPriority(priority);
+                mSequence = mTask.getSequence();
+            }
+        }
+
+        /**
+         * Called with mLoaders held.
+         */
+        private void cancel() {
+            mCancelled = true;
+            if (mDownload != null) {
+                // Other sizes may still want the download
+                mDownload.remove(this);
+                finish(null);
+            } else if (mTask != null) {
+                mTask.cancel();
+            }
         }
 
         @Override
-        public void run() {
+        public void run(RequestScheduler.Task task) {
+            Stage next = null;
+            Drawable drawable = null;
             try {
-                Drawable drawable = null;
-                try {
-                    drawable = execute();
-                } catch (RuntimeException e) {
-                    Log.e(TAG, String.format("Error loading drawable! %s", mRemotePath));
+                switch (mStage) {
+                    case DERIVE:
+                        drawable = derive(mRemotePath, mWidth, mHeight);
+                        break;
+                    case DISK:
+                        next = open() ? Stage.DECODE : null;
+                        break;
+                    case DECODE:
+                        drawable = decode();
+                        break;
                 }
+            } catch (IOException e) {
+                Log.e(TAG, String.format("Error accessing disk cache! %s", mRemotePath), e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, String.format("Error loading drawable! %s", mRemotePath));
+            }
 
-                synchronized (mLoaders) {
+            // Cancelled mid-stage - keep what's on disk, but go no further
+            if (next != null && !task.isCancelled() && handOff(next, task)) {
+                return;
+            }
+
+            // Nothing to derive it from after all
+            if (drawable == null && mStage == Stage.DERIVE && !task.isCancelled() && reroute(task.getPriority())) {
+                return;
+            }
+
+            finish(drawable);
+        }
+
+        @Override
+        public void onDropped(RequestScheduler.Task task) {
+            // Cancelled, expired or pushed out of a queue before the stage ran
+            finish(null);
+        }
+
+        private boolean reroute(Priority priority) {
+            synchronized (mLoaders) {
+                if (mCancelled) {
+                    return false;
+                }
+
+                route(priority);
+                return true;
+            }
+        }
+
+        private boolean handOff(Stage stage, RequestScheduler.Task from) {
+            synchronized (mLoaders) {
+                if (mCancelled) {
+                    return false;
+                }
+
+                // A drop here finishes the loader through onDropped
+                mStage = stage;
+                mTask = getScheduler(stage).handOff(this, from, mSequence);
+                return true;
+            }
+        }
+
+        private void finish(Drawable drawable) {
+            closeSnapshot();
+
+            final NotifyRunnable notify;
+            synchronized (mLoaders) {
+                try {
                     // First notify ourselves
                     if (drawable != null) {
-                        onLoaded(mRemotePath, drawable, mWidth, mHeight);
+                        onLoaded(mRemotePath, drawable, mWidth, mHeight, mFromNetwork);
                     } else {
                         onFailure(mRemotePath, mWidth, mHeight);
                     }
 
-                    // Now notify listeners
-                    notifyListeners(mRemotePath, drawable, mWidth, mHeight);
+                    // Take the listeners while nobody can join the load, but call them outside the
+                    // lock - image requests may run theirs on this thread
+                    notify = takeListeners(mKey, drawable);
+                    if (notify == null) {
+                        PooledBitmapDrawable.release(drawable);
+                    }
+                } finally {
+                    // Remove the loader from the loaders set, then it's free for the next request
+                    mLoaders.remove(mKey);
+                    recycleLoader(this);
                 }
-            } finally {
-                // Remove the loader from the loaders set
-                mLoaders.remove(this);
+            }
+
+            if (notify != null) {
+                notify.deliver();
             }
         }
 
-        private Drawable execute() {
-            final String scaledFilename = getFilename(mRemotePath, mWidth, mHeight);
-            final File scaledFile = new File(scaledFilename);
+        /**
+         * Opens the image at the requested size, or else the source, and pages it in so decoding
+         * doesn't stall on the disk.
+         */
+        private boolean open() throws IOException {
+            final String scaledKey = mKey.getFilename();
+            if (mDiskCache.contains(scaledKey)) {
+                mSnapshot = mDiskCache.get(scaledKey);
+                mScaled = mSnapshot != null;
+            }
 
-            // Exact size
-            if (scaledFile.exists()) {
-                final Drawable d = loadFromDisk(scaledFilename);
-                int i = 0;
-                i++;
-                return d;
+            if (mSnapshot == null) {
+                mSnapshot = mDiskCache.get(mKey.getSourceFilename());
             }
 
-            final String unscaledFilename = getFilename(mRemotePath);
-            final File unscaledFile = new File(unscaledFilename);
+            if (mSnapshot == null) {
+                return false;
+            }
 
-            // If no unscaled, download
-            if (!unscaledFile.exists()) {
-                saveFromWeb(mRemotePath, unscaledFilename);
+            final ByteBuffer buffer = mSnapshot.getBuffer();
+            if (buffer instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) buffer).load();
             }
 
-            // Unscaled - scale and load
-            if (unscaledFile.exists()) {
-                if (scale(unscaledFilename, mWidth, mHeight, scaledFilename)) {
-                    final Drawable d = loadFromDisk(scaledFilename);
-                    return d;
-                }
+            return true;
+        }
 
-                System.out.print("Scale call failed");
-            }
+        private Drawable decode() throws IOException {
+            if (!mScaled) {
+                final String scaledKey = mKey.getFilename();
+                final boolean written = writeScaled(mSnapshot, scaledKey);
+                closeSnapshot();
 
+                if (!written) {
+                    Log.w(TAG, String.format("Scale call failed! %s", mRemotePath));
+                    return null;
+                }
 
-            return null;
-        }
+                mSnapshot = mDiskCache.get(scaledKey);
+                if (mSnapshot == null) {
+                    return null;
+                }
+            }
 
-        private void updateHashCode(String remotePath, int width, int height) {
-            mRemotePath = remotePath;
-            mWidth = width;
-            mHeight = height;
-            mHashCode = generateLoaderHashCode(mRemotePath, mWidth, mHeight);
+            return loadFromDisk(mSnapshot);
         }
 
-        @Override
-        public int hashCode() {
-            if (mHashCode == -1) {
-                mHashCode = generateLoaderHashCode(mRemotePath, mWidth, mHeight);
+        private void closeSnapshot() {
+            if (mSnapshot == null) {
+                return;
             }
 
-            return mHashCode;
+            try {
+                mSnapshot.close();
+            } catch (IOException e) {
+                Log.w(TAG, String.format("Error closing snapshot! %s", mRemotePath), e);
+            }
+            mSnapshot = null;
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (obj == this) {
-                return true;
+        private boolean writeScaled(DiskCache.Snapshot source, String key) throws IOException {
+            final DiskCache.Editor editor = mDiskCache.edit(key);
+            if (editor == null) {
+                return false;
             }
 
-            if (!(obj instanceof LoaderRunnable)) {
-                return false;
+            boolean committed = false;
+            try {
+                if (scale(source, mWidth, mHeight, editor.newOutputStream())) {
+                    editor.commit();
+                    committed = true;
+                }
+            } finally {
+                if (!committed) {
+                    editor.abort();
+                }
             }
 
-            final LoaderRunnable objKey = (LoaderRunnable) obj;
-            return mRemotePath.equals(objKey.mRemotePath)
-                    && mWidth == objKey.mWidth
-                    && mHeight == objKey.mHeight;
+            return committed;
         }
 
         @Override
@@ -307,17 +1138,7 @@ public abstract class AbstractBucket implements Bucket, BucketListener {
                     "mRemotePath='" + mRemotePath + '\'' +
                     ", mWidth=" + mWidth +
                     ", mHeight=" + mHeight +
-                    ", mHashCode=" + mHashCode +
                     '}';
         }
     }
-
-    private static int generateLoaderHashCode(String remotePath, int width, int height) {
-        int hashCode = 17;
-        hashCode += 31 * hashCode + remotePath.hashCode();
-        hashCode += 31 * hashCode + width;
-        hashCode += 31 * hashCode + height;
-
-        return hashCode;
-    }
 }
@@ -0,0 +1,99 @@
+package com.vinci.bucket;
+
+import com.vinci.cache.MemoryBudget;
+import com.vinci.scheduler.RequestScheduler;
+import com.vinci.util.BitmapPool;
+import com.vinci.util.ByteArrayPool;
+
+/**
+ * The threads, pools and memory budget that buckets share, so an app with a handful of buckets -
+ * avatars, a feed, a gallery - runs one set of loader threads and one byte budget rather than a
+ * silo per bucket. Buckets created on an engine are just namespaces: their own disk cache,
+ * memory cache and listeners, with the memory cache's size settled by the engine's
+ * {@link MemoryBudget}.
+ *
+ * Buckets created without one get a private engine of their own, which they shut down when
+ * destroyed.
+ */
+public class BucketEngine {
+    private static final String TAG = BucketEngine.class.getSimpleName();
+    private static final int NETWORK_POOL_SIZE = 8;
+    private static final int DISK_POOL_SIZE = 2;
+    private static final int DECODE_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_QUEUED = 256;
+    /* package */ static final long READ_BUFFER_POOL_BYTES = 4 * 1024 * 1024;
+
+    private final RequestScheduler mNetworkScheduler;
+    private final RequestScheduler mDiskScheduler;
+    private final RequestScheduler mDecodeScheduler;
+    private final ByteArrayPool mReadBufferPool = new ByteArrayPool(READ_BUFFER_POOL_BYTES);
+    private final BitmapPool mBitmapPool;
+    private final MemoryBudget mBudget;
+
+    /**
+     * @param maxBytes the memory budget of every bucket's memory cache together. A quarter of
+     *                 it again is kept for bitmaps waiting to be reused.
+     */
+    public BucketEngine(long maxBytes) {
+        this(maxBytes, NETWORK_POOL_SIZE, DISK_POOL_SIZE, DECODE_POOL_SIZE);
+    }
+
+    /**
+     * @param networkPoolSize threads for downloads, which mostly wait on the network
+     * @param diskPoolSize threads for opening and paging in cached images
+     * @param decodePoolSize threads for scaling and decoding, which are CPU bound
+     */
+    public BucketEngine(long maxBytes, int networkPoolSize, int diskPoolSize, int decodePoolSize) {
+        this(TAG, networkPoolSize, diskPoolSize, decodePoolSize, MAX_QUEUED, new BitmapPool(maxBytes / 4),
+                new MemoryBudget(maxBytes));
+    }
+
+    /**
+     * A bucket's private engine; the bucket brings its own bitmap pool and memory budget.
+     */
+    /* package */ BucketEngine(String name, int networkPoolSize, int diskPoolSize, int decodePoolSize, int maxQueued) {
+        this(name, networkPoolSize, diskPoolSize, decodePoolSize, maxQueued, null, null);
+    }
+
+    private BucketEngine(String name, int networkPoolSize, int diskPoolSize, int decodePoolSize, int maxQueued,
+                         BitmapPool bitmapPool, MemoryBudget budget) {
+        mNetworkScheduler = new RequestScheduler(name + "-network", networkPoolSize, maxQueued);
+        mDiskScheduler = new RequestScheduler(name + "-disk", diskPoolSize, maxQueued);
+        mDecodeScheduler = new RequestScheduler(name + "-decode", decodePoolSize, maxQueued);
+        mBitmapPool = bitmapPool;
+        mBudget = budget;
+    }
+
+    /**
+     * Stops the threads. Buckets on the engine can't load anything afterwards.
+     */
+    public void shutdown() {
+        mNetworkScheduler.shutdown();
+        mDiskScheduler.shutdown();
+        mDecodeScheduler.shutdown();
+    }
+
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    public ByteArrayPool getReadBufferPool() {
+        return mReadBufferPool;
+    }
+
+    public MemoryBudget getBudget() {
+        return mBudget;
+    }
+
+    /* package */ RequestScheduler getNetworkScheduler() {
+        return mNetworkScheduler;
+    }
+
+    /* package */ RequestScheduler getDiskScheduler() {
+        return mDiskScheduler;
+    }
+
+    /* package */ RequestScheduler getDecodeScheduler() {
+        return mDecodeScheduler;
+    }
+}
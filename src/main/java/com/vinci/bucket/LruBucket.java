@@ -3,109 +3,261 @@ package com.vinci.bucket;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
 import com.vinci.BucketListener;
+import com.vinci.cache.EvictionPolicy;
+import com.vinci.cache.LruPolicy;
+import com.vinci.cache.MemoryBudget;
+import com.vinci.cache.MemoryCache;
+import com.vinci.cache.Weigher;
+import com.vinci.cache.Weighers;
+import com.vinci.disk.DiskCache;
+import com.vinci.scheduler.Priority;
 import com.vinci.util.AbstractBlockingPool;
 import com.vinci.util.BitmapPool;
+import com.vinci.util.BitmapUtil;
+import com.vinci.util.ByteArrayPool;
 import com.vinci.util.IoUtil;
-import com.vinci.util.Pool;
+import com.vinci.util.PooledBitmapDrawable;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Created by austinh on 4/7/14.
  */
 public class LruBucket extends AbstractBucket {
+    private static final String TAG = LruBucket.class.getSimpleName();
     private static final int THREAD_POOL_SIZE = 8;
+    private static final int DISK_COST = 1;
+    private static final int NETWORK_COST = 10;
+    private static final int JPEG_QUALITY = 85;
+    private static final int COPY_BUFFER_SIZE = 8192;
 
     private final Context mContext;
-    private final Pool<Bitmap> mBitmapPool;
-    private final Pool<byte[]> mBufferPool = new BufferPool(THREAD_POOL_SIZE, 8192);
-    private final Pool<RawImageLoader> mRawImageLoaderPool = new RawImageLoaderPool(THREAD_POOL_SIZE);
-    private final LruCache mLruCache;
-    private final DrawableKey mLoaderKey = new DrawableKey();
+    private final BitmapPool mBitmapPool;
+    private final BufferPool mBufferPool = new BufferPool(THREAD_POOL_SIZE, COPY_BUFFER_SIZE);
+    private final ByteArrayPool mReadBufferPool = getEngine().getReadBufferPool();
+    private final RawImageLoaderPool mRawImageLoaderPool = new RawImageLoaderPool(THREAD_POOL_SIZE, mReadBufferPool);
+    private final MemoryCache<RequestKey, Drawable> mLruCache;
+    private final ThreadLocal<RequestKey> mLookupKey = new ThreadLocal<RequestKey>() {
+        @Override
+        protected RequestKey initialValue() {
+            return new RequestKey();
+        }
+    };
+    private final Map<String, List<RequestKey>> mLoadedSizes = new HashMap<String, List<RequestKey>>();
     private final Bitmap.Config mConfig;
+    private final MemoryBudget.Account mBudgetAccount;
 
     public LruBucket(Context context, String cachePath, int capacity, int width, int height, Bitmap.Config config) {
-        super(cachePath, THREAD_POOL_SIZE);
+        this(context, cachePath, capacity, config,
+                new BitmapPool((long) (capacity + 1) * BitmapUtil.getByteCount(width, height, config)));
+    }
+
+    public LruBucket(Context context, String cachePath, int capacity, Bitmap.Config config, BitmapPool bitmapPool) {
+        this(context, cachePath, capacity, Weighers.<Drawable>singleton(), config, bitmapPool);
+    }
+
+    /**
+     * @param maxWeight the memory cache budget, in units of the weigher
+     * @param weigher weighs each cached drawable, eg. {@link Weighers#bitmapBytes()} for a byte budget
+     */
+    public LruBucket(Context context, String cachePath, long maxWeight, Weigher<? super Drawable> weigher,
+                     Bitmap.Config config, BitmapPool bitmapPool) {
+        this(context, cachePath, maxWeight, weigher, new LruPolicy<Object>(), config, bitmapPool);
+    }
+
+    /**
+     * @param policy decides which drawables are evicted from memory, eg. a
+     *               {@link com.vinci.cache.WTinyLfuPolicy} or a
+     *               {@link com.vinci.cache.GreedyDualSizeFrequencyPolicy}
+     */
+    public LruBucket(Context context, String cachePath, long maxWeight, Weigher<? super Drawable> weigher,
+                     EvictionPolicy<Object> policy, Bitmap.Config config, BitmapPool bitmapPool) {
+        this(context, openDiskCache(cachePath, DEFAULT_DISK_CACHE_SIZE), maxWeight, weigher, policy, config, bitmapPool);
+    }
+
+    /**
+     * @param diskCache where downloaded and scaled images are kept, eg. a
+     *                  {@link com.vinci.disk.BlobStoreDiskCache}. The bucket closes it when destroyed.
+     */
+    public LruBucket(Context context, DiskCache diskCache, long maxWeight, Weigher<? super Drawable> weigher,
+                     EvictionPolicy<Object> policy, Bitmap.Config config, BitmapPool bitmapPool) {
+        super(diskCache, THREAD_POOL_SIZE);
 
         mContext = context;
-        mBitmapPool = new BitmapPool(capacity + 1, width, height, config);
-        mLruCache = new LruCache(capacity, mBitmapPool);
+        mBitmapPool = bitmapPool;
+        mLruCache = createCache(maxWeight, weigher, policy);
         mConfig = config;
+        mBudgetAccount = null;
+    }
+
+    public LruBucket(Context context, String cachePath, BucketEngine engine, int shares, Bitmap.Config config) {
+        this(context, openDiskCache(cachePath, DEFAULT_DISK_CACHE_SIZE), engine, shares, new LruPolicy<Object>(), config);
+    }
+
+    /**
+     * A bucket on a shared engine: it loads on the engine's threads into the engine's pools, and
+     * its memory cache draws on the engine's budget.
+     *
+     * @param shares the bucket's guaranteed part of the budget, weighed against the other
+     *               buckets'. Past it the bucket borrows what the others aren't using, and gives
+     *               it back first once it's gone cold.
+     */
+    public LruBucket(Context context, DiskCache diskCache, BucketEngine engine, int shares,
+                     EvictionPolicy<Object> policy, Bitmap.Config config) {
+        super(diskCache, engine);
+
+        final MemoryBudget budget = engine.getBudget();
+        if (budget == null) {
+            throw new IllegalArgumentException("Engine has no memory budget.");
+        }
+
+        mContext = context;
+        mBitmapPool = engine.getBitmapPool();
+        mLruCache = createCache(budget.getMaxBytes(), Weighers.bitmapBytes(), policy);
+        mConfig = config;
+        mBudgetAccount = budget.register(mLruCache, shares);
+    }
+
+    private MemoryCache<RequestKey, Drawable> createCache(long maxWeight, Weigher<? super Drawable> weigher,
+                                                         EvictionPolicy<Object> policy) {
+        return new MemoryCache<RequestKey, Drawable>(maxWeight, weigher, policy, new MemoryCache.EvictionListener<RequestKey, Drawable>() {
+            @Override
+            public void onEvicted(RequestKey key, Drawable drawable) {
+                removeLoadedSize(key);
+
+                // The bitmap goes back for reuse once no view is drawing it either
+                PooledBitmapDrawable.release(drawable);
+            }
+        });
     }
 
     @Override
     public Drawable get(String path, int width, int height, BucketListener listener) {
-        // If the LRU cache knows about the path, return the value
-        synchronized (mLoaderKey) {
-            mLoaderKey.updateHashCode(path, width, height);
-
-            if (mLruCache.containsKey(mLoaderKey)) {
-                final Drawable drawable = mLruCache.get(mLoaderKey);
-
-                if (listener != null) {
-                    // Notify the listener if we have a valid drawable
-                    if (drawable != null) {
-                        listener.onLoaded(path, drawable, width, height);
-                    } else {
-                        // Otherwise, add the listener
-                        addListener(path, listener);
-                    }
-                }
+        return get(path, width, height, listener, Priority.VISIBLE);
+    }
 
-                return drawable;
-            } else {
-                // Prime the LRU cache
-                mLruCache.put(new DrawableKey(path, width, height), null);
-            }
+    private Drawable get(String path, int width, int height, BucketListener listener, Priority priority) {
+        final RequestKey key = mLookupKey.get().set(path, width, height);
+
+        // If the LRU cache has the drawable, return it - this never blocks behind the loaders,
+        // and is served even while the bucket is paused. A caller without a listener is given the
+        // reference instead. Evicted before either got it, it's loaded again like any other miss.
+        final Drawable drawable = mLruCache.get(key);
+        if (drawable != null && (listener != null ? notifyLoaded(listener, path, drawable, width, height)
+                : PooledBitmapDrawable.acquire(drawable))) {
+            return drawable;
+        }
+
+        // Prime the LRU cache; whoever primes it schedules the load
+        final RequestKey storedKey = key.copy();
+        if (mLruCache.putIfAbsent(storedKey, null)) {
+            load(storedKey, listener, priority);
+            return null;
         }
 
-        load(path, width, height, listener);
+        // Already loading or parked - make sure it's loading soon enough
+        promote(key, priority);
+
+        // Listen for it, unless it finished while we weren't looking
+        if (listener != null) {
+            addListener(key, listener);
+
+            final Drawable loaded = mLruCache.get(key);
+            if (loaded != null && removeListener(key, listener)) {
+                if (notifyLoaded(listener, path, loaded, width, height)) {
+                    return loaded;
+                }
+                listener.onFailure(path, width, height);
+            }
+        }
 
         return null;
     }
 
+    /**
+     * Shrinks the memory cache to a fraction of its budget - its quota, on a shared engine - then
+     * the idle bitmaps and buffers in the pools. Read buffers go back to their pool as soon as
+     * each image is decoded, so trimming the pool drops the loaders' scratch buffers as well.
+     * Pools shared through an engine shrink for every bucket on it; they're all under the same
+     * pressure.
+     */
+    @Override
+    protected long onTrimMemory(float retainedFraction) {
+        final long budget = mBudgetAccount != null ? mBudgetAccount.getQuota() : mLruCache.getMaxWeight();
+        final long pooledBefore = mBitmapPool.getBytes();
+
+        // Evicted bitmaps nobody is drawing go to the bitmap pool, which is trimmed next. Only
+        // what the pool ends up without has been let go; bitmaps still drawn stay allocated.
+        mLruCache.trimToWeight((long) (budget * retainedFraction));
+        mBitmapPool.trimToSize((long) (mBitmapPool.getMaxBytes() * retainedFraction));
+        long bytes = Math.max(0, pooledBefore - mBitmapPool.getBytes());
+
+        bytes += mReadBufferPool.trimToSize((long) (mReadBufferPool.getMaxBytes() * retainedFraction));
+        bytes += (long) mBufferPool.trimIdle() * COPY_BUFFER_SIZE;
+        mRawImageLoaderPool.trimIdle();
+
+        return bytes;
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+
+        // Bitmaps nobody is drawing go back to the pool, which may be shared through the engine
+        mLruCache.trimToWeight(0);
+        if (mBudgetAccount != null) {
+            mBudgetAccount.close();
+        }
+    }
+
+    /**
+     * Only warms the memory cache, so it never returns a drawable - nobody would release it.
+     */
     @Override
     public Drawable precache(String path, int width, int height) {
-        return get(path, width, height, null);
+        PooledBitmapDrawable.release(get(path, width, height, null, Priority.PRECACHE));
+        return null;
     }
 
+    /**
+     * Only warms the disk cache, so it never returns a drawable.
+     */
     @Override
     public Drawable prefetch(String path, int width, int height) {
+        prefetchToDisk(path);
         return null;
     }
 
     @Override
-    protected Drawable loadFromDisk(String path) {
+    protected Drawable loadFromDisk(DiskCache.Snapshot snapshot) {
         // Load the bitmap
         RawImageLoader loader = null;
         try {
             loader = mRawImageLoaderPool.acquire();
-            final Bitmap inBitmap = mBitmapPool.acquire();
-            final Bitmap bitmap = loader.load(path, mConfig, inBitmap);
+            final Bitmap bitmap = loader.load(snapshot, mConfig, mBitmapPool);
 
-            // If we failed to load an image - release the bitmap
+            // If we failed to load an image - bail
             if (bitmap == null) {
-                mBitmapPool.release(inBitmap);
                 return null;
             } else {
                 // Return the drawable
-                return new BitmapDrawable(mContext.getResources(), bitmap);
+                return new PooledBitmapDrawable(mContext.getResources(), bitmap, mBitmapPool);
             }
         } catch (IOException e) {
             System.out.println("Unable to load file from disk.");
@@ -119,9 +271,8 @@ public class LruBucket extends AbstractBucket {
     }
 
     @Override
-    protected boolean saveFromWeb(String path, String localPath) {
+    protected boolean saveFromWeb(String path, OutputStream os) {
         InputStream is = null;
-        OutputStream os = null;
         byte[] buffer = null;
 
         try {
@@ -134,25 +285,12 @@ public class LruBucket extends AbstractBucket {
             // Open the HTTP input stream
             is = connection.getInputStream();
 
-            // Open the destination for writing
-            final File tempFile = File.createTempFile("img", "tmp", new File(getCachePath()));
-            os = new FileOutputStream(tempFile);
-
             // Grab a byte buffer from out pool
             buffer = mBufferPool.acquire();
 
             // Save the file
             IoUtil.copy(is, os, buffer);
 
-            // Close the streams
-            is.close();
-            os.close();
-
-            // Rename the temp file
-            if (!new File(tempFile.getAbsolutePath()).renameTo(new File(localPath))) {
-                throw new RuntimeException("Unable to move file");
-            }
-
             return true;
         } catch (IOException e) {
             return false;
@@ -170,174 +308,161 @@ public class LruBucket extends AbstractBucket {
                     Log.e("ahahah", "Error closing input stream", e);
                 }
             }
-
-            // Close the output stream
-            if (os != null) {
-                try {
-                    os.close();
-                } catch (IOException e) {
-                    Log.e("ahahah", "Error closing output stream", e);
-                }
-            }
         }
     }
 
     @Override
-    protected boolean scale(String path, int width, int height, String destination) {
-        // For now, just copy the file over
-        InputStream is = null;
-        OutputStream os = null;
-        byte[] buffer = null;
-
+    protected boolean scale(DiskCache.Snapshot source, int width, int height, OutputStream os) {
+        RawImageLoader loader = null;
         try {
-            // Open the files
-            is = new FileInputStream(path);
-            os = new FileOutputStream(destination);
-
-            // Acquire a buffer from the pool
-            buffer = mBufferPool.acquire();
-
-            // Save the file
-            IoUtil.copy(is, os, buffer);
-
-            return true;
+            loader = mRawImageLoaderPool.acquire();
+            return loader.scale(source, width, height, os);
         } catch (IOException e) {
+            Log.e(TAG, "Unable to scale image", e);
             return false;
         } finally {
-            // Release the buffer
-            if (buffer != null) {
-                mBufferPool.release(buffer);
-            }
-
-            // Close the input stream
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    Log.e("ahahah", "Error closing input stream", e);
-                }
-            }
-
-            // Close the output stream
-            if (os != null) {
-                try {
-                    os.close();
-                } catch (IOException e) {
-                    Log.e("ahahah", "Error closing output stream", e);
-                }
+            if (loader != null) {
+                mRawImageLoaderPool.release(loader);
             }
         }
     }
 
     @Override
     public void onLoaded(String path, Drawable drawable, int width, int height) {
+        onLoaded(path, drawable, width, height, false);
+    }
+
+    @Override
+    protected void onLoaded(String path, Drawable drawable, int width, int height, boolean fromNetwork) {
         // We've loaded an image - add it into the LRU cache
-        synchronized (mLoaderKey) {
-            if (drawable == null) {
-                System.out.println("derp");
-                throw new IllegalStateException("Drawable loaded and is null!");
-            }
+        if (drawable == null) {
+            throw new IllegalStateException("Drawable loaded and is null!");
+        }
 
-            mLoaderKey.updateHashCode(path, width, height);
-            if (mLruCache.containsKey(mLoaderKey)) {
-                mLruCache.put(mLoaderKey, drawable);
-            } else if (drawable != null) {
-                mBitmapPool.release(((BitmapDrawable) drawable).getBitmap());
-            }
+        // The cache keeps its own reference; the loader's goes to the listeners
+        if (!PooledBitmapDrawable.acquire(drawable)) {
+            throw new IllegalStateException("Drawable loaded and already released!");
+        }
+
+        // Index the size before it can be evicted, so the eviction always un-indexes it
+        final RequestKey key = mLookupKey.get().set(path, width, height);
+        addLoadedSize(key);
+
+        // Only if it's still wanted - the primed entry may have been evicted in the meantime
+        if (!mLruCache.replace(key, drawable, fromNetwork ? NETWORK_COST : DISK_COST)) {
+            removeLoadedSize(key);
+            PooledBitmapDrawable.release(drawable);
+        } else if (mBudgetAccount != null) {
+            // Make room across the engine's buckets, from whichever has gone coldest
+            mBudgetAccount.getBudget().balance();
         }
     }
 
     @Override
-    public void onFailure(String path, int width, int height) {
-        // TODO : austinh : Something
-        synchronized (mLoaderKey) {
-            mLoaderKey.updateHashCode(path, width, height);
-            mLruCache.remove(mLoaderKey);
-        }
+    protected boolean canDerive(String path, int width, int height) {
+        return findLargerSize(path, width, height) != null;
     }
 
-    private class LruCache extends LinkedHashMap<DrawableKey, Drawable> {
-        private final Pool<Bitmap> mBitmapPool;
-        private final int mCapacity;
+    /**
+     * Downsamples the smallest loaded size of the image that covers width x height into a pooled
+     * bitmap, so moving between a grid and a detail view doesn't decode anything.
+     */
+    @Override
+    protected Drawable derive(String path, int width, int height) {
+        final RequestKey largerKey = findLargerSize(path, width, height);
+        if (largerKey == null) {
+            return null;
+        }
 
-        private LruCache(int capacity, Pool<Bitmap> bitmapPool) {
-            super(capacity, 0.75f, true);
-            mCapacity = capacity;
-            mBitmapPool = bitmapPool;
+        // Hold it while we draw, so an eviction can't pool its bitmap and have it decoded over
+        final Drawable larger = mLruCache.get(largerKey);
+        if (larger == null || !PooledBitmapDrawable.acquire(larger)) {
+            return null;
         }
 
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<DrawableKey, Drawable> eldest) {
-            if (size() > mCapacity) {
-                final Drawable drawable = eldest.getValue();
-                if (drawable != null) {
-                    final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
-                    if (bitmap != null) {
-                        mBitmapPool.release(bitmap);
-                    }
-                }
-                return true;
-            }
+        try {
+            return derive(((BitmapDrawable) larger).getBitmap(), width, height);
+        } finally {
+            PooledBitmapDrawable.release(larger);
+        }
+    }
 
-            return false;
+    private Drawable derive(Bitmap source, int width, int height) {
+        if (source == null || source.isRecycled()) {
+            return null;
         }
+
+        // Same cover scaling as images scaled on disk
+        final float scale = BitmapUtil.getCoverScale(source.getWidth(), source.getHeight(), width, height);
+        final int scaledWidth = Math.max(1, Math.round(source.getWidth() * scale));
+        final int scaledHeight = Math.max(1, Math.round(source.getHeight() * scale));
+        final Bitmap.Config config = source.getConfig() != null ? source.getConfig() : mConfig;
+
+        final Bitmap bitmap = mBitmapPool.acquireExact(scaledWidth, scaledHeight, config);
+        new Canvas(bitmap).drawBitmap(source, null, new Rect(0, 0, scaledWidth, scaledHeight),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+
+        return new PooledBitmapDrawable(mContext.getResources(), bitmap, mBitmapPool);
     }
 
-    private static class DrawableKey {
-        private String mRemotePath;
-        private int mWidth;
-        private int mHeight;
-        private int mHashCode = -1;
+    /**
+     * @return the key of the smallest loaded size of path that's at least width x height
+     */
+    private RequestKey findLargerSize(String path, int width, int height) {
+        synchronized (mLoadedSizes) {
+            final List<RequestKey> sizes = mLoadedSizes.get(path);
+            if (sizes == null) {
+                return null;
+            }
 
-        private DrawableKey() {
-        }
+            RequestKey best = null;
+            for (int i = 0; i < sizes.size(); i++) {
+                final RequestKey key = sizes.get(i);
+                if (key.getWidth() < width || key.getHeight() < height) {
+                    continue;
+                }
 
-        private DrawableKey(String remotePath, int width, int height) {
-            mRemotePath = remotePath;
-            mWidth = width;
-            mHeight = height;
-        }
+                if (best == null || (long) key.getWidth() * key.getHeight() < (long) best.getWidth() * best.getHeight()) {
+                    best = key;
+                }
+            }
 
-        private void updateHashCode(String path, int width, int height) {
-            mRemotePath = path;
-            mWidth = width;
-            mHeight = height;
-            mHashCode = generateKeyHashCode(path, width, height);
+            return best;
         }
+    }
 
-        @Override
-        public int hashCode() {
-            if (mHashCode == -1) {
-                mHashCode = generateKeyHashCode(mRemotePath, mWidth, mHeight);
+    private void addLoadedSize(RequestKey key) {
+        synchronized (mLoadedSizes) {
+            List<RequestKey> sizes = mLoadedSizes.get(key.getPath());
+            if (sizes == null) {
+                sizes = new ArrayList<RequestKey>(2);
+                mLoadedSizes.put(key.getPath(), sizes);
             }
 
-            return mHashCode;
+            if (!sizes.contains(key)) {
+                sizes.add(key.copy());
+            }
         }
+    }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (obj == this) {
-                return true;
+    private void removeLoadedSize(RequestKey key) {
+        synchronized (mLoadedSizes) {
+            final List<RequestKey> sizes = mLoadedSizes.get(key.getPath());
+            if (sizes == null) {
+                return;
             }
 
-            if (!(obj instanceof DrawableKey)) {
-                return false;
+            sizes.remove(key);
+            if (sizes.isEmpty()) {
+                mLoadedSizes.remove(key.getPath());
             }
-
-            final DrawableKey objKey = (DrawableKey) obj;
-            return mRemotePath.equals(objKey.mRemotePath)
-                    && mWidth == objKey.mWidth
-                    && mHeight == objKey.mHeight;
         }
     }
 
-    private static int generateKeyHashCode(String remotePath, int width, int height) {
-        int hashCode = 17;
-        hashCode += 31 * hashCode + remotePath.hashCode();
-        hashCode += 31 * hashCode + width;
-        hashCode += 31 * hashCode + height;
-
-        return hashCode;
+    @Override
+    public void onFailure(String path, int width, int height) {
+        // Unprime it - the negative cache keeps the next request from hammering a broken URL
+        mLruCache.remove(mLookupKey.get().set(path, width, height));
     }
 
     private static class BufferPool extends AbstractBlockingPool<byte[]> {
@@ -355,49 +480,148 @@ public class LruBucket extends AbstractBucket {
     }
 
     private static class RawImageLoaderPool extends AbstractBlockingPool<RawImageLoader> {
-        private RawImageLoaderPool(int capacity) {
+        private final ByteArrayPool mReadBufferPool;
+
+        private RawImageLoaderPool(int capacity, ByteArrayPool readBufferPool) {
             super(capacity);
+            mReadBufferPool = readBufferPool;
         }
 
         @Override
         protected RawImageLoader produce() {
-            return new RawImageLoader();
+            return new RawImageLoader(mReadBufferPool);
         }
     }
 
+    /**
+     * Reads each image into a pooled buffer of its size class and gives the buffer back as soon
+     * as it's decoded, so an occasional large image doesn't pin a large buffer to every loader.
+     */
     private static class RawImageLoader {
         private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+        private final BitmapFactory.Options mScaleOptions = new BitmapFactory.Options();
+        private final ByteArrayPool mReadBufferPool;
         private byte[] mRawData;
         private int mLength = 0;
 
-        private RawImageLoader() {
+        private RawImageLoader(ByteArrayPool readBufferPool) {
+            mReadBufferPool = readBufferPool;
             mOptions.inMutable = true;
             mOptions.inSampleSize = 1;
+            mScaleOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
         }
 
-        public Bitmap load(String path, Bitmap.Config config, Bitmap inBitmap) throws IOException {
+        public Bitmap load(DiskCache.Snapshot snapshot, Bitmap.Config config, BitmapPool bitmapPool) throws IOException {
+            try {
+                return decode(snapshot, config, bitmapPool);
+            } finally {
+                releaseRawData();
+            }
+        }
+
+        private Bitmap decode(DiskCache.Snapshot snapshot, Bitmap.Config config, BitmapPool bitmapPool) throws IOException {
+            if (!read(snapshot) || !decodeBounds(mOptions)) {
+                return null;
+            }
+
             mOptions.inPreferredConfig = config;
-            mOptions.inBitmap = inBitmap;
+            mOptions.inBitmap = bitmapPool.acquire(mOptions.outWidth, mOptions.outHeight, config);
+
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeByteArray(mRawData, 0, mLength, mOptions);
+            } catch (IllegalArgumentException e) {
+                // The decoder refused the pooled bitmap (eg. a format it can't decode into) - decode fresh
+                bitmapPool.release(mOptions.inBitmap);
+                mOptions.inBitmap = null;
+                bitmap = BitmapFactory.decodeByteArray(mRawData, 0, mLength, mOptions);
+            }
+
+            if (bitmap == null && mOptions.inBitmap != null) {
+                bitmapPool.release(mOptions.inBitmap);
+            }
+            mOptions.inBitmap = null;
+
+            // Return the data
+            return bitmap;
+        }
+
+        /**
+         * Writes a copy of the image shrunk to just cover width x height. Decodes straight at the
+         * largest power-of-two subsample that still covers it, then scales the rest of the way.
+         */
+        public boolean scale(DiskCache.Snapshot source, int width, int height, OutputStream os) throws IOException {
+            final Bitmap sampled;
+            try {
+                if (!read(source) || !decodeBounds(mScaleOptions)) {
+                    return false;
+                }
 
-            final RandomAccessFile raf = new RandomAccessFile(path, "r");
-            if (raf.length() <= 0) {
+                mScaleOptions.inSampleSize = BitmapUtil.getSampleSize(mScaleOptions.outWidth, mScaleOptions.outHeight, width, height);
+                sampled = BitmapFactory.decodeByteArray(mRawData, 0, mLength, mScaleOptions);
+            } finally {
+                releaseRawData();
+            }
+
+            if (sampled == null) {
+                return false;
+            }
+
+            Bitmap scaled = sampled;
+            try {
+                final float scale = BitmapUtil.getCoverScale(sampled.getWidth(), sampled.getHeight(), width, height);
+                if (scale < 1f) {
+                    scaled = Bitmap.createScaledBitmap(sampled,
+                            Math.max(1, Math.round(sampled.getWidth() * scale)),
+                            Math.max(1, Math.round(sampled.getHeight() * scale)),
+                            true);
+                }
+
+                // Keep transparency if there is any, otherwise JPEG is far smaller
+                return scaled.hasAlpha()
+                        ? scaled.compress(Bitmap.CompressFormat.PNG, 100, os)
+                        : scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, os);
+            } finally {
+                // Neither came from the pool
+                if (scaled != sampled) {
+                    scaled.recycle();
+                }
+                sampled.recycle();
+            }
+        }
+
+        private boolean read(DiskCache.Snapshot snapshot) throws IOException {
+            if (snapshot.getLength() <= 0) {
                 mLength = 0;
-                return null;
+                return false;
             }
 
-            mLength = (int) raf.length();
+            mLength = (int) snapshot.getLength();
 
-            if (mRawData == null || mRawData.length < mLength) {
-                mRawData = new byte[mLength];
-            } else {
-                Arrays.fill(mRawData, mLength, mRawData.length, (byte) 0);
+            // Decoding only looks at the first mLength bytes, so the rest needn't be cleared
+            mRawData = mReadBufferPool.acquire(mLength);
+
+            // Read in the file - a single copy out of the page cache where the snapshot is mapped
+            snapshot.getBuffer().get(mRawData, 0, mLength);
+            return true;
+        }
+
+        private void releaseRawData() {
+            if (mRawData != null) {
+                mReadBufferPool.release(mRawData);
+                mRawData = null;
             }
+            mLength = 0;
+        }
 
-            // Read in the file
-            raf.readFully(mRawData, 0, mLength);
+        private boolean decodeBounds(BitmapFactory.Options options) {
+            options.inJustDecodeBounds = true;
+            options.inBitmap = null;
+            options.inSampleSize = 1;
+            BitmapFactory.decodeByteArray(mRawData, 0, mLength, options);
+            options.inJustDecodeBounds = false;
 
-            // Return the data
-            return BitmapFactory.decodeByteArray(mRawData, 0, mLength, mOptions);
+            return options.outWidth > 0 && options.outHeight > 0;
         }
     }
 }
@@ -0,0 +1,96 @@
+package com.vinci.bucket;
+
+import android.os.Handler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands completed loads to the main thread in batches: loader threads queue their notifications,
+ * and a single message per frame interval runs everything that's waiting. A batch stops once it
+ * has used up its time on the main thread and the rest go in the next frame, so a burst of
+ * completions during a fling never stalls a frame.
+ */
+/* package */ class NotifyDispatcher implements Runnable {
+    /* package */ static final long DEFAULT_FRAME_INTERVAL_MS = 16;
+    /* package */ static final long DEFAULT_MAX_BATCH_TIME_MS = 4;
+
+    private final Poster mPoster;
+    private final ConcurrentLinkedQueue<Runnable> mPending = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+    private volatile long mFrameInterval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FRAME_INTERVAL_MS);
+    private volatile long mMaxBatchTime = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_BATCH_TIME_MS);
+    private volatile long mLastBatch = System.nanoTime() - mFrameInterval;
+
+    /* package */ NotifyDispatcher(final Handler handler) {
+        this(new Poster() {
+            @Override
+            public void postDelayed(Runnable runnable, long delayMs) {
+                handler.postDelayed(runnable, delayMs);
+            }
+        });
+    }
+
+    /* package */ NotifyDispatcher(Poster poster) {
+        mPoster = poster;
+    }
+
+    /**
+     * @param frameIntervalMs the least time between batches
+     * @param maxBatchTimeMs how long a batch may run before leaving the rest to the next one
+     */
+    /* package */ void setLimits(long frameIntervalMs, long maxBatchTimeMs) {
+        if (frameIntervalMs < 0 || maxBatchTimeMs <= 0) {
+            throw new IllegalArgumentException("Invalid frame interval or batch time.");
+        }
+
+        mFrameInterval = TimeUnit.MILLISECONDS.toNanos(frameIntervalMs);
+        mMaxBatchTime = TimeUnit.MILLISECONDS.toNanos(maxBatchTimeMs);
+    }
+
+    /**
+     * Runs the notification on the main thread with the next batch. Safe from any thread.
+     */
+    /* package */ void dispatch(Runnable notification) {
+        mPending.offer(notification);
+        if (mScheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    @Override
+    public void run() {
+        final long start = System.nanoTime();
+        mLastBatch = start;
+
+        // Always at least one, so a slow listener can't starve the queue
+        Runnable notification;
+        while ((notification = mPending.poll()) != null) {
+            notification.run();
+
+            if (System.nanoTime() - start >= mMaxBatchTime) {
+                break;
+            }
+        }
+
+        // Anything queued after the last poll saw mScheduled still set, so it's ours to schedule
+        mScheduled.set(false);
+        if (!mPending.isEmpty() && mScheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        // Line up with the previous batch, so there's at most one a frame
+        final long wait = mLastBatch + mFrameInterval - System.nanoTime();
+        mPoster.postDelayed(this, Math.max(0, TimeUnit.NANOSECONDS.toMillis(wait)));
+    }
+
+    /**
+     * Where batches are posted - the main thread's {@link Handler}, whose methods are final.
+     */
+    /* package */ interface Poster {
+        void postDelayed(Runnable runnable, long delayMs);
+    }
+}
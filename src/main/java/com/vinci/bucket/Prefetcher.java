@@ -0,0 +1,275 @@
+package com.vinci.bucket;
+
+import android.util.Log;
+
+import com.vinci.disk.DiskCache;
+import com.vinci.scheduler.Priority;
+import com.vinci.scheduler.RequestScheduler;
+import com.vinci.util.RateLimiter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Warms the disk cache in the background: downloads source images without decoding them, at
+ * {@link Priority#PREFETCH} on the bucket's network scheduler, a few at a time and within a byte
+ * rate. A download gives way - it's aborted and retried later - as soon as a visible or precache
+ * request is waiting for a network thread.
+ */
+/* package */ class Prefetcher {
+    private static final String TAG = Prefetcher.class.getSimpleName();
+    /* package */ static final int DEFAULT_MAX_CONCURRENT = 2;
+    /* package */ static final long DEFAULT_BYTES_PER_SECOND = 512 * 1024;
+    private static final int MAX_PENDING = 256;
+
+    private final AbstractBucket mBucket;
+    private final DiskCache mDiskCache;
+    private final RequestScheduler mScheduler;
+    private final RateLimiter mRateLimiter = new RateLimiter(DEFAULT_BYTES_PER_SECOND);
+    private final ArrayDeque<PrefetchJob> mPending = new ArrayDeque<PrefetchJob>();
+    private final Map<String, PrefetchJob> mJobs = new HashMap<String, PrefetchJob>();
+    private final Set<String> mWriting = new HashSet<String>();
+    private int mMaxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private int mRunning = 0;
+
+    /* package */ Prefetcher(AbstractBucket bucket, DiskCache diskCache, RequestScheduler scheduler) {
+        mBucket = bucket;
+        mDiskCache = diskCache;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * @param maxConcurrent how many prefetch downloads may run at once
+     * @param bytesPerSecond the combined download rate of prefetches, or 0 for no limit
+     */
+    /* package */ void setLimits(int maxConcurrent, long bytesPerSecond) {
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("Invalid concurrency.");
+        }
+
+        mRateLimiter.setRate(bytesPerSecond);
+        synchronized (this) {
+            mMaxConcurrent = maxConcurrent;
+        }
+        startNext();
+    }
+
+    /* package */ void prefetch(String path) {
+        final String key = new RequestKey(path, RequestKey.NO_SIZE, RequestKey.NO_SIZE).getSourceFilename();
+        if (mDiskCache.contains(key) || mBucket.getNegativeCache().isSuppressed(path)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mJobs.containsKey(path)) {
+                return;
+            }
+
+            // Feeds ask for the next page in order, so the oldest waiting prefetch gives way
+            if (mPending.size() >= MAX_PENDING) {
+                mJobs.remove(mPending.pollFirst().mPath);
+            }
+
+            final PrefetchJob job = new PrefetchJob(path, key);
+            mJobs.put(path, job);
+            mPending.addLast(job);
+        }
+
+        startNext();
+    }
+
+    /**
+     * Stops prefetching path, eg. because a foreground load is about to download it.
+     */
+    /* package */ void cancel(String path) {
+        synchronized (this) {
+            final PrefetchJob job = mJobs.remove(path);
+            if (job == null) {
+                return;
+            }
+
+            job.mCancelled = true;
+            mPending.remove(job);
+        }
+    }
+
+    /**
+     * Stops every prefetch, eg. because the bucket is being destroyed. Running downloads are
+     * aborted at their next write.
+     */
+    /* package */ void cancelAll() {
+        synchronized (this) {
+            for (PrefetchJob job : mJobs.values()) {
+                job.mCancelled = true;
+            }
+            mJobs.clear();
+            mPending.clear();
+        }
+    }
+
+    /**
+     * Waits until no prefetch is writing path to the disk cache. A cancelled prefetch lets go of
+     * the entry at its next write.
+     */
+    /* package */ synchronized void awaitWrite(String path) {
+        try {
+            while (mWriting.contains(path)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* package */ synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    private void startNext() {
+        while (true) {
+            final PrefetchJob job;
+            synchronized (this) {
+                if (mRunning >= mMaxConcurrent || mPending.isEmpty()) {
+                    return;
+                }
+
+                job = mPending.pollFirst();
+                mRunning++;
+            }
+
+            mScheduler.schedule(job, Priority.PREFETCH);
+        }
+    }
+
+    private void finish(PrefetchJob job, boolean retry) {
+        synchronized (this) {
+            mRunning--;
+            if (retry && !job.mCancelled) {
+                mPending.addFirst(job);
+            } else if (mJobs.get(job.mPath) == job) {
+                mJobs.remove(job.mPath);
+            }
+        }
+
+        startNext();
+    }
+
+    private boolean isForegroundQueued() {
+        return mScheduler.getQueuedCount(Priority.VISIBLE) > 0 || mScheduler.getQueuedCount(Priority.PRECACHE) > 0;
+    }
+
+    private class PrefetchJob implements RequestScheduler.Job {
+        private final String mPath;
+        private final String mKey;
+        private volatile boolean mCancelled = false;
+
+        private PrefetchJob(String path, String key) {
+            mPath = path;
+            mKey = key;
+        }
+
+        @Override
+        public void run(RequestScheduler.Task task) {
+            // Already there, or a foreground request got in first
+            if (mCancelled || mDiskCache.contains(mKey)) {
+                finish(this, false);
+                return;
+            }
+
+            if (isForegroundQueued()) {
+                finish(this, true);
+                return;
+            }
+
+            boolean yielded = false;
+            try {
+                final DiskCache.Editor editor = mDiskCache.edit(mKey);
+                if (editor == null) {
+                    // Somebody else is writing it
+                    finish(this, false);
+                    return;
+                }
+
+                synchronized (Prefetcher.this) {
+                    mWriting.add(mPath);
+                }
+
+                boolean committed = false;
+                try {
+                    final ThrottledOutputStream os = new ThrottledOutputStream(editor.newOutputStream());
+                    final boolean saved = mBucket.saveFromWeb(mPath, os);
+                    if (saved && !os.mYielded) {
+                        editor.commit();
+                        committed = true;
+                        mBucket.getNegativeCache().onSuccess(mPath);
+                    } else if (!os.mYielded) {
+                        mBucket.getNegativeCache().onFailure(mPath);
+                    }
+                    yielded = os.mYielded;
+                } finally {
+                    if (!committed) {
+                        editor.abort();
+                    }
+
+                    synchronized (Prefetcher.this) {
+                        mWriting.remove(mPath);
+                        Prefetcher.this.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, String.format("Error prefetching! %s", mPath), e);
+            }
+
+            finish(this, yielded);
+        }
+
+        @Override
+        public void onDropped(RequestScheduler.Task task) {
+            finish(this, false);
+        }
+
+        /**
+         * Holds writes to the rate, and fails them once the download should give way.
+         */
+        private class ThrottledOutputStream extends FilterOutputStream {
+            private boolean mYielded = false;
+
+            private ThrottledOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                throttle(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                throttle(count);
+                out.write(buffer, offset, count);
+            }
+
+            private void throttle(int count) throws IOException {
+                if (mCancelled || isForegroundQueued()) {
+                    mYielded = true;
+                    throw new IOException("Prefetch yielded");
+                }
+
+                try {
+                    mRateLimiter.acquire(count);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+}
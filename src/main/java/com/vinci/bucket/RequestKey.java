@@ -0,0 +1,295 @@
+package com.vinci.bucket;
+
+/**
+ * Identifies a request for an image at a size: the remote path, its 128-bit Murmur3 hash, and the
+ * width and height. The same key indexes the memory cache, de-duplicates loaders and names the
+ * disk cache entries, so the path is only hashed once per request.
+ *
+ * Keys are mutable so lookups can reuse a thread-local instance; keys stored in a collection
+ * must be {@link #copy() copies} that are never changed afterwards.
+ */
+public final class RequestKey {
+    /* package */ static final int NO_SIZE = -1;
+
+    private static final String EXTENSION = ".jpg";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final ThreadLocal<char[]> FILENAME_BUFFER = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            // 32 hex digits, "-" width "x" height, extension
+            return new char[32 + 1 + 11 + 1 + 11 + EXTENSION.length()];
+        }
+    };
+
+    private String mPath;
+    private int mWidth;
+    private int mHeight;
+    private long mHashHigh;
+    private long mHashLow;
+    private String mFilename;
+    private String mSourceFilename;
+
+    public RequestKey() {
+    }
+
+    public RequestKey(String path, int width, int height) {
+        set(path, width, height);
+    }
+
+    /**
+     * Points the key at another request. Only for keys that aren't stored anywhere.
+     */
+    public RequestKey set(String path, int width, int height) {
+        if (path == null) {
+            throw new IllegalArgumentException("Invalid remote path.");
+        }
+
+        // Re-hash only when the path changed - reused lookup keys often see the same one again
+        if (mPath == null || !mPath.equals(path)) {
+            hash(path);
+            mFilename = null;
+            mSourceFilename = null;
+        } else if (mWidth != width || mHeight != height) {
+            mFilename = null;
+        }
+
+        mPath = path;
+        mWidth = width;
+        mHeight = height;
+
+        return this;
+    }
+
+    /**
+     * Points the key at the same request as another, keeping its hash and any filenames it has
+     * already rendered. Only for keys that aren't stored anywhere, eg. a recycled loader's.
+     */
+    public RequestKey set(RequestKey other) {
+        mPath = other.mPath;
+        mWidth = other.mWidth;
+        mHeight = other.mHeight;
+        mHashHigh = other.mHashHigh;
+        mHashLow = other.mHashLow;
+        mFilename = other.mFilename;
+        mSourceFilename = other.mSourceFilename;
+
+        return this;
+    }
+
+    public RequestKey copy() {
+        return new RequestKey().set(this);
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getHashHigh() {
+        return mHashHigh;
+    }
+
+    public long getHashLow() {
+        return mHashLow;
+    }
+
+    /**
+     * @return the disk cache key of the image at this size, eg.
+     *         {@code 0123456789abcdef0123456789abcdef-100x100.jpg}
+     */
+    public String getFilename() {
+        if (mFilename == null) {
+            mFilename = renderFilename(mWidth, mHeight);
+        }
+
+        return mFilename;
+    }
+
+    /**
+     * @return the disk cache key of the image as downloaded, eg.
+     *         {@code 0123456789abcdef0123456789abcdef.jpg}
+     */
+    public String getSourceFilename() {
+        if (mSourceFilename == null) {
+            mSourceFilename = renderFilename(NO_SIZE, NO_SIZE);
+        }
+
+        return mSourceFilename;
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = (int) (mHashLow ^ (mHashLow >>> 32));
+        hashCode = 31 * hashCode + mWidth;
+        hashCode = 31 * hashCode + mHeight;
+
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+
+        if (!(obj instanceof RequestKey)) {
+            return false;
+        }
+
+        // The hashes settle almost every comparison; the path makes it exact
+        final RequestKey objKey = (RequestKey) obj;
+        return mHashLow == objKey.mHashLow
+                && mHashHigh == objKey.mHashHigh
+                && mWidth == objKey.mWidth
+                && mHeight == objKey.mHeight
+                && mPath.equals(objKey.mPath);
+    }
+
+    @Override
+    public String toString() {
+        return "RequestKey{" +
+                "mPath='" + mPath + '\'' +
+                ", mWidth=" + mWidth +
+                ", mHeight=" + mHeight +
+                '}';
+    }
+
+    private String renderFilename(int width, int height) {
+        final char[] buffer = FILENAME_BUFFER.get();
+        int length = appendHex(buffer, 0, mHashHigh);
+        length = appendHex(buffer, length, mHashLow);
+        if (width != NO_SIZE || height != NO_SIZE) {
+            buffer[length++] = '-';
+            length = appendInt(buffer, length, width);
+            buffer[length++] = 'x';
+            length = appendInt(buffer, length, height);
+        }
+        EXTENSION.getChars(0, EXTENSION.length(), buffer, length);
+        length += EXTENSION.length();
+
+        return new String(buffer, 0, length);
+    }
+
+    private static int appendHex(char[] buffer, int offset, long value) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buffer[offset++] = HEX_DIGITS[(int) (value >>> shift) & 0xf];
+        }
+
+        return offset;
+    }
+
+    private static int appendInt(char[] buffer, int offset, long value) {
+        if (value < 0) {
+            buffer[offset++] = '_';
+            value = -value;
+        }
+
+        final int start = offset;
+        do {
+            buffer[offset++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        // Digits went in backwards
+        for (int i = start, j = offset - 1; i < j; i++, j--) {
+            final char c = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = c;
+        }
+
+        return offset;
+    }
+
+    /**
+     * MurmurHash3 x64 128 of the path's UTF-16LE code units, read straight from the string.
+     */
+    private void hash(String path) {
+        final int length = path.length();
+        final int blocks = length / 8;
+        long h1 = 0;
+        long h2 = 0;
+
+        for (int i = 0; i < blocks; i++) {
+            final int offset = i * 8;
+            long k1 = chars(path, offset, 4);
+            long k2 = chars(path, offset + 4, 4);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        final int tail = blocks * 8;
+        final int remaining = length - tail;
+        if (remaining > 0) {
+            long k1 = chars(path, tail, Math.min(remaining, 4));
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+        if (remaining > 4) {
+            long k2 = chars(path, tail + 4, remaining - 4);
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+
+        final long bytes = (long) length * 2;
+        h1 ^= bytes;
+        h2 ^= bytes;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        mHashHigh = h1;
+        mHashLow = h2;
+    }
+
+    /**
+     * @return count chars from offset packed little-endian into a long
+     */
+    private static long chars(String path, int offset, int count) {
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            value |= (long) path.charAt(offset + i) << (16 * i);
+        }
+
+        return value;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+
+        return k;
+    }
+}
@@ -0,0 +1,46 @@
+package com.vinci.cache;
+
+/**
+ * Decides which entry a {@link MemoryCache} gives up when it's over budget. The cache owns the
+ * values; a policy only tracks keys and whatever bookkeeping it needs to rank them.
+ *
+ * Policies are driven under the cache's lock and don't need to be thread-safe.
+ */
+public interface EvictionPolicy<K> {
+    /**
+     * Called once when the policy is attached to a cache, and whenever its budget changes.
+     */
+    void setMaxWeight(long maxWeight);
+
+    /**
+     * A new entry was added.
+     *
+     * @param weight the entry's weight, as reported by the cache's {@link Weigher}
+     * @param cost the relative cost of loading the entry again should it be evicted
+     */
+    void onInsert(K key, int weight, int cost);
+
+    /**
+     * An existing entry's value was replaced.
+     */
+    void onUpdate(K key, int weight, int cost);
+
+    /**
+     * An entry was read.
+     */
+    void onAccess(K key);
+
+    /**
+     * An entry left the cache, either explicitly or as a victim.
+     */
+    void onRemove(K key);
+
+    /**
+     * Picks the next entry to evict. Returning the most recently inserted entry rejects it, which is
+     * how admission policies turn away one-hit wonders. Only called while the policy tracks at least
+     * one entry; the cache follows up with {@link #onRemove(Object)}.
+     */
+    K selectVictim();
+
+    void clear();
+}
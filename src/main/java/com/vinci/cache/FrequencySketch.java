@@ -0,0 +1,96 @@
+package com.vinci.cache;
+
+/**
+ * Count-min sketch estimating how often keys have been seen recently. Counters saturate at 15 and
+ * are halved once the number of recorded events reaches ten times the sketch width, so old
+ * popularity fades.
+ */
+/* package */ final class FrequencySketch<K> {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int MIN_WIDTH = 16;
+    private static final int RESET_MULTIPLIER = 10;
+    private static final int[] SEEDS = { 0x97cb3127, 0xb492b66f, 0x9ae16a3b, 0xc3a5c85c };
+
+    private byte[] mTable;
+    private int mWidth;
+    private int mSize;
+    private int mSampleSize;
+
+    /* package */ FrequencySketch() {
+        ensureCapacity(MIN_WIDTH);
+    }
+
+    /**
+     * Grows the sketch to suit the given number of entries, keeping the counts seen so far.
+     */
+    /* package */ void ensureCapacity(int entries) {
+        final int width = Math.max(MIN_WIDTH, Integer.highestOneBit(Math.max(1, entries) - 1) << 1);
+        if (mTable != null && width <= mWidth) {
+            return;
+        }
+
+        // A key's index in a wider row only gains high bits, so every counter a counter splits
+        // into starts out with its count
+        final byte[] table = new byte[DEPTH * width];
+        if (mTable != null) {
+            for (int depth = 0; depth < DEPTH; depth++) {
+                for (int i = 0; i < width; i++) {
+                    table[depth * width + i] = mTable[depth * mWidth + (i & (mWidth - 1))];
+                }
+            }
+        }
+
+        mWidth = width;
+        mTable = table;
+        mSampleSize = RESET_MULTIPLIER * width;
+    }
+
+    /* package */ int frequency(K key) {
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, mTable[indexOf(hash, i)]);
+        }
+
+        return frequency;
+    }
+
+    /* package */ void increment(K key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            final int index = indexOf(hash, i);
+            if (mTable[index] < MAX_COUNT) {
+                mTable[index]++;
+                added = true;
+            }
+        }
+
+        if (added && ++mSize >= mSampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (byte) (mTable[i] >>> 1);
+        }
+        mSize /= 2;
+    }
+
+    private int indexOf(int hash, int depth) {
+        int h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h ^= h >>> 16;
+        return depth * mWidth + (h & (mWidth - 1));
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xed5ad4bb;
+        hash ^= hash >>> 11;
+        hash *= 0xac4c1b51;
+        hash ^= hash >>> 15;
+        return hash;
+    }
+}
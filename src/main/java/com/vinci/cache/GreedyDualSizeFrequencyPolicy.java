@@ -0,0 +1,100 @@
+package com.vinci.cache;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * GreedyDual-Size-Frequency. Each entry is ranked by
+ * {@code inflation + frequency * cost / weight} and the lowest ranked entry is evicted. Cheap to
+ * reload, large and rarely used entries go first; an image that has to come back over the network
+ * outlives a same-sized one that is still on disk. The inflation value rises to the priority of
+ * every victim, so entries that stop being used eventually age out.
+ */
+public class GreedyDualSizeFrequencyPolicy<K> implements EvictionPolicy<K> {
+    private final HashMap<K, Node<K>> mNodes = new HashMap<K, Node<K>>();
+    private final TreeSet<Node<K>> mQueue = new TreeSet<Node<K>>(new Comparator<Node<K>>() {
+        @Override
+        public int compare(Node<K> lhs, Node<K> rhs) {
+            if (lhs.mPriority != rhs.mPriority) {
+                return lhs.mPriority < rhs.mPriority ? -1 : 1;
+            }
+
+            return lhs.mSequence < rhs.mSequence ? -1 : (lhs.mSequence == rhs.mSequence ? 0 : 1);
+        }
+    });
+    private double mInflation = 0;
+    private long mSequence = 0;
+
+    @Override
+    public void setMaxWeight(long maxWeight) {
+    }
+
+    @Override
+    public void onInsert(K key, int weight, int cost) {
+        final Node<K> node = new Node<K>(key);
+        node.mWeight = weight;
+        node.mCost = cost;
+        mNodes.put(key, node);
+        enqueue(node);
+    }
+
+    @Override
+    public void onUpdate(K key, int weight, int cost) {
+        final Node<K> node = mNodes.get(key);
+        mQueue.remove(node);
+        node.mWeight = weight;
+        node.mCost = cost;
+        node.mFrequency++;
+        enqueue(node);
+    }
+
+    @Override
+    public void onAccess(K key) {
+        final Node<K> node = mNodes.get(key);
+        mQueue.remove(node);
+        node.mFrequency++;
+        enqueue(node);
+    }
+
+    @Override
+    public void onRemove(K key) {
+        final Node<K> node = mNodes.remove(key);
+        if (node != null) {
+            mQueue.remove(node);
+        }
+    }
+
+    @Override
+    public K selectVictim() {
+        final Node<K> victim = mQueue.first();
+        mInflation = victim.mPriority;
+        return victim.mKey;
+    }
+
+    @Override
+    public void clear() {
+        mNodes.clear();
+        mQueue.clear();
+        mInflation = 0;
+    }
+
+    private void enqueue(Node<K> node) {
+        node.mPriority = mInflation + (double) node.mFrequency * Math.max(1, node.mCost) / Math.max(1, node.mWeight);
+        node.mSequence = mSequence++;
+        mQueue.add(node);
+    }
+
+    private static final class Node<K> {
+        private final K mKey;
+        private int mWeight;
+        private int mCost;
+        private int mFrequency = 1;
+        private double mPriority;
+        private long mSequence;
+
+        private Node(K key) {
+            mKey = key;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.vinci.cache;
+
+/**
+ * Minimal intrusive doubly linked list of policy nodes - O(1) access to both ends and O(1) unlinking,
+ * which LinkedHashMap can't offer for the tail.
+ */
+/* package */ final class LinkedDeque<K> {
+    private Node<K> mHead;
+    private Node<K> mTail;
+    private int mSize = 0;
+    private long mWeight = 0;
+
+    /* package */ void addLast(Node<K> node) {
+        node.mPrev = mTail;
+        node.mNext = null;
+        if (mTail == null) {
+            mHead = node;
+        } else {
+            mTail.mNext = node;
+        }
+        mTail = node;
+        mSize++;
+        mWeight += node.mWeight;
+    }
+
+    /* package */ void remove(Node<K> node) {
+        if (node.mPrev == null) {
+            mHead = node.mNext;
+        } else {
+            node.mPrev.mNext = node.mNext;
+        }
+
+        if (node.mNext == null) {
+            mTail = node.mPrev;
+        } else {
+            node.mNext.mPrev = node.mPrev;
+        }
+
+        node.mPrev = null;
+        node.mNext = null;
+        mSize--;
+        mWeight -= node.mWeight;
+    }
+
+    /* package */ void moveToLast(Node<K> node) {
+        if (node != mTail) {
+            remove(node);
+            addLast(node);
+        }
+    }
+
+    /* package */ void setWeight(Node<K> node, int weight) {
+        mWeight += weight - node.mWeight;
+        node.mWeight = weight;
+    }
+
+    /* package */ Node<K> peekFirst() {
+        return mHead;
+    }
+
+    /* package */ Node<K> peekLast() {
+        return mTail;
+    }
+
+    /* package */ int size() {
+        return mSize;
+    }
+
+    /* package */ long getWeight() {
+        return mWeight;
+    }
+
+    /* package */ void clear() {
+        mHead = null;
+        mTail = null;
+        mSize = 0;
+        mWeight = 0;
+    }
+
+    /* package */ static final class Node<K> {
+        /* package */ final K mKey;
+        /* package */ int mWeight;
+        /* package */ int mSegment;
+        private Node<K> mPrev;
+        private Node<K> mNext;
+
+        /* package */ Node(K key, int weight) {
+            mKey = key;
+            mWeight = weight;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.vinci.cache;
+
+import java.util.HashMap;
+
+/**
+ * Least recently used - the default policy.
+ */
+public class LruPolicy<K> implements EvictionPolicy<K> {
+    private final HashMap<K, LinkedDeque.Node<K>> mNodes = new HashMap<K, LinkedDeque.Node<K>>();
+    private final LinkedDeque<K> mDeque = new LinkedDeque<K>();
+
+    @Override
+    public void setMaxWeight(long maxWeight) {
+    }
+
+    @Override
+    public void onInsert(K key, int weight, int cost) {
+        final LinkedDeque.Node<K> node = new LinkedDeque.Node<K>(key, weight);
+        mNodes.put(key, node);
+        mDeque.addLast(node);
+    }
+
+    @Override
+    public void onUpdate(K key, int weight, int cost) {
+        final LinkedDeque.Node<K> node = mNodes.get(key);
+        mDeque.setWeight(node, weight);
+        mDeque.moveToLast(node);
+    }
+
+    @Override
+    public void onAccess(K key) {
+        mDeque.moveToLast(mNodes.get(key));
+    }
+
+    @Override
+    public void onRemove(K key) {
+        final LinkedDeque.Node<K> node = mNodes.remove(key);
+        if (node != null) {
+            mDeque.remove(node);
+        }
+    }
+
+    @Override
+    public K selectVictim() {
+        return mDeque.peekFirst().mKey;
+    }
+
+    @Override
+    public void clear() {
+        mNodes.clear();
+        mDeque.clear();
+    }
+}
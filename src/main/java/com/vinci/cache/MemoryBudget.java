@@ -0,0 +1,171 @@
+package com.vinci.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One byte budget shared by several memory caches. Each cache is guaranteed a share of the budget
+ * in proportion to its weight, and may grow past it into whatever the others leave unused. Once
+ * the caches together are over budget, the ones over their share give memory back, coldest
+ * first - so a bucket nobody has looked at for a while yields to the one being scrolled.
+ *
+ * Caches must be weighed in bytes, and each should be capped at the whole budget.
+ */
+public class MemoryBudget {
+    private final long mMaxBytes;
+    private final List<Account> mAccounts = new ArrayList<Account>();
+    private int mTotalShares = 0;
+
+    public MemoryBudget(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid budget.");
+        }
+
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param shares the cache's weight against the other caches' when the budget is split
+     */
+    public synchronized Account register(MemoryCache<?, ?> cache, int shares) {
+        if (shares <= 0) {
+            throw new IllegalArgumentException("Invalid shares.");
+        }
+
+        final Account account = new Account(cache, shares);
+        mAccounts.add(account);
+        mTotalShares += shares;
+        return account;
+    }
+
+    /**
+     * Trims the coldest caches that are over their share until all of them fit the budget. Call
+     * after a cache grows.
+     *
+     * @return the bytes evicted
+     */
+    public synchronized long balance() {
+        final long now = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < mAccounts.size(); i++) {
+            final Account account = mAccounts.get(i);
+            account.sample(now);
+            bytes += account.mCache.getWeight();
+        }
+
+        long evicted = 0;
+        while (bytes > mMaxBytes) {
+            final Account coldest = findColdestOverQuota();
+            if (coldest == null) {
+                break;
+            }
+
+            final long weight = coldest.mCache.getWeight();
+            final long excess = Math.min(bytes - mMaxBytes, weight - getQuota(coldest));
+            final long trimmed = coldest.mCache.trimToWeight(weight - excess);
+            if (trimmed <= 0) {
+                break;
+            }
+
+            bytes -= trimmed;
+            evicted += trimmed;
+        }
+
+        return evicted;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized long getBytes() {
+        long bytes = 0;
+        for (int i = 0; i < mAccounts.size(); i++) {
+            bytes += mAccounts.get(i).mCache.getWeight();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Called with this held.
+     */
+    private Account findColdestOverQuota() {
+        Account coldest = null;
+        for (int i = 0; i < mAccounts.size(); i++) {
+            final Account account = mAccounts.get(i);
+            if (account.mCache.getWeight() <= getQuota(account)) {
+                continue;
+            }
+
+            if (coldest == null || account.mLastActive - coldest.mLastActive < 0) {
+                coldest = account;
+            }
+        }
+
+        return coldest;
+    }
+
+    /**
+     * Called with this held.
+     */
+    private long getQuota(Account account) {
+        return mMaxBytes / mTotalShares * account.mShares;
+    }
+
+    /**
+     * A cache's part in the budget.
+     */
+    public final class Account {
+        private final MemoryCache<?, ?> mCache;
+        private final int mShares;
+        private long mRequests;
+        private long mLastActive;
+
+        private Account(MemoryCache<?, ?> cache, int shares) {
+            mCache = cache;
+            mShares = shares;
+            mRequests = getRequests();
+            mLastActive = System.nanoTime();
+        }
+
+        /**
+         * @return the bytes the cache is guaranteed however busy the others are
+         */
+        public long getQuota() {
+            synchronized (MemoryBudget.this) {
+                return MemoryBudget.this.getQuota(this);
+            }
+        }
+
+        public MemoryBudget getBudget() {
+            return MemoryBudget.this;
+        }
+
+        /**
+         * Leaves the budget, eg. when the bucket is destroyed. The others' quotas grow.
+         */
+        public void close() {
+            synchronized (MemoryBudget.this) {
+                if (mAccounts.remove(this)) {
+                    mTotalShares -= mShares;
+                }
+            }
+        }
+
+        /**
+         * A cache is as warm as its last lookup - read off its counters, so lookups pay nothing.
+         */
+        private void sample(long now) {
+            final long requests = getRequests();
+            if (requests != mRequests) {
+                mRequests = requests;
+                mLastActive = now;
+            }
+        }
+
+        private long getRequests() {
+            return mCache.getHitCount() + mCache.getMissCount();
+        }
+    }
+}
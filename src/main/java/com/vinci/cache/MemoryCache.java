@@ -0,0 +1,298 @@
+package com.vinci.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe cache bounded by the total weight of its values. Which entries go when it's over
+ * budget is up to its {@link EvictionPolicy}; {@link LruPolicy} by default.
+ *
+ * Reads never lock. Values live in a {@link ConcurrentHashMap}, and each hit is recorded in a
+ * striped {@link ReadBuffer} that is replayed into the policy in batches by whichever thread next
+ * holds the eviction lock - a writer, or a reader that finds the lock free. Writes and the policy
+ * itself are serialized by that lock.
+ *
+ * Keys of new entries must not change afterwards; lookups, replacements and removals may use a
+ * reusable key instance.
+ */
+public class MemoryCache<K, V> {
+    public static final int DEFAULT_COST = 1;
+
+    private final ConcurrentHashMap<K, Entry<K, V>> mMap = new ConcurrentHashMap<K, Entry<K, V>>();
+    private final ReentrantLock mEvictionLock = new ReentrantLock();
+    private final ReadBuffer<Entry<K, V>> mReadBuffer = new ReadBuffer<Entry<K, V>>();
+    private final ReadBuffer.Consumer<Entry<K, V>> mAccessReplay = new ReadBuffer.Consumer<Entry<K, V>>() {
+        @Override
+        public void accept(Entry<K, V> entry) {
+            // Skip reads of entries that have since been replaced or removed
+            if (mMap.get(entry.mKey) == entry) {
+                mPolicy.onAccess(entry.mKey);
+            }
+        }
+    };
+    private final Weigher<? super V> mWeigher;
+    private final EvictionPolicy<? super K> mPolicy;
+    private final EvictionListener<K, V> mEvictionListener;
+    private volatile long mMaxWeight;
+    private volatile long mWeight = 0;
+    private long mEvictions = 0;
+
+    public MemoryCache(long maxWeight, Weigher<? super V> weigher, EvictionListener<K, V> evictionListener) {
+        this(maxWeight, weigher, new LruPolicy<K>(), evictionListener);
+    }
+
+    public MemoryCache(long maxWeight, Weigher<? super V> weigher, EvictionPolicy<? super K> policy,
+                       EvictionListener<K, V> evictionListener) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("Invalid max weight.");
+        }
+
+        mMaxWeight = maxWeight;
+        mWeigher = weigher;
+        mPolicy = policy;
+        mEvictionListener = evictionListener;
+        mPolicy.setMaxWeight(maxWeight);
+    }
+
+    public boolean containsKey(K key) {
+        return mMap.containsKey(key);
+    }
+
+    public V get(K key) {
+        final Entry<K, V> entry = mMap.get(key);
+        if (entry == null || entry.mValue == null) {
+            mReadBuffer.miss();
+            return null;
+        }
+
+        mReadBuffer.hit();
+        if (mReadBuffer.offer(entry) >= ReadBuffer.DRAIN_THRESHOLD) {
+            tryDrainReads();
+        }
+
+        return entry.mValue;
+    }
+
+    public V put(K key, V value) {
+        return put(key, value, DEFAULT_COST);
+    }
+
+    /**
+     * @param cost the relative cost of loading the value again, for cost-aware policies
+     */
+    public V put(K key, V value, int cost) {
+        final Entry<K, V> previous;
+        mEvictionLock.lock();
+        try {
+            previous = putLocked(key, value, cost);
+        } finally {
+            mEvictionLock.unlock();
+        }
+
+        return previous != null ? previous.mValue : null;
+    }
+
+    /**
+     * Adds an entry only if there's none for the key yet.
+     *
+     * @return true if the entry was added
+     */
+    public boolean putIfAbsent(K key, V value) {
+        if (mMap.containsKey(key)) {
+            return false;
+        }
+
+        mEvictionLock.lock();
+        try {
+            if (mMap.containsKey(key)) {
+                return false;
+            }
+
+            putLocked(key, value, DEFAULT_COST);
+            return true;
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the value of an entry only if there is one for the key.
+     *
+     * @return true if the value was replaced
+     */
+    public boolean replace(K key, V value, int cost) {
+        mEvictionLock.lock();
+        try {
+            if (!mMap.containsKey(key)) {
+                return false;
+            }
+
+            putLocked(key, value, cost);
+            return true;
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    public V remove(K key) {
+        mEvictionLock.lock();
+        try {
+            final Entry<K, V> previous = mMap.remove(key);
+            if (previous == null) {
+                return null;
+            }
+
+            mWeight -= previous.mWeight;
+            mPolicy.onRemove(previous.mKey);
+
+            return previous.mValue;
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts entries picked by the policy until the total weight is at most maxWeight.
+     *
+     * @return the weight that was evicted
+     */
+    public long trimToWeight(long maxWeight) {
+        mEvictionLock.lock();
+        try {
+            return trimLocked(maxWeight);
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    public void setMaxWeight(long maxWeight) {
+        mEvictionLock.lock();
+        try {
+            mMaxWeight = maxWeight;
+            mPolicy.setMaxWeight(maxWeight);
+            trimLocked(maxWeight);
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    public long getMaxWeight() {
+        return mMaxWeight;
+    }
+
+    public long getWeight() {
+        return mWeight;
+    }
+
+    public int size() {
+        return mMap.size();
+    }
+
+    public long getHitCount() {
+        return mReadBuffer.getHitCount();
+    }
+
+    public long getMissCount() {
+        return mReadBuffer.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        mEvictionLock.lock();
+        try {
+            return mEvictions;
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    private void tryDrainReads() {
+        if (mEvictionLock.tryLock()) {
+            try {
+                mReadBuffer.drain(mAccessReplay);
+            } finally {
+                mEvictionLock.unlock();
+            }
+        }
+    }
+
+    private Entry<K, V> putLocked(K key, V value, int cost) {
+        // Bring the policy up to date so the new entry's victim choice sees recent reads
+        mReadBuffer.drain(mAccessReplay);
+
+        // Keep the key instance we already hold - callers may look up with a reusable key
+        final Entry<K, V> existing = mMap.get(key);
+        final K storedKey = existing != null ? existing.mKey : key;
+
+        final int weight = weigh(value);
+        final Entry<K, V> previous = mMap.put(storedKey, new Entry<K, V>(storedKey, value, weight));
+        mWeight += weight;
+        if (previous == null) {
+            mPolicy.onInsert(storedKey, weight, cost);
+        } else {
+            mWeight -= previous.mWeight;
+            mPolicy.onUpdate(storedKey, weight, cost);
+            if (previous.mValue != null && previous.mValue != value) {
+                notifyEvicted(storedKey, previous.mValue);
+            }
+        }
+
+        trimLocked(mMaxWeight);
+
+        return previous;
+    }
+
+    @SuppressWarnings("unchecked")
+    private long trimLocked(long maxWeight) {
+        final long before = mWeight;
+        while (mWeight > maxWeight && !mMap.isEmpty()) {
+            final K victim = (K) mPolicy.selectVictim();
+            final Entry<K, V> entry = mMap.remove(victim);
+            mPolicy.onRemove(victim);
+            if (entry == null) {
+                throw new IllegalStateException("Policy selected an unknown victim: " + victim);
+            }
+
+            mWeight -= entry.mWeight;
+            mEvictions++;
+            if (entry.mValue != null) {
+                notifyEvicted(victim, entry.mValue);
+            }
+        }
+
+        return before - mWeight;
+    }
+
+    private int weigh(V value) {
+        final int weight = mWeigher.weigh(value);
+        if (weight < 0) {
+            throw new IllegalStateException("Negative weight: " + value);
+        }
+
+        return weight;
+    }
+
+    private void notifyEvicted(K key, V value) {
+        if (mEvictionListener != null) {
+            mEvictionListener.onEvicted(key, value);
+        }
+    }
+
+    private static final class Entry<K, V> {
+        private final K mKey;
+        private final V mValue;
+        private final int mWeight;
+
+        private Entry(K key, V value, int weight) {
+            mKey = key;
+            mValue = value;
+            mWeight = weight;
+        }
+    }
+
+    public interface EvictionListener<K, V> {
+        /**
+         * Called with the cache's lock held - keep it short.
+         */
+        void onEvicted(K key, V value);
+    }
+}
@@ -0,0 +1,127 @@
+package com.vinci.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers keys - eg. URLs - that recently failed to load, so they aren't retried on every
+ * request. Each failure in a row doubles the time before the next attempt, up to a limit, and the
+ * wait is jittered so a screenful of broken images doesn't retry in lockstep. Bounded: the least
+ * recently failed keys are forgotten first.
+ */
+public class NegativeCache {
+    public static final long DEFAULT_BASE_BACKOFF_MS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 5 * 60 * 1000;
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+    private final int mMaxEntries;
+    private final long mBaseBackoff;
+    private final long mMaxBackoff;
+    private final Random mRandom;
+    private long mSuppressedCount = 0;
+    private long mFailureCount = 0;
+
+    public NegativeCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_BASE_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    public NegativeCache(int maxEntries, long baseBackoffMs, long maxBackoffMs) {
+        this(maxEntries, baseBackoffMs, maxBackoffMs, new Random());
+    }
+
+    /* package */ NegativeCache(int maxEntries, long baseBackoffMs, long maxBackoffMs, Random random) {
+        if (maxEntries <= 0 || baseBackoffMs <= 0 || maxBackoffMs < baseBackoffMs) {
+            throw new IllegalArgumentException("Invalid size or backoff.");
+        }
+
+        mMaxEntries = maxEntries;
+        mBaseBackoff = TimeUnit.MILLISECONDS.toNanos(baseBackoffMs);
+        mMaxBackoff = TimeUnit.MILLISECONDS.toNanos(maxBackoffMs);
+        mRandom = random;
+    }
+
+    /**
+     * @return true if the key failed recently and shouldn't be tried again yet
+     */
+    public boolean isSuppressed(String key) {
+        return isSuppressed(key, System.nanoTime());
+    }
+
+    public void onFailure(String key) {
+        onFailure(key, System.nanoTime());
+    }
+
+    public synchronized void onSuccess(String key) {
+        mEntries.remove(key);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return the number of attempts turned away while their key was backing off
+     */
+    public synchronized long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    public synchronized long getFailureCount() {
+        return mFailureCount;
+    }
+
+    /* package */ synchronized boolean isSuppressed(String key, long now) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null || now - entry.mRetryAt >= 0) {
+            return false;
+        }
+
+        mSuppressedCount++;
+        return true;
+    }
+
+    /* package */ synchronized void onFailure(String key, long now) {
+        mFailureCount++;
+
+        // Re-inserted, so the order is by latest failure - checking a key doesn't keep it
+        Entry entry = mEntries.remove(key);
+        if (entry == null) {
+            entry = new Entry();
+        }
+        mEntries.put(key, entry);
+        trim();
+
+        // Doubles per failure in a row
+        long backoff = mBaseBackoff;
+        for (int i = 0; i < entry.mFailures && backoff < mMaxBackoff; i++) {
+            backoff <<= 1;
+        }
+        backoff = Math.min(backoff, mMaxBackoff);
+        entry.mFailures++;
+
+        // "Equal jitter" - waits at least half the backoff
+        final long half = backoff / 2;
+        entry.mRetryAt = now + half + (long) (mRandom.nextDouble() * (backoff - half));
+    }
+
+    private void trim() {
+        final Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mEntries.size() > mMaxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static final class Entry {
+        private int mFailures = 0;
+        private long mRetryAt;
+    }
+}
@@ -0,0 +1,125 @@
+package com.vinci.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Striped, lossy ring buffers recording reads so they can be replayed into an
+ * {@link EvictionPolicy} later, in a batch, under the cache's lock. Readers never block - a read
+ * that finds its stripe full is simply dropped, which only costs the policy a little accuracy.
+ *
+ * Any number of threads may {@link #offer(Object)}; {@link #drain(Consumer)} must only run under
+ * the owner's lock.
+ */
+/* package */ final class ReadBuffer<E> {
+    private static final int BUFFER_SIZE = 16;
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+    /* package */ static final int DRAIN_THRESHOLD = BUFFER_SIZE / 2;
+
+    private final Stripe<E>[] mStripes;
+    private final int mMask;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    /* package */ ReadBuffer() {
+        final int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        mStripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i] = new Stripe<E>();
+        }
+        mMask = stripes - 1;
+    }
+
+    /**
+     * Records an element.
+     *
+     * @return the number of elements waiting in the stripe, so callers can decide to drain
+     */
+    /* package */ int offer(E element) {
+        return stripe().offer(element);
+    }
+
+    /* package */ void hit() {
+        stripe().mHits.incrementAndGet();
+    }
+
+    /* package */ void miss() {
+        stripe().mMisses.incrementAndGet();
+    }
+
+    /* package */ void drain(Consumer<E> consumer) {
+        for (Stripe<E> stripe : mStripes) {
+            stripe.drain(consumer);
+        }
+    }
+
+    /* package */ long getHitCount() {
+        long hits = 0;
+        for (Stripe<E> stripe : mStripes) {
+            hits += stripe.mHits.get();
+        }
+
+        return hits;
+    }
+
+    /* package */ long getMissCount() {
+        long misses = 0;
+        for (Stripe<E> stripe : mStripes) {
+            misses += stripe.mMisses.get();
+        }
+
+        return misses;
+    }
+
+    private Stripe<E> stripe() {
+        long id = Thread.currentThread().getId();
+        id ^= id >>> 16;
+        id *= 0x9e3779b97f4a7c15L;
+        return mStripes[(int) (id >>> 32) & mMask];
+    }
+
+    private static final class Stripe<E> {
+        private final AtomicReferenceArray<E> mBuffer = new AtomicReferenceArray<E>(BUFFER_SIZE);
+        private final AtomicLong mTail = new AtomicLong(0);
+        private final AtomicLong mHits = new AtomicLong(0);
+        private final AtomicLong mMisses = new AtomicLong(0);
+        private volatile long mHead = 0;
+
+        private int offer(E element) {
+            final long head = mHead;
+            final long tail = mTail.get();
+            final long size = tail - head;
+            if (size >= BUFFER_SIZE) {
+                return (int) size;
+            }
+
+            if (mTail.compareAndSet(tail, tail + 1)) {
+                mBuffer.lazySet((int) (tail & BUFFER_MASK), element);
+                return (int) size + 1;
+            }
+
+            return (int) size;
+        }
+
+        private void drain(Consumer<E> consumer) {
+            long head = mHead;
+            final long tail = mTail.get();
+            while (head != tail) {
+                final int index = (int) (head & BUFFER_MASK);
+                final E element = mBuffer.get(index);
+                if (element == null) {
+                    // Slot claimed but not yet written - pick it up next time
+                    break;
+                }
+
+                mBuffer.lazySet(index, null);
+                consumer.accept(element);
+                head++;
+            }
+            mHead = head;
+        }
+    }
+
+    /* package */ interface Consumer<E> {
+        void accept(E element);
+    }
+}
@@ -0,0 +1,137 @@
+package com.vinci.cache;
+
+import java.util.HashMap;
+
+/**
+ * Window TinyLFU. New entries land in a small LRU window; entries falling out of the window have to
+ * win a frequency contest against the main space's LRU victim to stay. The main space is a
+ * segmented LRU - entries hit while on probation move to the protected segment.
+ *
+ * A single pass over items that are never looked at again only churns the window and the tail of
+ * probation, so the frequently used working set survives it.
+ */
+public class WTinyLfuPolicy<K> implements EvictionPolicy<K> {
+    private static final float WINDOW_PERCENT = 0.01f;
+    private static final float PROTECTED_PERCENT = 0.8f;
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final HashMap<K, LinkedDeque.Node<K>> mNodes = new HashMap<K, LinkedDeque.Node<K>>();
+    private final LinkedDeque<K> mWindow = new LinkedDeque<K>();
+    private final LinkedDeque<K> mProbation = new LinkedDeque<K>();
+    private final LinkedDeque<K> mProtected = new LinkedDeque<K>();
+    private final FrequencySketch<K> mSketch = new FrequencySketch<K>();
+    private long mMaxWindow = 1;
+    private long mMaxProtected = 0;
+
+    @Override
+    public void setMaxWeight(long maxWeight) {
+        mMaxWindow = Math.max(1, (long) (maxWeight * WINDOW_PERCENT));
+        mMaxProtected = (long) ((maxWeight - mMaxWindow) * PROTECTED_PERCENT);
+    }
+
+    @Override
+    public void onInsert(K key, int weight, int cost) {
+        mSketch.ensureCapacity(mNodes.size() + 1);
+        mSketch.increment(key);
+
+        final LinkedDeque.Node<K> node = new LinkedDeque.Node<K>(key, weight);
+        node.mSegment = WINDOW;
+        mNodes.put(key, node);
+        mWindow.addLast(node);
+
+        // Window overflow becomes the admission candidate at the tail of probation
+        while (mWindow.getWeight() > mMaxWindow && mWindow.size() > 1) {
+            final LinkedDeque.Node<K> eldest = mWindow.peekFirst();
+            mWindow.remove(eldest);
+            eldest.mSegment = PROBATION;
+            mProbation.addLast(eldest);
+        }
+    }
+
+    @Override
+    public void onUpdate(K key, int weight, int cost) {
+        final LinkedDeque.Node<K> node = mNodes.get(key);
+        segmentOf(node).setWeight(node, weight);
+        onAccess(key);
+    }
+
+    @Override
+    public void onAccess(K key) {
+        mSketch.increment(key);
+
+        final LinkedDeque.Node<K> node = mNodes.get(key);
+        switch (node.mSegment) {
+            case WINDOW:
+                mWindow.moveToLast(node);
+                break;
+            case PROBATION:
+                // Promote, demoting the protected segment's LRU entries if it's over budget
+                mProbation.remove(node);
+                node.mSegment = PROTECTED;
+                mProtected.addLast(node);
+                while (mProtected.getWeight() > mMaxProtected && mProtected.size() > 1) {
+                    final LinkedDeque.Node<K> eldest = mProtected.peekFirst();
+                    mProtected.remove(eldest);
+                    eldest.mSegment = PROBATION;
+                    mProbation.addLast(eldest);
+                }
+                break;
+            case PROTECTED:
+                mProtected.moveToLast(node);
+                break;
+        }
+    }
+
+    @Override
+    public void onRemove(K key) {
+        final LinkedDeque.Node<K> node = mNodes.remove(key);
+        if (node != null) {
+            segmentOf(node).remove(node);
+        }
+    }
+
+    @Override
+    public K selectVictim() {
+        if (mProbation.size() >= 2) {
+            // Newest arrival on probation against the eldest; ties keep the incumbent
+            final LinkedDeque.Node<K> victim = mProbation.peekFirst();
+            final LinkedDeque.Node<K> candidate = mProbation.peekLast();
+            if (mSketch.frequency(candidate.mKey) > mSketch.frequency(victim.mKey)) {
+                return victim.mKey;
+            }
+
+            return candidate.mKey;
+        }
+
+        if (mProbation.size() == 1) {
+            return mProbation.peekFirst().mKey;
+        }
+
+        if (mProtected.size() > 0) {
+            return mProtected.peekFirst().mKey;
+        }
+
+        return mWindow.peekFirst().mKey;
+    }
+
+    @Override
+    public void clear() {
+        mNodes.clear();
+        mWindow.clear();
+        mProbation.clear();
+        mProtected.clear();
+    }
+
+    private LinkedDeque<K> segmentOf(LinkedDeque.Node<K> node) {
+        switch (node.mSegment) {
+            case WINDOW:
+                return mWindow;
+            case PROBATION:
+                return mProbation;
+            default:
+                return mProtected;
+        }
+    }
+}
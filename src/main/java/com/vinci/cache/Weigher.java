@@ -0,0 +1,12 @@
+package com.vinci.cache;
+
+/**
+ * Calculates the weight of a cache value for {@link MemoryCache}'s budget.
+ */
+public interface Weigher<V> {
+    /**
+     * @param value the cached value, may be null for entries that are still loading
+     * @return the non-negative weight of the value
+     */
+    int weigh(V value);
+}
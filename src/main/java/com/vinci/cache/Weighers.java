@@ -0,0 +1,44 @@
+package com.vinci.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Stock {@link Weigher}s.
+ */
+public class Weighers {
+    private static final Weigher<Object> SINGLETON = new Weigher<Object>() {
+        @Override
+        public int weigh(Object value) {
+            return 1;
+        }
+    };
+
+    private static final Weigher<Drawable> BITMAP_BYTES = new Weigher<Drawable>() {
+        @Override
+        public int weigh(Drawable value) {
+            if (!(value instanceof BitmapDrawable)) {
+                return 0;
+            }
+
+            final Bitmap bitmap = ((BitmapDrawable) value).getBitmap();
+            return bitmap != null ? bitmap.getByteCount() : 0;
+        }
+    };
+
+    /**
+     * Every entry weighs 1 - the budget is an entry count.
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> Weigher<V> singleton() {
+        return (Weigher<V>) SINGLETON;
+    }
+
+    /**
+     * Entries weigh the byte count of their bitmap - the budget is in bytes.
+     */
+    public static Weigher<Drawable> bitmapBytes() {
+        return BITMAP_BYTES;
+    }
+}
@@ -0,0 +1,273 @@
+package com.vinci.canvas;
+
+import android.graphics.drawable.Drawable;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import com.vinci.AcquiringListener;
+import com.vinci.Bucket;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Links a view to the request feeding its canvas. Binding the view to another image, unbinding
+ * it, or the view being garbage collected detaches the request's listener and cancels the load
+ * once nobody else is waiting for it, so a recycled list row stops costing anything.
+ *
+ * Only weakly reachable from the view's side; the bucket holds the request while it's loading.
+ * Requests of collected views are detached the next time any request is bound, started,
+ * unbound or completed, so a list that stops binding still lets go of them as its loads finish.
+ *
+ * A request bound with {@link TargetSizes} instead of a size waits for the view to be measured,
+ * then loads at the view's size snapped to one of the target sizes.
+ */
+public class CanvasRequest extends WeakReference<Object> implements AcquiringListener, ViewTreeObserver.OnPreDrawListener {
+    private static final Map<Object, CanvasRequest> sRequests = new WeakHashMap<Object, CanvasRequest>();
+    private static final ReferenceQueue<Object> sCollected = new ReferenceQueue<Object>();
+
+    private final MutableCanvas mCanvas;
+    private final Bucket mBucket;
+    private final String mPath;
+    private final TargetSizes mSizes;
+    private int mWidth;
+    private int mHeight;
+    private boolean mSized;
+    private boolean mWaitingForLayout = false;
+    private boolean mDone = false;
+    private boolean mDetached = false;
+
+    private CanvasRequest(Object view, MutableCanvas canvas, Bucket bucket, String path, int width, int height,
+                          TargetSizes sizes) {
+        super(view, sCollected);
+        mCanvas = canvas;
+        mBucket = bucket;
+        mPath = path;
+        mWidth = width;
+        mHeight = height;
+        mSizes = sizes;
+        mSized = sizes == null;
+    }
+
+    /**
+     * Points the view at a new image, detaching whatever it was loading before.
+     *
+     * @return the request to {@link #start()}, or null if the view is already loading that image
+     */
+    public static CanvasRequest bind(Object view, MutableCanvas canvas, Bucket bucket, String path, int width, int height) {
+        return bind(view, new CanvasRequest(view, canvas, bucket, path, width, height, null));
+    }
+
+    /**
+     * Points the view at a new image, to be loaded at the view's own size once it's measured.
+     *
+     * @return the request to {@link #start()}, or null if the view is already loading that image
+     */
+    public static CanvasRequest bind(Object view, MutableCanvas canvas, Bucket bucket, String path, TargetSizes sizes) {
+        return bind(view, new CanvasRequest(view, canvas, bucket, path, 0, 0, sizes));
+    }
+
+    private static CanvasRequest bind(Object view, CanvasRequest request) {
+        expungeCollected();
+
+        final CanvasRequest previous;
+        synchronized (sRequests) {
+            previous = sRequests.get(view);
+            if (previous != null && previous.isFor(request)) {
+                return null;
+            }
+
+            sRequests.put(view, request);
+        }
+
+        if (previous != null) {
+            previous.detach();
+        }
+
+        return request;
+    }
+
+    /**
+     * Detaches whatever the view is loading, eg. when its row is recycled without being bound
+     * to another image straight away.
+     */
+    public static void unbind(Object view) {
+        final CanvasRequest request;
+        synchronized (sRequests) {
+            request = sRequests.remove(view);
+        }
+
+        if (request != null) {
+            request.detach();
+        }
+        expungeCollected();
+    }
+
+    /**
+     * @return the canvas of the view's current request, so every request for a view draws into
+     *         the same one, or null if it has none
+     */
+    public static MutableCanvas getCanvas(Object view) {
+        synchronized (sRequests) {
+            final CanvasRequest request = sRequests.get(view);
+            return request != null ? request.mCanvas : null;
+        }
+    }
+
+    /**
+     * Loads the image, or waits for the view's layout first if it's to be loaded at the view's
+     * size and the view hasn't been measured yet. Call on the main thread.
+     */
+    public void start() {
+        expungeCollected();
+
+        if (!mSized && !measure()) {
+            final View view = (View) get();
+            if (view != null) {
+                synchronized (sRequests) {
+                    mWaitingForLayout = true;
+                }
+                view.getViewTreeObserver().addOnPreDrawListener(this);
+            }
+            return;
+        }
+
+        load();
+    }
+
+    @Override
+    public boolean onPreDraw() {
+        final View view = (View) get();
+        final boolean detached;
+        synchronized (sRequests) {
+            detached = mDetached;
+        }
+
+        if (view == null || detached) {
+            stopWaitingForLayout(view);
+            return true;
+        }
+
+        if (measure()) {
+            stopWaitingForLayout(view);
+            load();
+        }
+
+        return true;
+    }
+
+    private void load() {
+        final Drawable drawable = mBucket.get(mPath, mWidth, mHeight, this);
+
+        // Buckets usually call back on a hit too; the second call is ignored
+        if (drawable != null) {
+            onLoaded(mPath, drawable, mWidth, mHeight);
+        }
+    }
+
+    @Override
+    public void onLoaded(String path, Drawable drawable, int width, int height) {
+        synchronized (sRequests) {
+            if (mDone || mDetached) {
+                return;
+            }
+            mDone = true;
+        }
+
+        mCanvas.setDrawable(drawable);
+        expungeCollected();
+    }
+
+    @Override
+    public void onFailure(String path, int width, int height) {
+        synchronized (sRequests) {
+            mDone = true;
+        }
+        expungeCollected();
+    }
+
+    /**
+     * Sizes the request from the view, if it has been laid out.
+     *
+     * @return false if the view has no size yet
+     */
+    private boolean measure() {
+        final View view = (View) get();
+        if (view == null) {
+            return false;
+        }
+
+        final int width = view.getWidth() - view.getPaddingLeft() - view.getPaddingRight();
+        final int height = view.getHeight() - view.getPaddingTop() - view.getPaddingBottom();
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+
+        synchronized (sRequests) {
+            mWidth = mSizes.snap(width);
+            mHeight = mSizes.snap(height);
+            mSized = true;
+        }
+
+        return true;
+    }
+
+    private void stopWaitingForLayout(Object view) {
+        synchronized (sRequests) {
+            if (!mWaitingForLayout) {
+                return;
+            }
+            mWaitingForLayout = false;
+        }
+
+        // Only views wait for layout; a collected one took its observer with it
+        if (view != null && ((View) view).getViewTreeObserver().isAlive()) {
+            ((View) view).getViewTreeObserver().removeOnPreDrawListener(this);
+        }
+    }
+
+    /**
+     * Called with sRequests held.
+     */
+    private boolean isFor(CanvasRequest request) {
+        // Once done it's cheap to ask again - a hit, or another try at a failed image
+        if (mDone || mDetached || mBucket != request.mBucket || !mPath.equals(request.mPath)) {
+            return false;
+        }
+
+        return mSizes != null
+                ? mSizes == request.mSizes
+                : request.mSizes == null && mWidth == request.mWidth && mHeight == request.mHeight;
+    }
+
+    private void detach() {
+        final boolean loading;
+        synchronized (sRequests) {
+            if (mDetached) {
+                return;
+            }
+
+            mDetached = true;
+            loading = !mDone && mSized && !mWaitingForLayout;
+        }
+
+        // A request still waiting for layout hasn't asked the bucket for anything
+        stopWaitingForLayout(get());
+        if (loading) {
+            mBucket.cancel(mPath, mWidth, mHeight, this);
+        }
+    }
+
+    private static void expungeCollected() {
+        Reference<?> reference;
+        while ((reference = sCollected.poll()) != null) {
+            final CanvasRequest request = (CanvasRequest) reference;
+            request.detach();
+
+            // Nothing left to draw it
+            request.mCanvas.release();
+        }
+    }
+}
@@ -3,15 +3,20 @@ package com.vinci.canvas;
 import android.graphics.drawable.Drawable;
 import android.widget.ImageView;
 import com.vinci.Canvas;
+import com.vinci.util.PooledBitmapDrawable;
 
 import java.lang.ref.WeakReference;
 
 /**
+ * Holds a reference on the drawable it shows, so a pooled bitmap isn't reused while it's on
+ * screen. The reference is released when the next drawable replaces it, or when the view is gone.
+ *
  * Created by austinh on 4/7/14.
  */
 public class MutableCanvas implements Canvas {
     private CanvasType mCanvasType;
     private WeakReference<Object> mCanvas;
+    private Drawable mDrawable;
 
     public MutableCanvas(CanvasType canvasType, Object canvas) {
         mCanvasType = canvasType;
@@ -26,10 +31,23 @@ public class MutableCanvas implements Canvas {
         mCanvasType = canvasType;
     }
 
+    /**
+     * @return the view drawn into, or null if it has been garbage collected
+     */
+    public Object getCanvas() {
+        return mCanvas.get();
+    }
+
     @Override
     public void setDrawable(Drawable drawable) {
         final Object canvas = mCanvas.get();
         if (canvas == null) {
+            release();
+            return;
+        }
+
+        // Already back in the pool - showing it could show somebody else's pixels
+        if (drawable != mDrawable && !PooledBitmapDrawable.acquire(drawable)) {
             return;
         }
 
@@ -38,6 +56,22 @@ public class MutableCanvas implements Canvas {
                 ((ImageView) canvas).setImageDrawable(drawable);
                 break;
         }
+
+        // Only once the view has let go of it
+        if (drawable != mDrawable) {
+            release();
+            mDrawable = drawable;
+        }
+    }
+
+    /**
+     * Gives up the reference on the drawable shown last, eg. once the view has been detached.
+     */
+    public void release() {
+        if (mDrawable != null) {
+            PooledBitmapDrawable.release(mDrawable);
+            mDrawable = null;
+        }
     }
 
     public enum CanvasType {
@@ -0,0 +1,39 @@
+package com.vinci.canvas;
+
+import java.util.Arrays;
+
+/**
+ * The few sizes views ask for images at. A measured view size is rounded up to the next one, so
+ * views of nearly the same size share memory and disk cache entries, while nothing is decoded
+ * much larger than it's drawn.
+ */
+public class TargetSizes {
+    public static final TargetSizes DEFAULT = new TargetSizes(64, 128, 256, 512, 1024, 2048);
+
+    private final int[] mSizes;
+
+    public TargetSizes(int... sizes) {
+        if (sizes.length == 0) {
+            throw new IllegalArgumentException("No sizes.");
+        }
+
+        mSizes = sizes.clone();
+        Arrays.sort(mSizes);
+        if (mSizes[0] <= 0) {
+            throw new IllegalArgumentException("Invalid size " + mSizes[0]);
+        }
+    }
+
+    /**
+     * @return the smallest size that covers the given one, or the largest size if none does
+     */
+    public int snap(int size) {
+        for (int i = 0; i < mSizes.length; i++) {
+            if (mSizes[i] >= size) {
+                return mSizes[i];
+            }
+        }
+
+        return mSizes[mSizes.length - 1];
+    }
+}
@@ -0,0 +1,766 @@
+package com.vinci.disk;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link DiskCache} packing entries into a few large, append-only segment files instead of one
+ * file per entry, which saves the inode and block-rounding overhead of thousands of small
+ * thumbnails. Reads are slices of memory-mapped segments, so no file is opened per read.
+ *
+ * Each segment is a sequence of records:
+ * <pre>
+ *     int magic | byte type | short key length | int payload length | key | payload
+ * </pre>
+ * A PUT record's payload is the entry. A REMOVE record's payload is the segment id and offset of
+ * the record it removes, so it stops mattering - and is dropped by compaction - once that segment
+ * is gone. The index is rebuilt on open by replaying the segments in order; a torn record at the
+ * end of a segment is truncated away.
+ *
+ * Replaced, removed and evicted records leave dead bytes behind. Sealed segments that are mostly
+ * dead are compacted on a background thread by copying their live records forward and deleting
+ * them, so the segments hold at most about twice the cache's budget.
+ */
+public class BlobStoreDiskCache implements DiskCache {
+    private static final String TAG = BlobStoreDiskCache.class.getSimpleName();
+
+    /* package */ static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("blob-(\\d+)\\.seg");
+    private static final Pattern KEY_PATTERN = Pattern.compile("[a-z0-9_.-]{1,120}");
+    private static final int RECORD_MAGIC = 0x56426c62;
+    private static final byte PUT = 'P';
+    private static final byte REMOVE = 'R';
+    private static final int HEADER_SIZE = 4 + 1 + 2 + 4;
+    private static final int REMOVE_PAYLOAD_SIZE = 4 + 8;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final int mSegmentSize;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private final ConcurrentHashMap<String, Long> mReadableLengths = new ConcurrentHashMap<String, Long>();
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+    private final Set<String> mEditing = new HashSet<String>();
+    private final ExecutorService mCleanupExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final Runnable mCleanupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BlobStoreDiskCache.this) {
+                if (mClosed) {
+                    return;
+                }
+
+                try {
+                    trimToSize(mMaxSize);
+                    compact();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error cleaning up the disk cache", e);
+                }
+            }
+        }
+    };
+    private Segment mActiveSegment;
+    private long mSize = 0;
+    private long mTruncatedBytes = 0;
+    private boolean mClosed = false;
+
+    private BlobStoreDiskCache(File directory, long maxSize, int segmentSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mSegmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the cache in the directory, creating the directory if needed. The directory shouldn't
+     * be shared with anything else.
+     */
+    public static BlobStoreDiskCache open(File directory, long maxSize) throws IOException {
+        return open(directory, maxSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /* package */ static BlobStoreDiskCache open(File directory, long maxSize, int segmentSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid max size.");
+        }
+
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Invalid segment size.");
+        }
+
+        if (!directory.exists() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create cache directory " + directory);
+        }
+
+        final BlobStoreDiskCache cache = new BlobStoreDiskCache(directory, maxSize, segmentSize);
+        synchronized (cache) {
+            try {
+                cache.readSegments();
+            } catch (IOException e) {
+                cache.close();
+                throw e;
+            }
+
+            if (cache.mSize > maxSize || cache.isCompactionRequired()) {
+                cache.scheduleCleanup();
+            }
+        }
+
+        return cache;
+    }
+
+    @Override
+    public synchronized Snapshot get(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        return new BlobSnapshot(entry.mSegment.slice(entry.getPayloadOffset(), entry.mLength));
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mReadableLengths.containsKey(key);
+    }
+
+    @Override
+    public synchronized Editor edit(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+
+        if (!mEditing.add(key)) {
+            return null;
+        }
+
+        return new BlobEditor(key);
+    }
+
+    @Override
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+
+        final Entry entry = mEntries.get(key);
+        if (entry == null || mEditing.contains(key)) {
+            return false;
+        }
+
+        removeEntry(entry);
+        mEntries.remove(key);
+        return true;
+    }
+
+    @Override
+    public synchronized long size() {
+        return mSize;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return the bytes of torn records cut off the ends of segments when the cache was opened,
+     *         left by a process that died mid-append
+     */
+    public synchronized long getTruncatedBytes() {
+        return mTruncatedBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+
+        mClosed = true;
+        mCleanupExecutor.shutdown();
+        mEditing.clear();
+
+        // Outstanding snapshots keep their mappings, which outlive the channels
+        IOException error = null;
+        for (Segment segment : mSegments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the cache holds at most maxSize bytes.
+     *
+     * @return the number of bytes evicted
+     */
+    public synchronized long trimToSize(long maxSize) throws IOException {
+        final long before = mSize;
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (mEditing.contains(entry.mKey)) {
+                continue;
+            }
+
+            iterator.remove();
+            removeEntry(entry);
+        }
+
+        return before - mSize;
+    }
+
+    /**
+     * Rewrites sealed segments that are mostly dead space.
+     *
+     * @return the number of segments compacted
+     */
+    /* package */ synchronized int compact() throws IOException {
+        if (!isCompactionRequired()) {
+            return 0;
+        }
+
+        // Make sure the newest segment id is taken by the active segment, which is never
+        // compacted - ids must not be reused while REMOVE records may point at them
+        getActiveSegment();
+
+        int compacted = 0;
+        for (Segment segment : new ArrayList<Segment>(mSegments.values())) {
+            if (segment != mActiveSegment && segment.isMostlyDead()) {
+                compact(segment);
+                compacted++;
+            }
+        }
+
+        return compacted;
+    }
+
+    /* package */ synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * @return the bytes taken by the segment files, dead records included
+     */
+    /* package */ synchronized long getSegmentBytes() {
+        long bytes = 0;
+        for (Segment segment : mSegments.values()) {
+            bytes += segment.mLength;
+        }
+
+        return bytes;
+    }
+
+    private void commit(String key, ByteBuffer payload) throws IOException {
+        final int length = payload.remaining();
+        final Segment segment = getActiveSegment();
+        final long offset = segment.append(PUT, key, payload);
+
+        final Entry previous = mEntries.get(key);
+        if (previous != null) {
+            markDead(previous.mSegment, previous.mRecordLength);
+            mSize -= previous.mLength;
+        }
+
+        final Entry entry = new Entry(key, segment, offset, length);
+        mEntries.put(key, entry);
+        mReadableLengths.put(key, (long) length);
+        mSize += length;
+
+        sealIfFull(segment);
+        if (mSize > mMaxSize) {
+            scheduleCleanup();
+        }
+    }
+
+    /**
+     * Writes a REMOVE record for the entry. The caller takes care of the index.
+     */
+    private void removeEntry(Entry entry) throws IOException {
+        final ByteBuffer payload = ByteBuffer.allocate(REMOVE_PAYLOAD_SIZE);
+        payload.putInt(entry.mSegment.mId).putLong(entry.mRecordOffset).flip();
+
+        final Segment segment = getActiveSegment();
+        segment.append(REMOVE, entry.mKey, payload);
+
+        // The REMOVE record is dead weight from the start; it's only kept for replay
+        markDead(segment, HEADER_SIZE + entry.mKey.length() + REMOVE_PAYLOAD_SIZE);
+        markDead(entry.mSegment, entry.mRecordLength);
+        mReadableLengths.remove(entry.mKey);
+        mSize -= entry.mLength;
+
+        sealIfFull(segment);
+    }
+
+    private void compact(Segment segment) throws IOException {
+        // Looked up by a walk rather than get(), which would count as a use and reorder the LRU
+        final HashMap<Long, Entry> live = new HashMap<Long, Entry>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.mSegment == segment) {
+                live.put(entry.mRecordOffset, entry);
+            }
+        }
+
+        final ByteBuffer records = segment.slice(0, (int) segment.mLength);
+        int position = 0;
+        while (position < records.limit()) {
+            final Record record = Record.read(records, position);
+            if (record == null) {
+                throw new IOException("Corrupt record in " + segment.mFile + " at " + position);
+            }
+
+            if (record.mType == PUT) {
+                // Copy the entry forward if this is still its current record
+                final Entry entry = live.get((long) position);
+                if (entry != null) {
+                    final Segment target = getActiveSegment();
+                    final ByteBuffer payload = slice(records, record.mPayloadOffset, record.mPayloadLength);
+                    entry.mRecordOffset = target.append(PUT, record.mKey, payload);
+                    entry.mSegment = target;
+                    sealIfFull(target);
+                }
+            } else {
+                // Keep the REMOVE only while the record it removes may still be replayed
+                final int removedSegment = records.getInt(record.mPayloadOffset);
+                if (removedSegment != segment.mId && mSegments.containsKey(removedSegment)) {
+                    final Segment target = getActiveSegment();
+                    target.append(REMOVE, record.mKey, slice(records, record.mPayloadOffset, record.mPayloadLength));
+                    markDead(target, record.mRecordLength);
+                    sealIfFull(target);
+                }
+            }
+
+            position += record.mRecordLength;
+        }
+
+        mSegments.remove(segment.mId);
+        segment.close();
+        if (!segment.mFile.delete()) {
+            Log.w(TAG, "Unable to delete compacted segment " + segment.mFile);
+        }
+    }
+
+    private void readSegments() throws IOException {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final Matcher matcher = SEGMENT_PATTERN.matcher(file.getName());
+                if (matcher.matches()) {
+                    final int id = Integer.parseInt(matcher.group(1));
+                    mSegments.put(id, new Segment(id, file));
+                }
+            }
+        }
+
+        for (Segment segment : mSegments.values()) {
+            replay(segment);
+        }
+
+        if (!mSegments.isEmpty()) {
+            final Segment last = mSegments.lastEntry().getValue();
+            if (last.mLength < mSegmentSize) {
+                mActiveSegment = last;
+            }
+        }
+    }
+
+    private void replay(Segment segment) throws IOException {
+        final ByteBuffer records = segment.slice(0, (int) segment.mLength);
+        int position = 0;
+        while (position < records.limit()) {
+            final Record record = Record.read(records, position);
+            if (record == null) {
+                break;
+            }
+
+            if (record.mType == PUT) {
+                final Entry previous = mEntries.remove(record.mKey);
+                if (previous != null) {
+                    markDead(previous.mSegment, previous.mRecordLength);
+                    mSize -= previous.mLength;
+                }
+
+                final Entry entry = new Entry(record.mKey, segment, position, record.mPayloadLength);
+                mEntries.put(record.mKey, entry);
+                mReadableLengths.put(record.mKey, (long) record.mPayloadLength);
+                mSize += entry.mLength;
+            } else {
+                markDead(segment, record.mRecordLength);
+
+                final int removedSegment = records.getInt(record.mPayloadOffset);
+                final long removedOffset = records.getLong(record.mPayloadOffset + 4);
+                final Entry entry = mEntries.get(record.mKey);
+                if (entry != null && entry.mSegment.mId == removedSegment && entry.mRecordOffset == removedOffset) {
+                    mEntries.remove(record.mKey);
+                    mReadableLengths.remove(record.mKey);
+                    markDead(entry.mSegment, entry.mRecordLength);
+                    mSize -= entry.mLength;
+                }
+            }
+
+            position += record.mRecordLength;
+        }
+
+        if (position < segment.mLength) {
+            // The process died mid-append
+            mTruncatedBytes += segment.mLength - position;
+            segment.truncate(position);
+        }
+    }
+
+    private Segment getActiveSegment() throws IOException {
+        if (mActiveSegment == null) {
+            final int id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+            mActiveSegment = new Segment(id, new File(mDirectory, "blob-" + id + ".seg"));
+            mSegments.put(id, mActiveSegment);
+        }
+
+        return mActiveSegment;
+    }
+
+    private void sealIfFull(Segment segment) {
+        if (segment == mActiveSegment && segment.mLength >= mSegmentSize) {
+            mActiveSegment = null;
+            if (segment.isMostlyDead()) {
+                scheduleCleanup();
+            }
+        }
+    }
+
+    private void markDead(Segment segment, int bytes) {
+        segment.mDeadBytes += bytes;
+        if (segment != mActiveSegment && segment.isMostlyDead()) {
+            scheduleCleanup();
+        }
+    }
+
+    private boolean isCompactionRequired() {
+        for (Segment segment : mSegments.values()) {
+            if (segment != mActiveSegment && segment.isMostlyDead()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void scheduleCleanup() {
+        if (!mCleanupExecutor.isShutdown()) {
+            mCleanupExecutor.execute(mCleanupRunnable);
+        }
+    }
+
+    private void checkNotClosed() {
+        if (mClosed) {
+            throw new IllegalStateException("Disk cache is closed.");
+        }
+    }
+
+    private static void validateKey(String key) {
+        if (key == null || !KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("Invalid key: " + key);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice();
+    }
+
+    private static final class Entry {
+        private final String mKey;
+        private final int mLength;
+        private final int mRecordLength;
+        private Segment mSegment;
+        private long mRecordOffset;
+
+        private Entry(String key, Segment segment, long recordOffset, int length) {
+            mKey = key;
+            mSegment = segment;
+            mRecordOffset = recordOffset;
+            mLength = length;
+            mRecordLength = HEADER_SIZE + key.length() + length;
+        }
+
+        private long getPayloadOffset() {
+            return mRecordOffset + HEADER_SIZE + mKey.length();
+        }
+    }
+
+    private static final class Record {
+        private final byte mType;
+        private final String mKey;
+        private final int mPayloadOffset;
+        private final int mPayloadLength;
+        private final int mRecordLength;
+
+        private Record(byte type, String key, int payloadOffset, int payloadLength, int recordLength) {
+            mType = type;
+            mKey = key;
+            mPayloadOffset = payloadOffset;
+            mPayloadLength = payloadLength;
+            mRecordLength = recordLength;
+        }
+
+        /**
+         * @return the record at position, or null if it's torn or corrupt
+         */
+        private static Record read(ByteBuffer records, int position) {
+            final int remaining = records.limit() - position;
+            if (remaining < HEADER_SIZE || records.getInt(position) != RECORD_MAGIC) {
+                return null;
+            }
+
+            final byte type = records.get(position + 4);
+            final int keyLength = records.getShort(position + 5) & 0xffff;
+            final int payloadLength = records.getInt(position + 7);
+            if ((type != PUT && type != REMOVE) || payloadLength < 0
+                    || (type == REMOVE && payloadLength != REMOVE_PAYLOAD_SIZE)
+                    || (long) HEADER_SIZE + keyLength + payloadLength > remaining) {
+                return null;
+            }
+
+            final char[] key = new char[keyLength];
+            for (int i = 0; i < keyLength; i++) {
+                key[i] = (char) records.get(position + HEADER_SIZE + i);
+            }
+
+            final int payloadOffset = position + HEADER_SIZE + keyLength;
+            return new Record(type, new String(key), payloadOffset, payloadLength, HEADER_SIZE + keyLength + payloadLength);
+        }
+    }
+
+    private static final class Segment {
+        private final int mId;
+        private final File mFile;
+        private final RandomAccessFile mRandomAccessFile;
+        private final FileChannel mChannel;
+        private final TreeMap<Long, MappedByteBuffer> mMappings = new TreeMap<Long, MappedByteBuffer>();
+        private long mMappedLength = 0;
+        private long mLength;
+        private long mDeadBytes = 0;
+
+        private Segment(int id, File file) throws IOException {
+            mId = id;
+            mFile = file;
+            mRandomAccessFile = new RandomAccessFile(file, "rw");
+            mChannel = mRandomAccessFile.getChannel();
+            mLength = mChannel.size();
+        }
+
+        /**
+         * Appends a record.
+         *
+         * @return the offset of the record
+         */
+        private long append(byte type, String key, ByteBuffer payload) throws IOException {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + key.length());
+            header.putInt(RECORD_MAGIC).put(type).putShort((short) key.length()).putInt(payload.remaining());
+            for (int i = 0; i < key.length(); i++) {
+                header.put((byte) key.charAt(i));
+            }
+            header.flip();
+
+            final long offset = mLength;
+            final long recordLength = header.remaining() + payload.remaining();
+            final ByteBuffer[] buffers = new ByteBuffer[] { header, payload };
+            try {
+                mChannel.position(offset);
+                long written = 0;
+                while (written < recordLength) {
+                    written += mChannel.write(buffers);
+                }
+            } catch (IOException e) {
+                // Don't leave a torn record behind for the next append to follow
+                mChannel.truncate(offset);
+                throw e;
+            }
+
+            mLength += recordLength;
+            return offset;
+        }
+
+        /**
+         * @return a read-only view of [offset, offset + length), backed by the mapped segment.
+         *         Bytes are mapped once, the first time they're read: a sealed segment is usually
+         *         a single mapping, the active one gains a mapping for each stretch of appends.
+         */
+        private ByteBuffer slice(long offset, int length) throws IOException {
+            if (length == 0) {
+                return ByteBuffer.allocate(0).asReadOnlyBuffer();
+            }
+
+            if (offset + length > mMappedLength) {
+                mMappings.put(mMappedLength, mChannel.map(FileChannel.MapMode.READ_ONLY, mMappedLength,
+                        mLength - mMappedLength));
+                mMappedLength = mLength;
+            }
+
+            // Records never straddle mappings; only a whole segment read, to compact it, might
+            final Map.Entry<Long, MappedByteBuffer> mapping = mMappings.floorEntry(offset);
+            final long start = mapping.getKey();
+            if (offset + length > start + mapping.getValue().capacity()) {
+                return mChannel.map(FileChannel.MapMode.READ_ONLY, offset, length).asReadOnlyBuffer();
+            }
+
+            return BlobStoreDiskCache.slice(mapping.getValue(), (int) (offset - start), length).asReadOnlyBuffer();
+        }
+
+        private void truncate(long length) throws IOException {
+            mChannel.truncate(length);
+            mLength = length;
+            mMappings.clear();
+            mMappedLength = 0;
+        }
+
+        private boolean isMostlyDead() {
+            return mLength > 0 && mDeadBytes * 2 >= mLength;
+        }
+
+        private void close() throws IOException {
+            mRandomAccessFile.close();
+        }
+    }
+
+    private static final class BlobSnapshot implements Snapshot {
+        private final ByteBuffer mBuffer;
+
+        private BlobSnapshot(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public long getLength() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteBufferInputStream(mBuffer.duplicate());
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mBuffer.duplicate();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Buffers the entry in memory; it's appended to the active segment on commit.
+     */
+    private final class BlobEditor implements Editor {
+        private final String mKey;
+        private PayloadOutputStream mOutputStream;
+        private boolean mDone = false;
+
+        private BlobEditor(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public OutputStream newOutputStream() {
+            synchronized (BlobStoreDiskCache.this) {
+                if (mDone) {
+                    throw new IllegalStateException("Edit is already complete.");
+                }
+
+                mOutputStream = new PayloadOutputStream();
+                return mOutputStream;
+            }
+        }
+
+        @Override
+        public void commit() throws IOException {
+            synchronized (BlobStoreDiskCache.this) {
+                if (mDone) {
+                    throw new IllegalStateException("Edit is already complete.");
+                }
+
+                mDone = true;
+                checkNotClosed();
+                mEditing.remove(mKey);
+                if (mOutputStream == null) {
+                    throw new IOException("Nothing was written for " + mKey);
+                }
+
+                BlobStoreDiskCache.this.commit(mKey, mOutputStream.toByteBuffer());
+                mOutputStream = null;
+            }
+        }
+
+        @Override
+        public void abort() {
+            synchronized (BlobStoreDiskCache.this) {
+                if (mDone) {
+                    return;
+                }
+
+                mDone = true;
+                mEditing.remove(mKey);
+                mOutputStream = null;
+            }
+        }
+    }
+
+    private static final class PayloadOutputStream extends ByteArrayOutputStream {
+        private PayloadOutputStream() {
+            super(16 * 1024);
+        }
+
+        /**
+         * @return the written bytes, without copying them
+         */
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.vinci.disk;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a buffer without copying it up front.
+ */
+/* package */ final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+
+    /* package */ ByteBufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+
+        final int count = Math.min(length, mBuffer.remaining());
+        mBuffer.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long count) {
+        final int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+}
@@ -0,0 +1,75 @@
+package com.vinci.disk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte-budgeted store of encoded images, keyed by short file-system safe strings
+ * ({@code [a-z0-9_.-]{1,120}}). Implementations are thread-safe.
+ */
+public interface DiskCache {
+    /**
+     * @return a snapshot of the entry, or null if there's no committed entry for the key. The
+     *         caller must close it.
+     */
+    Snapshot get(String key) throws IOException;
+
+    /**
+     * Answered from memory without touching the disk, so it's cheap enough to call before every
+     * {@link #get(String)}. The entry may still be evicted before it's read.
+     *
+     * @return true if there's a committed entry for the key
+     */
+    boolean contains(String key);
+
+    /**
+     * Starts writing an entry. Nothing is visible to {@link #get(String)} until the edit is
+     * committed.
+     *
+     * @return an editor, or null if another edit of the same key is in progress
+     */
+    Editor edit(String key) throws IOException;
+
+    /**
+     * @return true if a committed entry was removed
+     */
+    boolean remove(String key) throws IOException;
+
+    /**
+     * @return the bytes currently stored
+     */
+    long size();
+
+    long getMaxSize();
+
+    void close() throws IOException;
+
+    interface Snapshot extends Closeable {
+        long getLength();
+
+        InputStream getInputStream() throws IOException;
+
+        /**
+         * @return the entry's bytes as a read-only buffer, memory-mapped where the backend allows.
+         *         Stays readable after the snapshot is closed.
+         */
+        ByteBuffer getBuffer() throws IOException;
+    }
+
+    interface Editor {
+        OutputStream newOutputStream() throws IOException;
+
+        /**
+         * Publishes what was written, replacing any previous value.
+         */
+        void commit() throws IOException;
+
+        /**
+         * Throws away what was written. Safe to call after a failed commit.
+         */
+        void abort();
+    }
+}
@@ -0,0 +1,747 @@
+package com.vinci.disk;
+
+import android.util.Log;
+
+import com.vinci.util.FileUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * {@link DiskCache} storing one file per entry, named after its key.
+ *
+ * The index lives in memory and is persisted as an append-only journal:
+ * <pre>
+ *     com.vinci.disk.JournaledDiskCache
+ *     1
+ *
+ *     DIRTY 1234.jpg
+ *     CLEAN 1234.jpg 48213
+ *     REMOVE 1234.jpg
+ * </pre>
+ * A DIRTY record opens an edit, which is closed by either a CLEAN record with the entry's length
+ * or a REMOVE record. Edits still DIRTY on startup died with the process and their files are
+ * deleted, as are temp files left behind by older versions. The journal is compacted once it
+ * holds mostly redundant records. Entries are evicted, least recently used first, on a background
+ * thread whenever the cache is over budget.
+ *
+ * Which keys are readable, and their lengths, is mirrored in a concurrent map so
+ * {@link #contains(String)} never blocks or touches the disk.
+ *
+ * A cache directory without a journal (eg. written by an older version) is adopted by indexing the
+ * files already in it, statting them from several threads at once.
+ */
+public class JournaledDiskCache implements DiskCache {
+    private static final String TAG = JournaledDiskCache.class.getSimpleName();
+
+    /* package */ static final String JOURNAL_FILE = "journal";
+    /* package */ static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    /* package */ static final String MAGIC = "com.vinci.disk.JournaledDiskCache";
+    /* package */ static final String VERSION = "1";
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Pattern KEY_PATTERN = Pattern.compile("[a-z0-9_.-]{1,120}");
+    private static final Pattern LEGACY_TEMP_PATTERN = Pattern.compile("img.*tmp");
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    private static final int MAX_SCAN_THREADS = 4;
+    private static final int MIN_FILES_PER_SCAN_THREAD = 64;
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final File mJournalFileTemp;
+    private final long mMaxSize;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private final ConcurrentHashMap<String, Long> mReadableLengths = new ConcurrentHashMap<String, Long>();
+    private final ExecutorService mCleanupExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final Runnable mCleanupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (JournaledDiskCache.this) {
+                if (mJournalWriter == null) {
+                    return;
+                }
+
+                try {
+                    trimToSize(mMaxSize);
+                    if (isCompactionRequired()) {
+                        rebuildJournal();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error cleaning up the disk cache", e);
+                }
+            }
+        }
+    };
+    private Writer mJournalWriter;
+    private long mSize = 0;
+    private int mRedundantOps = 0;
+
+    private JournaledDiskCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mJournalFileTemp = new File(directory, JOURNAL_FILE_TEMP);
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Opens the cache in the directory, creating the directory if needed.
+     */
+    public static JournaledDiskCache open(File directory, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid max size.");
+        }
+
+        if (!directory.exists() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create cache directory " + directory);
+        }
+
+        final JournaledDiskCache cache = new JournaledDiskCache(directory, maxSize);
+        synchronized (cache) {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                files = new File[0];
+            }
+            cache.deleteTempFiles(files);
+
+            boolean indexed = false;
+            if (cache.mJournalFile.exists()) {
+                try {
+                    cache.readJournal();
+                    indexed = true;
+                } catch (IOException e) {
+                    Log.w(TAG, "Journal of " + directory + " is corrupt, re-indexing", e);
+                    cache.mEntries.clear();
+                    cache.mSize = 0;
+                }
+            }
+
+            if (indexed) {
+                cache.mJournalWriter = newJournalWriter(cache.mJournalFile, true);
+            } else {
+                cache.indexDirectory(files);
+                cache.rebuildJournal();
+            }
+
+            if (cache.mSize > maxSize) {
+                cache.scheduleCleanup();
+            }
+        }
+
+        return cache;
+    }
+
+    @Override
+    public synchronized Snapshot get(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+
+        final Entry entry = mEntries.get(key);
+        if (entry == null || !entry.mReadable) {
+            return null;
+        }
+
+        final FileInputStream is;
+        try {
+            is = new FileInputStream(entry.getCleanFile());
+        } catch (FileNotFoundException e) {
+            // Somebody deleted it behind our back
+            removeEntry(entry);
+            mEntries.remove(key);
+            return null;
+        }
+
+        return new FileSnapshot(is, entry.mLength);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mReadableLengths.containsKey(key);
+    }
+
+    @Override
+    public synchronized Editor edit(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            mEntries.put(key, entry);
+        } else if (entry.mCurrentEditor != null) {
+            return null;
+        }
+
+        final FileEditor editor = new FileEditor(entry);
+        entry.mCurrentEditor = editor;
+
+        // Flush so a crash mid-edit leaves the DIRTY record behind for cleanup
+        mJournalWriter.write(DIRTY + ' ' + key + '\n');
+        mJournalWriter.flush();
+
+        return editor;
+    }
+
+    @Override
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+
+        final Entry entry = mEntries.get(key);
+        if (entry == null || entry.mCurrentEditor != null) {
+            return false;
+        }
+
+        removeEntry(entry);
+        mEntries.remove(key);
+        return true;
+    }
+
+    @Override
+    public synchronized long size() {
+        return mSize;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mJournalWriter == null) {
+            return;
+        }
+
+        for (Entry entry : new ArrayList<Entry>(mEntries.values())) {
+            if (entry.mCurrentEditor != null) {
+                entry.mCurrentEditor.abort();
+            }
+        }
+
+        mJournalWriter.close();
+        mJournalWriter = null;
+        mCleanupExecutor.shutdown();
+    }
+
+    /**
+     * Evicts least recently used entries until the cache holds at most maxSize bytes.
+     *
+     * @return the number of bytes evicted
+     */
+    public synchronized long trimToSize(long maxSize) throws IOException {
+        final long before = mSize;
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.mCurrentEditor != null || !entry.mReadable) {
+                continue;
+            }
+
+            iterator.remove();
+            removeEntry(entry);
+        }
+
+        return before - mSize;
+    }
+
+    private void completeEdit(FileEditor editor, boolean success) throws IOException {
+        final Entry entry = editor.mEntry;
+        if (entry.mCurrentEditor != editor) {
+            throw new IllegalStateException("Edit is no longer current.");
+        }
+
+        final File dirty = entry.getDirtyFile();
+        if (success && dirty.exists()) {
+            final File clean = entry.getCleanFile();
+            if (!dirty.renameTo(clean)) {
+                // Some file systems won't rename over an existing file
+                clean.delete();
+                if (!dirty.renameTo(clean)) {
+                    success = false;
+                }
+            }
+
+            if (success) {
+                final long length = clean.length();
+                mSize += length - (entry.mReadable ? entry.mLength : 0);
+                entry.mLength = length;
+                entry.mReadable = true;
+                mReadableLengths.put(entry.mKey, length);
+            }
+        } else {
+            success = false;
+        }
+
+        if (!success) {
+            dirty.delete();
+        }
+
+        entry.mCurrentEditor = null;
+        mRedundantOps++;
+        if (entry.mReadable) {
+            mJournalWriter.write(CLEAN + ' ' + entry.mKey + ' ' + entry.mLength + '\n');
+        } else {
+            mEntries.remove(entry.mKey);
+            mJournalWriter.write(REMOVE + ' ' + entry.mKey + '\n');
+        }
+        mJournalWriter.flush();
+
+        if (mSize > mMaxSize || isCompactionRequired()) {
+            scheduleCleanup();
+        }
+    }
+
+    /**
+     * Deletes an entry's file and records it. The caller takes care of the index.
+     */
+    private void removeEntry(Entry entry) throws IOException {
+        final File file = entry.getCleanFile();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete " + file);
+        }
+
+        if (entry.mReadable) {
+            mSize -= entry.mLength;
+        }
+        mReadableLengths.remove(entry.mKey);
+        mRedundantOps++;
+        mJournalWriter.write(REMOVE + ' ' + entry.mKey + '\n');
+        mJournalWriter.flush();
+
+        if (isCompactionRequired()) {
+            scheduleCleanup();
+        }
+    }
+
+    private void readJournal() throws IOException {
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mJournalFile), "US-ASCII"));
+        try {
+            final String magic = reader.readLine();
+            final String version = reader.readLine();
+            final String blank = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version) || !"".equals(blank)) {
+                throw new IOException("Unexpected journal header: [" + magic + ", " + version + ", " + blank + "]");
+            }
+
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readJournalLine(line);
+                lineCount++;
+            }
+            mRedundantOps = lineCount - mEntries.size();
+        } finally {
+            reader.close();
+        }
+
+        // Edits that never completed died with the process. A replaced entry keeps its last clean
+        // version - unless the process died mid-commit, so its length is taken from the file.
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.mCurrentEditor != null) {
+                entry.mCurrentEditor = null;
+                entry.getDirtyFile().delete();
+
+                final File clean = entry.getCleanFile();
+                if (!entry.mReadable || !clean.exists()) {
+                    clean.delete();
+                    iterator.remove();
+                    continue;
+                }
+                entry.mLength = clean.length();
+            }
+
+            mSize += entry.mLength;
+            mReadableLengths.put(entry.mKey, entry.mLength);
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        final String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Unexpected journal line: " + line);
+        }
+
+        final String key = parts[1];
+        if (REMOVE.equals(parts[0]) && parts.length == 2) {
+            mEntries.remove(key);
+            return;
+        }
+
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            mEntries.put(key, entry);
+        }
+
+        if (CLEAN.equals(parts[0]) && parts.length == 3) {
+            entry.mReadable = true;
+            entry.mCurrentEditor = null;
+            try {
+                entry.mLength = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected journal line: " + line);
+            }
+        } else if (DIRTY.equals(parts[0]) && parts.length == 2) {
+            entry.mCurrentEditor = new FileEditor(entry);
+        } else {
+            throw new IOException("Unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * Builds the index from the files in the directory, oldest first. Each file takes a couple of
+     * stat calls, which add up on slow flash, so large directories are split across threads.
+     */
+    private void indexDirectory(File[] files) throws IOException {
+        final ScannedFile[] scanned;
+        final int threads = Math.min(MAX_SCAN_THREADS, Math.min(
+                Runtime.getRuntime().availableProcessors(), files.length / MIN_FILES_PER_SCAN_THREAD));
+        if (threads <= 1) {
+            scanned = scan(files, 0, files.length);
+        } else {
+            scanned = scanInParallel(files, threads);
+        }
+
+        Arrays.sort(scanned, new Comparator<ScannedFile>() {
+            @Override
+            public int compare(ScannedFile lhs, ScannedFile rhs) {
+                if (lhs == null || rhs == null) {
+                    return lhs == null ? (rhs == null ? 0 : 1) : -1;
+                }
+
+                return lhs.mLastModified < rhs.mLastModified ? -1 : (lhs.mLastModified == rhs.mLastModified ? 0 : 1);
+            }
+        });
+
+        for (ScannedFile file : scanned) {
+            if (file == null) {
+                break;
+            }
+
+            final Entry entry = new Entry(file.mKey);
+            entry.mReadable = true;
+            entry.mLength = file.mLength;
+            mEntries.put(file.mKey, entry);
+            mReadableLengths.put(file.mKey, file.mLength);
+            mSize += entry.mLength;
+        }
+    }
+
+    private static ScannedFile[] scanInParallel(final File[] files, int threads) throws IOException {
+        final ScannedFile[] scanned = new ScannedFile[files.length];
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<ScannedFile[]>> slices = new ArrayList<Future<ScannedFile[]>>(threads);
+            final int sliceSize = (files.length + threads - 1) / threads;
+            for (int start = 0; start < files.length; start += sliceSize) {
+                final int from = start;
+                final int to = Math.min(files.length, start + sliceSize);
+                slices.add(executor.submit(new Callable<ScannedFile[]>() {
+                    @Override
+                    public ScannedFile[] call() {
+                        return scan(files, from, to);
+                    }
+                }));
+            }
+
+            int count = 0;
+            for (Future<ScannedFile[]> slice : slices) {
+                for (ScannedFile file : slice.get()) {
+                    if (file == null) {
+                        break;
+                    }
+                    scanned[count++] = file;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing the cache directory");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to index the cache directory", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        return scanned;
+    }
+
+    /**
+     * Stats the cache files in files[from, to).
+     *
+     * @return the cache files found, packed at the front and followed by nulls
+     */
+    private static ScannedFile[] scan(File[] files, int from, int to) {
+        final ScannedFile[] scanned = new ScannedFile[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            final File file = files[i];
+            final String name = file.getName();
+            if (name.equals(JOURNAL_FILE) || !KEY_PATTERN.matcher(name).matches() || !file.isFile()) {
+                continue;
+            }
+
+            scanned[count++] = new ScannedFile(name, file.length(), file.lastModified());
+        }
+
+        return scanned;
+    }
+
+    /**
+     * Deletes dirty files of interrupted edits and temp files left by older versions.
+     */
+    private void deleteTempFiles(File[] files) {
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.equals(JOURNAL_FILE_TEMP)) {
+                continue;
+            }
+
+            if (name.endsWith(TEMP_SUFFIX) || LEGACY_TEMP_PATTERN.matcher(name).matches()) {
+                try {
+                    FileUtil.forceDelete(file);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to delete temp file " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a compact journal of the current index and swaps it in.
+     */
+    private void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+        }
+
+        final Writer writer = newJournalWriter(mJournalFileTemp, false);
+        try {
+            writer.write(MAGIC + '\n');
+            writer.write(VERSION + '\n');
+            writer.write('\n');
+            for (Entry entry : mEntries.values()) {
+                if (entry.mCurrentEditor != null) {
+                    writer.write(DIRTY + ' ' + entry.mKey + '\n');
+                } else {
+                    writer.write(CLEAN + ' ' + entry.mKey + ' ' + entry.mLength + '\n');
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!mJournalFileTemp.renameTo(mJournalFile)) {
+            mJournalFile.delete();
+            if (!mJournalFileTemp.renameTo(mJournalFile)) {
+                throw new IOException("Unable to replace journal " + mJournalFile);
+            }
+        }
+
+        mJournalWriter = newJournalWriter(mJournalFile, true);
+        mRedundantOps = 0;
+    }
+
+    private boolean isCompactionRequired() {
+        return mRedundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOps >= mEntries.size();
+    }
+
+    private void scheduleCleanup() {
+        if (!mCleanupExecutor.isShutdown()) {
+            mCleanupExecutor.execute(mCleanupRunnable);
+        }
+    }
+
+    private void checkNotClosed() {
+        if (mJournalWriter == null) {
+            throw new IllegalStateException("Disk cache is closed.");
+        }
+    }
+
+    private static void validateKey(String key) {
+        if (key == null || !KEY_PATTERN.matcher(key).matches() || key.equals(JOURNAL_FILE)) {
+            throw new IllegalArgumentException("Invalid key: " + key);
+        }
+    }
+
+    private static Writer newJournalWriter(File file, boolean append) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), "US-ASCII"));
+    }
+
+    private final class Entry {
+        private final String mKey;
+        private long mLength;
+        private boolean mReadable = false;
+        private FileEditor mCurrentEditor;
+
+        private Entry(String key) {
+            mKey = key;
+        }
+
+        private File getCleanFile() {
+            return new File(mDirectory, mKey);
+        }
+
+        private File getDirtyFile() {
+            return new File(mDirectory, mKey + TEMP_SUFFIX);
+        }
+    }
+
+    private static final class ScannedFile {
+        private final String mKey;
+        private final long mLength;
+        private final long mLastModified;
+
+        private ScannedFile(String key, long length, long lastModified) {
+            mKey = key;
+            mLength = length;
+            mLastModified = lastModified;
+        }
+    }
+
+    private final class FileEditor implements Editor {
+        private final Entry mEntry;
+        private OutputStream mOutputStream;
+        private boolean mDone = false;
+
+        private FileEditor(Entry entry) {
+            mEntry = entry;
+        }
+
+        @Override
+        public OutputStream newOutputStream() throws IOException {
+            synchronized (JournaledDiskCache.this) {
+                if (mDone) {
+                    throw new IllegalStateException("Edit is already complete.");
+                }
+
+                closeStream();
+                mOutputStream = new FileOutputStream(mEntry.getDirtyFile());
+                return mOutputStream;
+            }
+        }
+
+        @Override
+        public void commit() throws IOException {
+            synchronized (JournaledDiskCache.this) {
+                if (mDone) {
+                    throw new IllegalStateException("Edit is already complete.");
+                }
+
+                mDone = true;
+                closeStream();
+                checkNotClosed();
+                completeEdit(this, true);
+            }
+        }
+
+        @Override
+        public void abort() {
+            synchronized (JournaledDiskCache.this) {
+                if (mDone && mEntry.mCurrentEditor != this) {
+                    return;
+                }
+
+                mDone = true;
+                closeStream();
+                if (mJournalWriter == null) {
+                    mEntry.getDirtyFile().delete();
+                    mEntry.mCurrentEditor = null;
+                    return;
+                }
+
+                try {
+                    completeEdit(this, false);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error aborting edit of " + mEntry.mKey, e);
+                }
+            }
+        }
+
+        private void closeStream() {
+            if (mOutputStream != null) {
+                try {
+                    mOutputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing output stream", e);
+                }
+                mOutputStream = null;
+            }
+        }
+    }
+
+    private static final class FileSnapshot implements Snapshot {
+        private final FileInputStream mInputStream;
+        private final long mLength;
+
+        private FileSnapshot(FileInputStream is, long length) {
+            mInputStream = is;
+            mLength = length;
+        }
+
+        @Override
+        public long getLength() {
+            return mLength;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mInputStream;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() throws IOException {
+            return mInputStream.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mLength);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInputStream.close();
+        }
+    }
+}
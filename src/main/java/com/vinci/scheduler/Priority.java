@@ -0,0 +1,21 @@
+package com.vinci.scheduler;
+
+/**
+ * How urgently a load is wanted, most urgent first.
+ */
+public enum Priority {
+    /**
+     * Something on screen is waiting for it.
+     */
+    VISIBLE,
+
+    /**
+     * Likely to be on screen soon; loaded into memory.
+     */
+    PRECACHE,
+
+    /**
+     * Might be wanted eventually; only warmed on disk.
+     */
+    PREFETCH
+}
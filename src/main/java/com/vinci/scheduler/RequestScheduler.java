@@ -0,0 +1,453 @@
+package com.vinci.scheduler;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs jobs on a fixed set of worker threads, most urgent {@link Priority} first and newest first
+ * within a priority, so whatever was asked for last - usually what's on screen now - runs next.
+ * Newest means the request's sequence number, which stays with it as it's handed from one
+ * stage's scheduler to the next. Each stage only orders its own queue; a stage never waits on
+ * another, so work that's ready runs as soon as a thread is free.
+ *
+ * The queue is bounded. When it's full the oldest job of the least urgent priority is dropped to
+ * make room, or the new job itself if everything queued is more urgent. Jobs may carry a deadline
+ * after which they're dropped instead of run, and can be cancelled while queued (they're removed)
+ * or while running (they're flagged; jobs check {@link Task#isCancelled()} between steps).
+ *
+ * Dropped jobs - cancelled, expired or pushed out - hear about it through
+ * {@link Job#onDropped(Task)}, outside the scheduler's lock.
+ */
+public class RequestScheduler {
+    private static final String TAG = RequestScheduler.class.getSimpleName();
+    private static final Priority[] PRIORITIES = Priority.values();
+    private static final AtomicLong sSequence = new AtomicLong(0);
+    private static final Comparator<Task> NEWEST_FIRST = new Comparator<Task>() {
+        @Override
+        public int compare(Task lhs, Task rhs) {
+            // A sequence is only ever queued once per scheduler; the id just keeps the order total
+            if (lhs.mSequence != rhs.mSequence) {
+                return lhs.mSequence > rhs.mSequence ? -1 : 1;
+            }
+            return lhs.mId > rhs.mId ? -1 : (lhs.mId == rhs.mId ? 0 : 1);
+        }
+    };
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final TreeSet<Task>[] mQueues;
+    private final Thread[] mWorkers;
+    private final int mMaxQueued;
+    private int mQueued = 0;
+    private boolean mShutdown = false;
+    private long mDroppedCount = 0;
+    private long mExpiredCount = 0;
+    private long mCancelledCount = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RequestScheduler(String name, int threads, int maxQueued) {
+        if (threads <= 0 || maxQueued <= 0) {
+            throw new IllegalArgumentException("Invalid thread or queue size.");
+        }
+
+        mMaxQueued = maxQueued;
+        mQueues = new TreeSet[PRIORITIES.length];
+        for (int i = 0; i < mQueues.length; i++) {
+            mQueues[i] = new TreeSet<Task>(NEWEST_FIRST);
+        }
+
+        mWorkers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            mWorkers[i] = new Thread(new Worker(), name + "-" + i);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    public Task schedule(Job job, Priority priority) {
+        return schedule(job, priority, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param timeout how long the job may wait in the queue before it's dropped; 0 for no limit
+     */
+    public Task schedule(Job job, Priority priority, long timeout, TimeUnit unit) {
+        final long deadline = timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : 0;
+        return enqueue(new Task(job, priority, nextSequence(), deadline));
+    }
+
+    /**
+     * Schedules a job handed on from an earlier stage of a pipeline, at the priority it had
+     * there. It takes its place among the jobs of its priority by the sequence the request
+     * started with, so a request that finished the earlier stage late doesn't jump ahead of newer
+     * ones, and it has no deadline since work has already been spent on it.
+     *
+     * @param from the job's task at the earlier stage
+     * @param sequence the request's {@link #nextSequence()} from when it was first scheduled
+     */
+    public Task handOff(Job job, Task from, long sequence) {
+        return enqueue(new Task(job, from.mPriority, sequence, 0));
+    }
+
+    /**
+     * @return a sequence number newer than any before it, shared by every scheduler
+     */
+    public static long nextSequence() {
+        return sSequence.incrementAndGet();
+    }
+
+    private Task enqueue(Task task) {
+        final Priority priority = task.mPriority;
+
+        Task dropped = null;
+        mLock.lock();
+        try {
+            if (mShutdown) {
+                task.mState = State.DROPPED;
+                dropped = task;
+            } else {
+                if (mQueued >= mMaxQueued) {
+                    dropped = pollOldestLeastUrgent(priority);
+                    if (dropped == null) {
+                        task.mState = State.DROPPED;
+                        dropped = task;
+                    }
+                }
+
+                if (dropped != task) {
+                    task.mState = State.QUEUED;
+                    mQueues[priority.ordinal()].add(task);
+                    mQueued++;
+                    mNotEmpty.signal();
+                }
+            }
+
+            if (dropped != null) {
+                mDroppedCount++;
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        if (dropped != null) {
+            notifyDropped(dropped);
+        }
+
+        return task;
+    }
+
+    /**
+     * Stops the workers once they finish what they're running. Queued jobs are discarded without
+     * being told.
+     */
+    public void shutdown() {
+        mLock.lock();
+        try {
+            mShutdown = true;
+            for (TreeSet<Task> queue : mQueues) {
+                for (Task task : queue) {
+                    task.mState = State.CANCELLED;
+                    task.mCancelled = true;
+                }
+                queue.clear();
+            }
+            mQueued = 0;
+            mNotEmpty.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getQueuedCount() {
+        mLock.lock();
+        try {
+            return mQueued;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getQueuedCount(Priority priority) {
+        mLock.lock();
+        try {
+            return mQueues[priority.ordinal()].size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of jobs pushed out by a full queue
+     */
+    public long getDroppedCount() {
+        mLock.lock();
+        try {
+            return mDroppedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getExpiredCount() {
+        mLock.lock();
+        try {
+            return mExpiredCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getCancelledCount() {
+        mLock.lock();
+        try {
+            return mCancelledCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private Task pollOldestLeastUrgent(Priority incoming) {
+        for (int i = mQueues.length - 1; i >= 0; i--) {
+            if (!mQueues[i].isEmpty()) {
+                if (i < incoming.ordinal()) {
+                    // Everything queued is more urgent than the newcomer
+                    break;
+                }
+
+                final Task task = mQueues[i].pollLast();
+                task.mState = State.DROPPED;
+                mQueued--;
+                return task;
+            }
+        }
+
+        return null;
+    }
+
+    private boolean cancel(Task task) {
+        mLock.lock();
+        try {
+            if (task.mState == State.RUNNING) {
+                if (!task.mCancelled) {
+                    task.mCancelled = true;
+                    mCancelledCount++;
+                }
+                return true;
+            }
+
+            if (task.mState != State.QUEUED) {
+                return false;
+            }
+
+            mQueues[task.mPriority.ordinal()].remove(task);
+            mQueued--;
+            task.mState = State.CANCELLED;
+            task.mCancelled = true;
+            mCancelledCount++;
+        } finally {
+            mLock.unlock();
+        }
+
+        notifyDropped(task);
+        return true;
+    }
+
+    private void setPriority(Task task, Priority priority) {
+        mLock.lock();
+        try {
+            if (task.mPriority == priority) {
+                return;
+            }
+
+            // Moves to the front of its new priority - as if it had just been asked for
+            if (task.mState == State.QUEUED) {
+                mQueues[task.mPriority.ordinal()].remove(task);
+                task.mSequence = nextSequence();
+                mQueues[priority.ordinal()].add(task);
+            } else {
+                task.mSequence = nextSequence();
+            }
+            if (priority.compareTo(task.mPriority) < 0) {
+                task.mDeadline = 0;
+            }
+            task.mPriority = priority;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private static void notifyDropped(Task task) {
+        try {
+            task.mJob.onDropped(task);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error dropping job", e);
+        }
+    }
+
+    /**
+     * Work that can be scheduled.
+     */
+    public interface Job {
+        /**
+         * Called on a worker thread. Long jobs should check {@link Task#isCancelled()} between
+         * steps and give up if it's set.
+         */
+        void run(Task task);
+
+        /**
+         * Called instead of {@link #run(Task)} if the job was cancelled, expired or pushed out
+         * of the queue before it started. See {@link Task#getState()}.
+         */
+        void onDropped(Task task);
+    }
+
+    /**
+     * Handle on a scheduled job.
+     */
+    public final class Task {
+        private final Job mJob;
+        private final long mId = nextSequence();
+        private volatile long mSequence;
+        private volatile long mDeadline;
+        private volatile Priority mPriority;
+        private volatile State mState = State.QUEUED;
+        private volatile boolean mCancelled = false;
+
+        private Task(Job job, Priority priority, long sequence, long deadline) {
+            mJob = job;
+            mPriority = priority;
+            mSequence = sequence;
+            mDeadline = deadline;
+        }
+
+        /**
+         * Removes the job from the queue, or asks it to stop if it's already running.
+         *
+         * @return false if the job had already finished or been dropped
+         */
+        public boolean cancel() {
+            return RequestScheduler.this.cancel(this);
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * @return the request's sequence, to {@link #handOff hand it off} to the next stage with.
+         *         Promoting the task renews it.
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * Moves a queued job to another priority, eg. when a prefetched image scrolls into view.
+         * It goes to the front of its new priority. A job moved to a more urgent priority loses
+         * its deadline, since whoever's asking now is waiting for it.
+         */
+        public void setPriority(Priority priority) {
+            RequestScheduler.this.setPriority(this, priority);
+        }
+
+        public State getState() {
+            return mState;
+        }
+
+        private boolean isExpired(long now) {
+            return mDeadline != 0 && now - mDeadline > 0;
+        }
+    }
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        FINISHED,
+        CANCELLED,
+        EXPIRED,
+        DROPPED
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Task task = null;
+                List<Task> expired = null;
+
+                mLock.lock();
+                try {
+                    while (task == null) {
+                        while (!mShutdown && mQueued == 0) {
+                            mNotEmpty.awaitUninterruptibly();
+                        }
+
+                        if (mShutdown) {
+                            break;
+                        }
+
+                        task = poll();
+
+                        if (task.isExpired(System.nanoTime())) {
+                            task.mState = State.EXPIRED;
+                            mExpiredCount++;
+                            if (expired == null) {
+                                expired = new ArrayList<Task>();
+                            }
+                            expired.add(task);
+                            task = null;
+                        }
+                    }
+
+                    if (task != null) {
+                        task.mState = State.RUNNING;
+                    }
+                } finally {
+                    mLock.unlock();
+                }
+
+                if (expired != null) {
+                    for (Task expiredTask : expired) {
+                        notifyDropped(expiredTask);
+                    }
+                }
+
+                if (task == null) {
+                    return;
+                }
+
+                try {
+                    task.mJob.run(task);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Error running job", e);
+                } finally {
+                    task.mState = State.FINISHED;
+                }
+            }
+        }
+
+        private Task poll() {
+            for (TreeSet<Task> queue : mQueues) {
+                final Task task = queue.pollFirst();
+                if (task != null) {
+                    mQueued--;
+                    return task;
+                }
+            }
+
+            return null;
+        }
+    }
+}
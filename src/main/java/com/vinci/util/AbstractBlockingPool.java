@@ -1,19 +1,49 @@
 package com.vinci.util;
 
-import java.util.LinkedHashSet;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * Bounded, thread-safe resource pool.
+ *
+ * Released resources are first parked in a small per-thread magazine so that an acquire/release
+ * pair on the same thread never touches shared state. Magazine overflow spills into a lock-free
+ * free-list shared by every thread. Threads that find the pool exhausted park until a resource is
+ * released; while anybody is waiting, releases bypass the magazines and waiters are allowed to
+ * steal from other threads' magazines so nothing is stranded.
+ *
  * Created by austinh on 4/7/14.
  */
 public abstract class AbstractBlockingPool<ResourceType> implements Pool<ResourceType> {
-    private static final String TAG = AbstractBlockingPool.class.getSimpleName();
+    private static final int MAGAZINE_SIZE = 4;
 
-    private int mCapacity;
-    private LinkedHashSet<ResourceType> mPool = new LinkedHashSet<ResourceType>();
-    private LinkedHashSet<ResourceType> mAcquired = new LinkedHashSet<ResourceType>();
-    private BlockingDeque<ResourceType> mAvailable = new LinkedBlockingDeque<ResourceType>();
+    private final int mCapacity;
+    private final AtomicInteger mCreated = new AtomicInteger(0);
+    private final AtomicInteger mWaiting = new AtomicInteger(0);
+    private final AtomicLong mWaitCount = new AtomicLong(0);
+    private final AtomicLong mTimeoutCount = new AtomicLong(0);
+    private final AtomicReference<Node<ResourceType>> mFreeList = new AtomicReference<Node<ResourceType>>();
+    private final ConcurrentHashMap<ResourceType, AtomicBoolean> mPool = new ConcurrentHashMap<ResourceType, AtomicBoolean>();
+    private final Queue<Thread> mParked = new ConcurrentLinkedQueue<Thread>();
+    private final List<Magazine<ResourceType>> mMagazines = new CopyOnWriteArrayList<Magazine<ResourceType>>();
+    private final ThreadLocal<Magazine<ResourceType>> mMagazine = new ThreadLocal<Magazine<ResourceType>>() {
+        @Override
+        protected Magazine<ResourceType> initialValue() {
+            final Magazine<ResourceType> magazine = new Magazine<ResourceType>(MAGAZINE_SIZE);
+            mMagazines.add(magazine);
+            return magazine;
+        }
+    };
 
     public AbstractBlockingPool(int capacity) {
         mCapacity = capacity;
@@ -21,57 +51,304 @@ public abstract class AbstractBlockingPool<ResourceType> implements Pool<Resourc
 
     @Override
     public ResourceType acquire() {
-        final ResourceType resource;
-        if (mAvailable.isEmpty() && mPool.size() < mCapacity) {
-            resource = produce();
-
-            mPool.add(resource);
-        } else {
-            try {
-                resource = mAvailable.take();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
+        try {
+            return acquire(false, 0);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
         }
+    }
 
-        mAcquired.add(resource);
-
-        return resource;
+    @Override
+    public ResourceType tryAcquire(long timeout, TimeUnit unit) {
+        try {
+            return acquire(true, unit.toNanos(timeout));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public void release(ResourceType resource) {
-        if (!mPool.contains(resource)) {
+        final AtomicBoolean acquired = mPool.get(resource);
+        if (acquired == null) {
             throw new IllegalArgumentException("Resource did not come from this pool");
         }
 
-        if (!mAcquired.contains(resource)) {
+        if (!acquired.compareAndSet(true, false)) {
             throw new IllegalArgumentException("Resource has not been acquired.");
         }
 
-        if (mAcquired.remove(resource)) {
-            mAvailable.add(resource);
+        // Fast path - keep the resource local to this thread. The waiting check has to happen after
+        // the resource is visible in the magazine; a waiter that registered in between will either
+        // steal it or we take it back and hand it over below.
+        final Magazine<ResourceType> magazine = mMagazine.get();
+        if (mWaiting.get() == 0 && magazine.offer(resource)) {
+            if (mWaiting.get() == 0 || !magazine.remove(resource)) {
+                return;
+            }
+        }
+
+        push(resource);
+
+        final Thread waiter = mParked.poll();
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
         }
     }
 
     @Override
-    public synchronized void drain() {
+    public void drain() {
+        mFreeList.set(null);
+        for (Magazine<ResourceType> magazine : mMagazines) {
+            magazine.clear();
+        }
         mPool.clear();
-        mAvailable.clear();
-        mAcquired.clear();
+        mCreated.set(0);
+    }
+
+    /**
+     * Lets go of the resources nobody has acquired, eg. when memory is low. Unlike
+     * {@link #drain()} acquired resources stay part of the pool, and the ones let go of may be
+     * produced again later.
+     *
+     * @return the number of resources let go of
+     */
+    public int trimIdle() {
+        int trimmed = 0;
+        ResourceType resource;
+        while ((resource = pop()) != null || (resource = steal()) != null) {
+            mPool.remove(resource);
+            mCreated.decrementAndGet();
+            trimmed++;
+        }
+
+        // Anybody who started waiting meanwhile may produce one now
+        if (trimmed > 0) {
+            final Thread waiter = mParked.poll();
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+
+        return trimmed;
+    }
+
+    /**
+     * @return the number of acquires that found the pool exhausted and had to wait
+     */
+    public long getWaitCount() {
+        return mWaitCount.get();
+    }
+
+    /**
+     * @return the number of timed acquires that gave up without a resource
+     */
+    public long getTimeoutCount() {
+        return mTimeoutCount.get();
+    }
+
+    /**
+     * @return the number of resources produced since the pool was created or last drained
+     */
+    public int getCreatedCount() {
+        return mCreated.get();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
     }
 
     /* package */ int getCreatableAmount() {
-        return mCapacity - mPool.size();
+        return mCapacity - mCreated.get();
     }
 
     /* package */ int getAvailable() {
-        return mCapacity - mAcquired.size();
+        return mCapacity - getUnavailable();
     }
 
     /* package */ int getUnavailable() {
-        return mAcquired.size();
+        int unavailable = 0;
+        for (AtomicBoolean acquired : mPool.values()) {
+            if (acquired.get()) {
+                unavailable++;
+            }
+        }
+
+        return unavailable;
     }
 
     protected abstract ResourceType produce();
+
+    private ResourceType acquire(boolean timed, long nanos) throws InterruptedException {
+        ResourceType resource = poll();
+        if (resource != null) {
+            return resource;
+        }
+
+        mWaitCount.incrementAndGet();
+        mWaiting.incrementAndGet();
+        try {
+            final Thread current = Thread.currentThread();
+            final long deadline = timed ? System.nanoTime() + nanos : 0;
+            while (true) {
+                // Register before re-checking so a concurrent release can't slip between the two
+                mParked.add(current);
+
+                resource = poll();
+                if (resource == null) {
+                    resource = steal();
+                }
+
+                if (resource != null) {
+                    mParked.remove(current);
+                    return resource;
+                }
+
+                if (timed) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        mParked.remove(current);
+                        mTimeoutCount.incrementAndGet();
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    LockSupport.park(this);
+                }
+
+                mParked.remove(current);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            mWaiting.decrementAndGet();
+        }
+    }
+
+    private ResourceType poll() {
+        // Thread local magazine
+        ResourceType resource = mMagazine.get().poll();
+
+        // Shared free-list
+        if (resource == null) {
+            resource = pop();
+        }
+
+        // Room left to create a new one
+        if (resource == null) {
+            int created;
+            while ((created = mCreated.get()) < mCapacity) {
+                if (mCreated.compareAndSet(created, created + 1)) {
+                    resource = produce();
+                    mPool.put(resource, new AtomicBoolean(true));
+                    return resource;
+                }
+            }
+        }
+
+        if (resource != null) {
+            markAcquired(resource);
+        }
+
+        return resource;
+    }
+
+    private ResourceType steal() {
+        for (Magazine<ResourceType> magazine : mMagazines) {
+            final ResourceType resource = magazine.poll();
+            if (resource != null) {
+                markAcquired(resource);
+                return resource;
+            }
+        }
+
+        return null;
+    }
+
+    private void markAcquired(ResourceType resource) {
+        final AtomicBoolean acquired = mPool.get(resource);
+        if (acquired != null) {
+            acquired.set(true);
+        }
+    }
+
+    private void push(ResourceType resource) {
+        final Node<ResourceType> node = new Node<ResourceType>(resource);
+        Node<ResourceType> head;
+        do {
+            head = mFreeList.get();
+            node.mNext = head;
+        } while (!mFreeList.compareAndSet(head, node));
+    }
+
+    private ResourceType pop() {
+        Node<ResourceType> head;
+        do {
+            head = mFreeList.get();
+            if (head == null) {
+                return null;
+            }
+        } while (!mFreeList.compareAndSet(head, head.mNext));
+
+        return head.mResource;
+    }
+
+    private static final class Node<ResourceType> {
+        private final ResourceType mResource;
+        private Node<ResourceType> mNext;
+
+        private Node(ResourceType resource) {
+            mResource = resource;
+        }
+    }
+
+    /**
+     * Fixed size stash owned by a single thread. Slots are atomic so that waiting threads can steal
+     * from it; the owner's CAS is uncontended in the common case.
+     */
+    private static final class Magazine<ResourceType> {
+        private final AtomicReferenceArray<ResourceType> mSlots;
+
+        private Magazine(int size) {
+            mSlots = new AtomicReferenceArray<ResourceType>(size);
+        }
+
+        private boolean offer(ResourceType resource) {
+            for (int i = 0; i < mSlots.length(); i++) {
+                if (mSlots.get(i) == null && mSlots.compareAndSet(i, null, resource)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private ResourceType poll() {
+            for (int i = mSlots.length() - 1; i >= 0; i--) {
+                final ResourceType resource = mSlots.get(i);
+                if (resource != null && mSlots.compareAndSet(i, resource, null)) {
+                    return resource;
+                }
+            }
+
+            return null;
+        }
+
+        private boolean remove(ResourceType resource) {
+            for (int i = 0; i < mSlots.length(); i++) {
+                if (mSlots.get(i) == resource) {
+                    return mSlots.compareAndSet(i, resource, null);
+                }
+            }
+
+            return false;
+        }
+
+        private void clear() {
+            for (int i = 0; i < mSlots.length(); i++) {
+                mSlots.set(i, null);
+            }
+        }
+    }
 }
@@ -1,24 +1,309 @@
 package com.vinci.util;
 
 import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
 
 /**
+ * Pool of reusable bitmaps keyed by {@link Bitmap.Config} and byte-size class, bounded by a global
+ * byte budget for idle bitmaps.
+ *
+ * On KitKat and later BitmapFactory can decode into any mutable bitmap with a large enough
+ * allocation, so {@link #acquire(int, int, Bitmap.Config)} hands out the smallest idle bitmap that
+ * fits. Earlier platforms only reuse bitmaps of the exact same dimensions. Buckets showing different
+ * sizes of the same images can share a single pool.
+ *
  * Created by austinh on 4/7/14.
  */
-public class BitmapPool extends AbstractBlockingPool<Bitmap> {
-    private final int mWidth;
-    private final int mHeight;
-    private final Bitmap.Config mConfig;
+public class BitmapPool {
+    private static final int KITKAT = 19;
+    private static final int MIN_SIZE_CLASS = 4096;
+    private static final int MAX_OVERSIZE_FACTOR = 4;
+
+    private final long mMaxBytes;
+    private final boolean mReconfigurable;
+    private final Map<Bitmap.Config, TreeMap<Integer, LinkedList<Entry>>> mSizeClasses =
+            new EnumMap<Bitmap.Config, TreeMap<Integer, LinkedList<Entry>>>(Bitmap.Config.class);
+    private final LinkedHashMap<Bitmap, Entry> mIdle = new LinkedHashMap<Bitmap, Entry>();
+    private final WeakHashMap<Bitmap, Integer> mAllocations = new WeakHashMap<Bitmap, Integer>();
+    private long mBytes = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    public BitmapPool(long maxBytes) {
+        this(maxBytes, Build.VERSION.SDK_INT >= KITKAT);
+    }
+
+    /* package */ BitmapPool(long maxBytes, boolean reconfigurable) {
+        mMaxBytes = maxBytes;
+        mReconfigurable = reconfigurable;
+    }
+
+    /**
+     * Hands out a mutable bitmap that can be decoded into at the given size and config. Reuses the
+     * smallest fitting idle bitmap if there is one, otherwise allocates a new one.
+     */
+    public Bitmap acquire(int width, int height, Bitmap.Config config) {
+        final int bytes = BitmapUtil.getByteCount(width, height, config);
+
+        synchronized (this) {
+            final Entry entry = findEntry(width, height, config, bytes);
+            if (entry != null) {
+                removeEntry(entry);
+                mHits++;
+                return entry.mBitmap;
+            }
+
+            mMisses++;
+        }
+
+        final Bitmap bitmap = createBitmap(width, height, config);
+        synchronized (this) {
+            mAllocations.put(bitmap, bytes);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Hands out a cleared mutable bitmap of exactly the given size and config, eg. to draw into.
+     */
+    public Bitmap acquireExact(int width, int height, Bitmap.Config config) {
+        final int bytes = BitmapUtil.getByteCount(width, height, config);
+
+        Bitmap bitmap = null;
+        synchronized (this) {
+            // Bigger allocations can only be reconfigured from KitKat on, so only take an exact match
+            final Entry entry = findExactEntry(width, height, config, bytes);
+            if (entry != null) {
+                removeEntry(entry);
+                mHits++;
+                bitmap = entry.mBitmap;
+            } else {
+                mMisses++;
+            }
+        }
+
+        if (bitmap == null) {
+            bitmap = createBitmap(width, height, config);
+            synchronized (this) {
+                mAllocations.put(bitmap, bytes);
+            }
+        }
+        bitmap.eraseColor(0);
+
+        return bitmap;
+    }
+
+    /**
+     * Returns a bitmap to the pool. Bitmaps that can't be decoded into again are dropped, and the
+     * least recently released bitmaps are dropped while the pool is over its byte budget.
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mIdle.containsKey(bitmap)) {
+                return;
+            }
+
+            final Entry entry = describe(bitmap, mAllocations.get(bitmap));
+            if (entry == null) {
+                return;
+            }
+
+            if (entry.mBytes > mMaxBytes) {
+                mEvictions++;
+                return;
+            }
+
+            TreeMap<Integer, LinkedList<Entry>> sizeClasses = mSizeClasses.get(entry.mConfig);
+            if (sizeClasses == null) {
+                sizeClasses = new TreeMap<Integer, LinkedList<Entry>>();
+                mSizeClasses.put(entry.mConfig, sizeClasses);
+            }
+
+            final int sizeClass = getSizeClass(entry.mBytes);
+            LinkedList<Entry> entries = sizeClasses.get(sizeClass);
+            if (entries == null) {
+                entries = new LinkedList<Entry>();
+                sizeClasses.put(sizeClass, entries);
+            }
+
+            entries.addFirst(entry);
+            mIdle.put(bitmap, entry);
+            mBytes += entry.mBytes;
+
+            trimToSize(mMaxBytes);
+        }
+    }
+
+    /**
+     * Drops idle bitmaps, oldest first, until the pool holds at most maxBytes.
+     *
+     * @return the number of bytes released
+     */
+    public synchronized long trimToSize(long maxBytes) {
+        final long before = mBytes;
+        final Iterator<Entry> iterator = mIdle.values().iterator();
+        while (mBytes > maxBytes && iterator.hasNext()) {
+            final Entry eldest = iterator.next();
+            iterator.remove();
+            removeFromSizeClass(eldest);
+            mBytes -= eldest.mBytes;
+            mEvictions++;
+        }
+
+        return before - mBytes;
+    }
+
+    public synchronized void drain() {
+        mSizeClasses.clear();
+        mIdle.clear();
+        mBytes = 0;
+    }
 
-    public BitmapPool(int capacity, int width, int height, Bitmap.Config config) {
-        super(capacity);
-        mWidth = width;
-        mHeight = height;
-        mConfig = config;
+    public synchronized long getBytes() {
+        return mBytes;
     }
 
-    @Override
-    protected Bitmap produce() {
-        return Bitmap.createBitmap(mWidth, mHeight, mConfig);
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * Allocates a new bitmap. Overridden in tests, where bitmaps only exist as stubs.
+     */
+    /* package */ Bitmap createBitmap(int width, int height, Bitmap.Config config) {
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Reads what a released bitmap is pooled by. Overridden in tests along with
+     * {@link #createBitmap(int, int, Bitmap.Config)}.
+     *
+     * @param allocation the bytes allocated for the bitmap if the pool created it, otherwise null
+     * @return null if nothing can be decoded into the bitmap again
+     */
+    /* package */ Entry describe(Bitmap bitmap, Integer allocation) {
+        if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return null;
+        }
+
+        return new Entry(bitmap, bitmap.getConfig(), bitmap.getWidth(), bitmap.getHeight(),
+                allocation != null ? allocation : bitmap.getByteCount());
+    }
+
+    private Entry findEntry(int width, int height, Bitmap.Config config, int bytes) {
+        final TreeMap<Integer, LinkedList<Entry>> sizeClasses = mSizeClasses.get(config);
+        if (sizeClasses == null) {
+            return null;
+        }
+
+        if (!mReconfigurable) {
+            // Only an exact match can be decoded into
+            return findExactEntry(width, height, config, bytes);
+        }
+
+        // Walk the size classes upward and take the smallest allocation that fits
+        final long maxBytes = (long) bytes * MAX_OVERSIZE_FACTOR;
+        Entry best = null;
+        for (Map.Entry<Integer, LinkedList<Entry>> sizeClass : sizeClasses.tailMap(getSizeClass(bytes)).entrySet()) {
+            for (Entry entry : sizeClass.getValue()) {
+                if (entry.mBytes >= bytes && entry.mBytes <= maxBytes && (best == null || entry.mBytes < best.mBytes)) {
+                    best = entry;
+                }
+            }
+
+            if (best != null || sizeClass.getKey() > maxBytes) {
+                break;
+            }
+        }
+
+        return best;
+    }
+
+    private Entry findExactEntry(int width, int height, Bitmap.Config config, int bytes) {
+        final TreeMap<Integer, LinkedList<Entry>> sizeClasses = mSizeClasses.get(config);
+        if (sizeClasses == null) {
+            return null;
+        }
+
+        final LinkedList<Entry> entries = sizeClasses.get(getSizeClass(bytes));
+        if (entries != null) {
+            for (Entry entry : entries) {
+                if (entry.mWidth == width && entry.mHeight == height) {
+                    return entry;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private void removeEntry(Entry entry) {
+        mIdle.remove(entry.mBitmap);
+        removeFromSizeClass(entry);
+        mBytes -= entry.mBytes;
+    }
+
+    private void removeFromSizeClass(Entry entry) {
+        final TreeMap<Integer, LinkedList<Entry>> sizeClasses = mSizeClasses.get(entry.mConfig);
+        final int sizeClass = getSizeClass(entry.mBytes);
+        final LinkedList<Entry> entries = sizeClasses.get(sizeClass);
+        entries.remove(entry);
+        if (entries.isEmpty()) {
+            sizeClasses.remove(sizeClass);
+        }
+    }
+
+    /**
+     * Rounds a byte count up to its size class - four classes per power of two.
+     */
+    /* package */ static int getSizeClass(int bytes) {
+        if (bytes <= MIN_SIZE_CLASS) {
+            return MIN_SIZE_CLASS;
+        }
+
+        final long step = Integer.highestOneBit(bytes - 1) / 4;
+        return (int) (((bytes + step - 1) / step) * step);
+    }
+
+    /* package */ static final class Entry {
+        private final Bitmap mBitmap;
+        private final Bitmap.Config mConfig;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mBytes;
+
+        /* package */ Entry(Bitmap bitmap, Bitmap.Config config, int width, int height, int bytes) {
+            mBitmap = bitmap;
+            mConfig = config;
+            mWidth = width;
+            mHeight = height;
+            mBytes = bytes;
+        }
     }
 }
@@ -26,4 +26,54 @@ public class BitmapUtil {
             return null;
         }
     }
+
+    public static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == null) {
+            return 4;
+        }
+
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case ARGB_8888:
+            default:
+                return 4;
+        }
+    }
+
+    public static int getByteCount(int width, int height, Bitmap.Config config) {
+        return width * height * getBytesPerPixel(config);
+    }
+
+    /**
+     * @return the largest power of two a source image can be subsampled by while still covering
+     *         width x height
+     */
+    public static int getSampleSize(int sourceWidth, int sourceHeight, int width, int height) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0) {
+            return sampleSize;
+        }
+
+        while (sourceWidth / (sampleSize * 2) >= width && sourceHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * @return the factor that shrinks a source image until it just covers width x height, keeping
+     *         its aspect ratio; never more than 1
+     */
+    public static float getCoverScale(int sourceWidth, int sourceHeight, int width, int height) {
+        if (sourceWidth <= 0 || sourceHeight <= 0 || width <= 0 || height <= 0) {
+            return 1f;
+        }
+
+        return Math.min(1f, Math.max((float) width / sourceWidth, (float) height / sourceHeight));
+    }
 }
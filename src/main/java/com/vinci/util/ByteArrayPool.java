@@ -0,0 +1,119 @@
+package com.vinci.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of scratch byte arrays in power-of-two size classes, bounded by a byte budget for idle
+ * arrays. Hands out arrays at least as long as asked for, so callers must track how much of one
+ * they've filled. Arrays aren't cleared between uses.
+ */
+public class ByteArrayPool {
+    private static final int MIN_SIZE_CLASS = 4096;
+    private static final int MAX_CLASSES = 32;
+
+    private final long mMaxBytes;
+    private final ArrayDeque<byte[]>[] mSizeClasses;
+    private long mBytes = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ByteArrayPool(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid max bytes.");
+        }
+
+        mMaxBytes = maxBytes;
+        mSizeClasses = new ArrayDeque[MAX_CLASSES];
+    }
+
+    /**
+     * @return an array of at least length bytes, rounded up to its size class
+     */
+    public byte[] acquire(int length) {
+        final int sizeClass = getSizeClass(length);
+
+        synchronized (this) {
+            final ArrayDeque<byte[]> arrays = mSizeClasses[getIndex(sizeClass)];
+            if (arrays != null && !arrays.isEmpty()) {
+                final byte[] array = arrays.pollFirst();
+                mBytes -= array.length;
+                mHits++;
+                return array;
+            }
+
+            mMisses++;
+        }
+
+        return new byte[sizeClass];
+    }
+
+    /**
+     * Returns an array for reuse. Arrays that aren't a size class, or don't fit in the budget,
+     * are left to the garbage collector.
+     */
+    public void release(byte[] array) {
+        if (array == null || array.length != getSizeClass(array.length)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mBytes + array.length > mMaxBytes) {
+                return;
+            }
+
+            final int index = getIndex(array.length);
+            if (mSizeClasses[index] == null) {
+                mSizeClasses[index] = new ArrayDeque<byte[]>();
+            }
+
+            mSizeClasses[index].addFirst(array);
+            mBytes += array.length;
+        }
+    }
+
+    /**
+     * Drops idle arrays, largest first, until the pool holds at most maxBytes.
+     *
+     * @return the number of bytes released
+     */
+    public synchronized long trimToSize(long maxBytes) {
+        final long before = mBytes;
+        for (int i = mSizeClasses.length - 1; i >= 0 && mBytes > maxBytes; i--) {
+            final ArrayDeque<byte[]> arrays = mSizeClasses[i];
+            while (arrays != null && !arrays.isEmpty() && mBytes > maxBytes) {
+                mBytes -= arrays.pollFirst().length;
+            }
+        }
+
+        return before - mBytes;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /* package */ static int getSizeClass(int length) {
+        if (length <= MIN_SIZE_CLASS) {
+            return MIN_SIZE_CLASS;
+        }
+
+        return Integer.highestOneBit(length - 1) << 1;
+    }
+
+    private static int getIndex(int sizeClass) {
+        return Integer.numberOfTrailingZeros(sizeClass);
+    }
+}
@@ -1,5 +1,6 @@
 package com.vinci.util;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -20,4 +21,15 @@ public class IoUtil {
             os.write(buffer, 0, len);
         }
     }
+
+    public static void readFully(InputStream is, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int read = is.read(buffer, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException("Expected " + length + " bytes, got " + offset);
+            }
+            offset += read;
+        }
+    }
 }
@@ -1,10 +1,13 @@
 package com.vinci.util;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by austinh on 4/7/14.
  */
 public interface Pool<ResourceType> {
     ResourceType acquire();
+    ResourceType tryAcquire(long timeout, TimeUnit unit);
     void release(ResourceType resource);
     void drain();
 }
@@ -0,0 +1,80 @@
+package com.vinci.util;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A drawable whose bitmap goes back to a {@link BitmapPool} once nobody holds it any more. It
+ * starts out with one reference, owned by whoever created it; the memory cache, views and
+ * anything else that keeps it past a callback {@link #acquire(Drawable) acquire} their own and
+ * {@link #release(Drawable) release} it when they're done. A bitmap that's still on screen is
+ * never decoded over. Bucket listeners that aren't {@link com.vinci.AcquiringListener}s are handed
+ * a reference along with the drawable.
+ *
+ * Holders that never release just keep the bitmap out of the pool - it's garbage collected as
+ * usual.
+ */
+public class PooledBitmapDrawable extends BitmapDrawable {
+    private final Bitmap mBitmap;
+    private final BitmapPool mBitmapPool;
+    private final AtomicInteger mReferences = new AtomicInteger(1);
+
+    public PooledBitmapDrawable(Resources resources, Bitmap bitmap, BitmapPool bitmapPool) {
+        super(resources, bitmap);
+        mBitmap = bitmap;
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Takes a reference, unless the bitmap has already gone back to the pool.
+     *
+     * @return false if the drawable mustn't be used any more
+     */
+    public boolean acquire() {
+        int references;
+        do {
+            references = mReferences.get();
+            if (references <= 0) {
+                return false;
+            }
+        } while (!mReferences.compareAndSet(references, references + 1));
+
+        return true;
+    }
+
+    /**
+     * Drops a reference, handing the bitmap back to the pool if it was the last.
+     */
+    public void release() {
+        final int references = mReferences.decrementAndGet();
+        if (references == 0) {
+            mBitmapPool.release(mBitmap);
+        } else if (references < 0) {
+            throw new IllegalStateException("Drawable released too often.");
+        }
+    }
+
+    public int getReferenceCount() {
+        return mReferences.get();
+    }
+
+    /**
+     * @return true if the drawable may be used - it's either not pooled or a reference was taken
+     */
+    public static boolean acquire(Drawable drawable) {
+        return !(drawable instanceof PooledBitmapDrawable) || ((PooledBitmapDrawable) drawable).acquire();
+    }
+
+    /**
+     * Drops a reference taken by {@link #acquire(Drawable)}. Does nothing for other drawables.
+     */
+    public static void release(Drawable drawable) {
+        if (drawable instanceof PooledBitmapDrawable) {
+            ((PooledBitmapDrawable) drawable).release();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.vinci.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out permits - eg. bytes - to a steady rate. Each caller is let through at once and pays
+ * for what it took by making the next caller wait, so there's no waiting while the limiter is idle.
+ */
+public class RateLimiter {
+    private long mPermitsPerSecond;
+    private long mNextFree = 0;
+
+    /**
+     * @param permitsPerSecond the rate, or 0 for no limit
+     */
+    public RateLimiter(long permitsPerSecond) {
+        setRate(permitsPerSecond);
+    }
+
+    public synchronized void setRate(long permitsPerSecond) {
+        if (permitsPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid rate.");
+        }
+
+        mPermitsPerSecond = permitsPerSecond;
+    }
+
+    public synchronized long getRate() {
+        return mPermitsPerSecond;
+    }
+
+    public void acquire(long permits) throws InterruptedException {
+        final long wait = reserve(permits, System.nanoTime());
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * @return how long to wait, in nanoseconds, before using the permits
+     */
+    /* package */ synchronized long reserve(long permits, long now) {
+        if (mPermitsPerSecond == 0) {
+            return 0;
+        }
+
+        // Unused time doesn't bank up into a burst
+        final long start = mNextFree - now > 0 ? mNextFree : now;
+        mNextFree = start + permits * TimeUnit.SECONDS.toNanos(1) / mPermitsPerSecond;
+
+        return start - now;
+    }
+}
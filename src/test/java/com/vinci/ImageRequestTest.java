@@ -0,0 +1,144 @@
+package com.vinci;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import com.vinci.util.BitmapPool;
+import com.vinci.util.PooledBitmapDrawable;
+import com.vinci.util.PooledDrawables;
+import junit.framework.TestCase;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class ImageRequestTest extends TestCase {
+    private Bucket mBucket;
+    private ImageRequest mRequest;
+
+    @Override
+    public void setUp() throws Exception {
+        mBucket = Mockito.mock(Bucket.class);
+        mRequest = new ImageRequest(mBucket, "image", 100, 100, ImageRequest.DIRECT);
+    }
+
+    public void testCompletes() throws Exception {
+        final Drawable drawable = Mockito.mock(Drawable.class);
+        mRequest.onLoaded("image", drawable, 100, 100);
+
+        assertTrue(mRequest.isDone());
+        assertSame(drawable, mRequest.get());
+        assertSame(drawable, mRequest.get(0, TimeUnit.MILLISECONDS));
+
+        // Only the first completion counts
+        mRequest.onFailure("image", 100, 100);
+        assertSame(drawable, mRequest.get());
+    }
+
+    public void testFailure() throws Exception {
+        mRequest.onFailure("image", 100, 100);
+
+        try {
+            mRequest.get();
+            fail("Failed request returned");
+        } catch (ExecutionException e) {
+            // Expected
+        }
+    }
+
+    public void testTimeout() throws Exception {
+        try {
+            mRequest.get(10, TimeUnit.MILLISECONDS);
+            fail("Pending request returned");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+
+        // Still running
+        assertFalse(mRequest.isDone());
+        Mockito.verifyZeroInteractions(mBucket);
+    }
+
+    public void testCancelStopsListening() throws Exception {
+        assertTrue(mRequest.cancel(false));
+        assertTrue(mRequest.isCancelled());
+        Mockito.verify(mBucket).cancel("image", 100, 100, mRequest);
+
+        // Too late to load
+        mRequest.onLoaded("image", Mockito.mock(Drawable.class), 100, 100);
+        assertFalse(mRequest.cancel(false));
+        try {
+            mRequest.get();
+            fail("Cancelled request returned");
+        } catch (CancellationException e) {
+            // Expected
+        }
+    }
+
+    public void testListenersRunOnExecutor() {
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        final ImageRequest request = new ImageRequest(mBucket, "image", 100, 100, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+
+        final BucketListener before = Mockito.mock(BucketListener.class);
+        request.addListener(before);
+
+        final Drawable drawable = Mockito.mock(Drawable.class);
+        request.onLoaded("image", drawable, 100, 100);
+
+        // Added after completion - still told
+        final BucketListener after = Mockito.mock(BucketListener.class);
+        request.addListener(after);
+
+        assertEquals(2, queued.size());
+        Mockito.verifyZeroInteractions(before, after);
+
+        for (Runnable runnable : queued) {
+            runnable.run();
+        }
+        Mockito.verify(before).onLoaded("image", drawable, 100, 100);
+        Mockito.verify(after).onLoaded("image", drawable, 100, 100);
+    }
+
+    public void testHoldsItsDrawableUntilReleased() throws Exception {
+        final BitmapPool bitmapPool = Mockito.mock(BitmapPool.class);
+        final Bitmap bitmap = PooledDrawables.newBitmap();
+        final PooledBitmapDrawable drawable = PooledDrawables.newDrawable(bitmap, bitmapPool);
+        mRequest.onLoaded("image", drawable, 100, 100);
+        assertEquals(2, drawable.getReferenceCount());
+
+        // The loader lets go of its own reference, the request keeps the bitmap out of the pool
+        drawable.release();
+        assertSame(drawable, mRequest.get());
+        Mockito.verifyZeroInteractions(bitmapPool);
+
+        mRequest.release();
+        Mockito.verify(bitmapPool).release(bitmap);
+
+        // Only the request's own reference is given up, however often it's released
+        mRequest.release();
+        assertEquals(0, drawable.getReferenceCount());
+    }
+
+    public void testReleasedDrawableFailsTheRequest() throws Exception {
+        final PooledBitmapDrawable drawable = PooledDrawables.newDrawable(PooledDrawables.newBitmap(),
+                Mockito.mock(BitmapPool.class));
+        drawable.release();
+
+        mRequest.onLoaded("image", drawable, 100, 100);
+        try {
+            mRequest.get();
+            fail("Request completed with a pooled bitmap");
+        } catch (ExecutionException e) {
+            // Expected
+        }
+    }
+}
@@ -1,17 +1,33 @@
 package com.vinci.bucket;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
+import com.vinci.AcquiringListener;
 import com.vinci.Bucket;
 import com.vinci.BucketListener;
+import com.vinci.ImageRequest;
+import com.vinci.disk.DiskCache;
+import com.vinci.scheduler.RequestScheduler;
+import com.vinci.util.Allocations;
+import com.vinci.util.BitmapPool;
 import com.vinci.util.FileUtil;
+import com.vinci.util.PooledBitmapDrawable;
+import com.vinci.util.PooledDrawables;
 import junit.framework.TestCase;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.io.File;
-import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -66,88 +82,571 @@ public class AbstractBucketTest extends TestCase {
     }
 
     public synchronized void testRequestOrdering() throws Exception {
-        // Specify a thread pool size of 1 so we can guarantee ordering
-        mBucket = new SimpleBucket(CACHE_PATH, 1, Mockito.mock(Handler.class));
+        final List<String> downloaded = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch primed = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(REQUEST_ORDER_COUNT);
+
+        // A single thread per stage, so each stage runs in the order of its own queue
+        mBucket = new SimpleBucket(CACHE_PATH, 1, Mockito.mock(Handler.class)) {
+            @Override
+            protected boolean saveFromWeb(String path, OutputStream os) {
+                downloaded.add(path);
+
+                // The first download holds up the rest until every one of them has queued
+                if ("0".equals(path)) {
+                    started.countDown();
+                    try {
+                        primed.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return true;
+            }
 
-        final SimpleBucket spy = (SimpleBucket) Mockito.spy(mBucket);
-        final AtomicBoolean isPrimed = new AtomicBoolean(false);
-        final Object lock = new Object();
+            @Override
+            public void onLoaded(String path, Drawable drawable, int width, int height) {
+                loaded.add(path);
+                done.countDown();
+            }
 
-        Mockito.doAnswer(new Answer() {
             @Override
-            public Drawable answer(InvocationOnMock invocation) throws Throwable {
-                // We wait until all requests have been loaded
-                synchronized (lock) {
-                    if (!isPrimed.get()) {
-                        lock.wait();
-                    }
+            public void onFailure(String path, int width, int height) {
+                failed.set(true);
+                done.countDown();
+            }
+        };
+
+        mBucket.get("0", 100, 100, null);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < REQUEST_ORDER_COUNT; i++) {
+            mBucket.get(String.valueOf(i), 100, 100, null);
+        }
+
+        final RequestScheduler network = ((AbstractBucket) mBucket).getEngine().getNetworkScheduler();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (network.getQueuedCount() < REQUEST_ORDER_COUNT - 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        primed.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(failed.get());
+
+        // Each stage takes the newest request it has queued; stages never wait on each other,
+        // so the first request may reach the decoder before or after the others
+        assertEquals("0", downloaded.get(0));
+        assertNewestFirst(downloaded);
+        assertNewestFirst(loaded);
+    }
+
+    /**
+     * Asserts every request but the first ran in the opposite order it was made in.
+     */
+    private static void assertNewestFirst(List<String> paths) {
+        assertEquals(REQUEST_ORDER_COUNT, paths.size());
+        int previous = REQUEST_ORDER_COUNT;
+        for (String path : paths) {
+            int index = Integer.parseInt(path);
+            if (index != 0) {
+                assertTrue(paths.toString(), index < previous);
+                previous = index;
+            }
+        }
+    }
+
+    public void testDiskHitsDoNotWaitForDownloads() throws Exception {
+        final CountDownLatch downloading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch decoded = new CountDownLatch(1);
+
+        final DiskCache diskCache = AbstractBucket.openDiskCache(CACHE_PATH, AbstractBucket.DEFAULT_DISK_CACHE_SIZE);
+        final DiskCache.Editor editor = diskCache.edit(new RequestKey("warm", 100, 100).getSourceFilename());
+        editor.newOutputStream().write(0);
+        editor.commit();
+
+        mBucket = new SimpleBucket(diskCache, 1, Mockito.mock(Handler.class)) {
+            @Override
+            protected boolean saveFromWeb(String path, OutputStream os) {
+                downloading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+                return true;
+            }
 
-                return Mockito.mock(Drawable.class);
+            @Override
+            protected Drawable loadFromDisk(DiskCache.Snapshot snapshot) {
+                decoded.countDown();
+                return super.loadFromDisk(snapshot);
             }
-        }).when(spy).loadFromDisk(Mockito.anyString());
+        };
 
-        final AtomicInteger mExpectedIndex = new AtomicInteger(0);
+        try {
+            // Hold the only network thread
+            mBucket.get("cold", 100, 100, null);
+            assertTrue(downloading.await(5, TimeUnit.SECONDS));
 
-        Mockito.doAnswer(new Answer() {
+            mBucket.get("warm", 100, 100, null);
+            assertTrue(decoded.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    public void testSizesShareOneDownload() throws Exception {
+        final AtomicInteger downloads = new AtomicInteger(0);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch decoded = new CountDownLatch(2);
+
+        mBucket = new SimpleBucket(AbstractBucket.openDiskCache(CACHE_PATH, AbstractBucket.DEFAULT_DISK_CACHE_SIZE),
+                THREAD_POOL_SIZE, Mockito.mock(Handler.class)) {
             @Override
-            public Object answer(InvocationOnMock invocation) throws Throwable {
-                // 0 is a throw away, after that we should expect every single request to be of a lower index
-                final String path = (String) invocation.getArguments()[0];
+            protected boolean saveFromWeb(String path, OutputStream os) {
+                downloads.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
 
-                System.out.println("Request for " + path);
+            @Override
+            protected Drawable loadFromDisk(DiskCache.Snapshot snapshot) {
+                decoded.countDown();
+                return super.loadFromDisk(snapshot);
+            }
+        };
 
-                final int index = Integer.parseInt(path);
-                if (index == 0) {
-                    mExpectedIndex.set(REQUEST_ORDER_COUNT - 1);
-                    return null;
+        try {
+            mBucket.get("image", 100, 100, null);
+            mBucket.get("image", 400, 400, null);
+        } finally {
+            release.countDown();
+        }
+
+        assertTrue(decoded.await(5, TimeUnit.SECONDS));
+        assertEquals(1, downloads.get());
+    }
+
+    public void testListenersOnlyHearTheirSize() throws Exception {
+        final Map<Integer, Drawable> loaded = new ConcurrentHashMap<Integer, Drawable>();
+        mBucket = new SimpleBucket(CACHE_PATH, 2, Mockito.mock(Handler.class)) {
+            @Override
+            protected void onLoaded(String path, Drawable drawable, int width, int height, boolean fromNetwork) {
+                loaded.put(width, drawable);
+            }
+        };
+
+        final ImageRequest small = mBucket.submit("image", 100, 100, ImageRequest.DIRECT);
+        final ImageRequest large = mBucket.submit("image", 400, 400, ImageRequest.DIRECT);
+
+        final Drawable smallDrawable = small.get(5, TimeUnit.SECONDS);
+        final Drawable largeDrawable = large.get(5, TimeUnit.SECONDS);
+        assertSame(loaded.get(100), smallDrawable);
+        assertSame(loaded.get(400), largeDrawable);
+    }
+
+    public void testJoiningALoadDoesNotAllocate() throws Exception {
+        if (!Allocations.isSupported()) {
+            return;
+        }
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final SimpleBucket bucket = new SimpleBucket(CACHE_PATH, 1, Mockito.mock(Handler.class)) {
+            @Override
+            protected boolean saveFromWeb(String path, OutputStream os) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+                return true;
+            }
+        };
+        mBucket = bucket;
+
+        // Not a mock - the mock's equals() allocates
+        final BucketListener listener = new BucketListener() {
+            @Override
+            public void onLoaded(String path, Drawable drawable, int width, int height) { }
 
-                if (index != mExpectedIndex.getAndDecrement()) {
-                    synchronized (lock) {
-                        lock.notifyAll();
+            @Override
+            public void onFailure(String path, int width, int height) { }
+        };
+        try {
+            bucket.get("image", 100, 100, listener);
+
+            // Rebinding the same view while it loads
+            final long allocated = Allocations.measure(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        bucket.get("image", 100, 100, listener);
                     }
                 }
+            }, 100);
 
-                // Need to handle the final case
-                if (index == 1) {
-                    synchronized (lock) {
-                        lock.notifyAll();
-                    }
+            assertEquals(0, allocated);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    public void testRecycledLoadersKeepTheirRequests() throws Exception {
+        final int count = 100;
+        final CountDownLatch loaded = new CountDownLatch(count);
+        final AtomicInteger mismatches = new AtomicInteger(0);
+
+        mBucket = new SimpleBucket(CACHE_PATH, 2, Mockito.mock(Handler.class)) {
+            @Override
+            protected void onLoaded(String path, Drawable drawable, int width, int height, boolean fromNetwork) {
+                if (Integer.parseInt(path) != width) {
+                    mismatches.incrementAndGet();
                 }
+                loaded.countDown();
+            }
+        };
+
+        for (int i = 1; i <= count; i++) {
+            mBucket.get(String.valueOf(i), i, i, null);
+        }
+
+        assertTrue(loaded.await(10, TimeUnit.SECONDS));
+        assertEquals(0, mismatches.get());
+    }
+
+    public void testSubmitSkipsTheMainThread() throws Exception {
+        // The handler is a mock, so nothing posted to it ever runs
+        mBucket = new SimpleBucket(CACHE_PATH, 1, Mockito.mock(Handler.class));
 
+        final ImageRequest request = mBucket.submit("image", 100, 100, ImageRequest.DIRECT);
+        assertNotNull(request.get(5, TimeUnit.SECONDS));
+    }
+
+    public void testFailedDeriveFallsBackToLoading() throws Exception {
+        final AtomicBoolean derived = new AtomicBoolean(false);
+        final CountDownLatch decoded = new CountDownLatch(1);
+
+        mBucket = new SimpleBucket(AbstractBucket.openDiskCache(CACHE_PATH, AbstractBucket.DEFAULT_DISK_CACHE_SIZE),
+                1, Mockito.mock(Handler.class)) {
+            @Override
+            protected boolean canDerive(String path, int width, int height) {
+                return true;
+            }
+
+            @Override
+            protected Drawable derive(String path, int width, int height) {
+                // The larger size went away in the meantime
+                derived.set(true);
                 return null;
             }
-        }).when(spy).onLoaded(Mockito.anyString(), Mockito.any(Drawable.class), Mockito.anyInt(), Mockito.anyInt());
+
+            @Override
+            protected Drawable loadFromDisk(DiskCache.Snapshot snapshot) {
+                assertTrue(derived.get());
+                decoded.countDown();
+                return super.loadFromDisk(snapshot);
+            }
+        };
+
+        mBucket.get("image", 100, 100, null);
+        assertTrue(decoded.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testFailingUrlsBackOff() throws Exception {
+        final AtomicInteger downloads = new AtomicInteger(0);
+        final SimpleBucket bucket = new SimpleBucket(CACHE_PATH, 1, Mockito.mock(Handler.class)) {
+            @Override
+            protected boolean saveFromWeb(String path, OutputStream os) {
+                downloads.incrementAndGet();
+                return false;
+            }
+        };
+        mBucket = bucket;
+
+        // Until the first failure lands, requests join the running load
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (bucket.getNegativeCache().getSuppressedCount() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            bucket.get("broken", 100, 100, null);
+            Thread.sleep(1);
+        }
+
+        bucket.get("broken", 200, 200, null);
+        assertEquals(1, downloads.get());
+        assertEquals(2, bucket.getNegativeCache().getSuppressedCount());
+    }
+
+    public void testFastFailuresAreDeliveredOutsideTheLock() throws Exception {
+        final SimpleBucket bucket = new SimpleBucket(CACHE_PATH, 1, Mockito.mock(Handler.class)) {
+            @Override
+            protected boolean saveFromWeb(String path, OutputStream os) {
+                return false;
+            }
+        };
+        mBucket = bucket;
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (bucket.getNegativeCache().getSuppressedCount() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            bucket.get("broken", 100, 100, null);
+            Thread.sleep(1);
+        }
+
+        // Each failure waits on another thread using the bucket - a deadlock under the lock
+        final AtomicInteger delivered = new AtomicInteger(0);
+        class WaitingRequest extends ImageRequest {
+            private WaitingRequest(int size) {
+                super(bucket, "broken", size, size, ImageRequest.DIRECT);
+            }
+
+            @Override
+            public void onFailure(String path, int width, int height) {
+                final Thread other = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        bucket.cancel("other", 100, 100, null);
+                    }
+                });
+                other.start();
+                try {
+                    other.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                if (!other.isAlive()) {
+                    delivered.incrementAndGet();
+                }
+                super.onFailure(path, width, height);
+            }
+        }
+
+        bucket.get("broken", 200, 200, new WaitingRequest(200));
+        assertEquals(1, delivered.get());
+
+        bucket.pause();
+        bucket.get("broken", 300, 300, new WaitingRequest(300));
+        bucket.resume();
+        assertEquals(2, delivered.get());
+    }
+
+    public void testPausedLoadsWaitForResume() throws Exception {
+        final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        final SimpleBucket bucket = new SimpleBucket(CACHE_PATH, 1, Mockito.mock(Handler.class)) {
+            @Override
+            public void onLoaded(String path, Drawable drawable, int width, int height) {
+                loaded.add(path);
+                done.countDown();
+            }
+        };
+        mBucket = bucket;
+
+        final BucketListener listener = Mockito.mock(BucketListener.class);
+        bucket.pause();
+        bucket.get("flung-past", 100, 100, listener);
+        bucket.get("wanted", 100, 100, null);
+        bucket.get("wanted", 100, 100, null);
+        Thread.sleep(100);
+        assertTrue(loaded.isEmpty());
+
+        // The first row was recycled before the list settled
+        bucket.cancel("flung-past", 100, 100, listener);
+        bucket.resume();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(Collections.singletonList("wanted"), loaded);
+    }
+
+    public void testTrimLevelsGetMoreSevere() {
+        assertEquals(1f, AbstractBucket.getRetainedFraction(0));
+        assertEquals(0.75f, AbstractBucket.getRetainedFraction(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(0.25f, AbstractBucket.getRetainedFraction(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+        assertEquals(0.5f, AbstractBucket.getRetainedFraction(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals(0f, AbstractBucket.getRetainedFraction(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+
+    public void testPrefetchOnlyWarmsDisk() throws Exception {
+        final AtomicBoolean decoded = new AtomicBoolean(false);
+        final DiskCache diskCache = AbstractBucket.openDiskCache(CACHE_PATH, AbstractBucket.DEFAULT_DISK_CACHE_SIZE);
+        final SimpleBucket bucket = new SimpleBucket(diskCache, 1, Mockito.mock(Handler.class)) {
+            @Override
+            protected Drawable loadFromDisk(DiskCache.Snapshot snapshot) {
+                decoded.set(true);
+                return super.loadFromDisk(snapshot);
+            }
+        };
+        mBucket = bucket;
+
+        final String key = new RequestKey("next-page", 100, 100).getSourceFilename();
+        bucket.prefetchToDisk("next-page");
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!diskCache.contains(key)) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+
+        assertFalse(decoded.get());
+    }
+
+    public void testLoadTakesOverARunningPrefetch() throws Exception {
+        final AtomicInteger downloads = new AtomicInteger(0);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final CountDownLatch prefetching = new CountDownLatch(1);
+        final CountDownLatch takenOver = new CountDownLatch(1);
+        final CountDownLatch loaded = new CountDownLatch(1);
+
+        // The prefetch opens the entry first; it's let go once the load has found it busy
+        final AtomicInteger edits = new AtomicInteger(0);
+        final DiskCache diskCache = Mockito.spy(AbstractBucket.openDiskCache(CACHE_PATH, AbstractBucket.DEFAULT_DISK_CACHE_SIZE));
         Mockito.doAnswer(new Answer() {
             @Override
             public Object answer(InvocationOnMock invocation) throws Throwable {
-                fail("Image failed to load");
-                return null;
+                final Object editor = invocation.callRealMethod();
+                if (edits.incrementAndGet() == 2) {
+                    takenOver.countDown();
+                }
+                return editor;
             }
-        }).when(spy).onFailure(Mockito.anyString(), Mockito.anyInt(), Mockito.anyInt());
+        }).when(diskCache).edit(Mockito.anyString());
 
-        for (int i = 0; i < REQUEST_ORDER_COUNT; i++) {
-            spy.get(String.valueOf(i), 100, 100, null);
-        }
+        final SimpleBucket bucket = new SimpleBucket(diskCache, 2, Mockito.mock(Handler.class)) {
+            @Override
+            protected boolean saveFromWeb(String path, OutputStream os) {
+                try {
+                    os.write(0);
+                    if (downloads.getAndIncrement() == 0) {
+                        prefetching.countDown();
+                        takenOver.await(5, TimeUnit.SECONDS);
+                        os.write(0);
+                    }
+                    return true;
+                } catch (Exception e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public void onLoaded(String path, Drawable drawable, int width, int height) {
+                loaded.countDown();
+            }
+
+            @Override
+            public void onFailure(String path, int width, int height) {
+                failed.set(true);
+                loaded.countDown();
+            }
+        };
+        mBucket = bucket;
+
+        bucket.prefetchToDisk("taken-over");
+        assertTrue(prefetching.await(5, TimeUnit.SECONDS));
+        bucket.get("taken-over", 100, 100, null);
 
-        synchronized (lock) {
-            // Mark as primed
-            isPrimed.set(true);
+        assertTrue(loaded.await(5, TimeUnit.SECONDS));
+        assertFalse(failed.get());
+        assertEquals(2, downloads.get());
+        assertFalse(bucket.getNegativeCache().isSuppressed("taken-over"));
+    }
+
+    public void testPlainListenersGetAReferenceToKeep() {
+        final BitmapPool bitmapPool = Mockito.mock(BitmapPool.class);
+        final PooledBitmapDrawable drawable = PooledDrawables.newDrawable(PooledDrawables.newBitmap(), bitmapPool);
+        final BucketListener plain = Mockito.mock(BucketListener.class);
+        final AcquiringListener acquiring = Mockito.mock(AcquiringListener.class);
+
+        assertTrue(AbstractBucket.notifyLoaded(plain, "image", drawable, 100, 100));
+        assertTrue(AbstractBucket.notifyLoaded(acquiring, "image", drawable, 100, 100));
+        Mockito.verify(plain).onLoaded("image", drawable, 100, 100);
+        Mockito.verify(acquiring).onLoaded("image", drawable, 100, 100);
+
+        // The loader lets go of its reference after delivery; the plain listener still has one
+        drawable.release();
+        assertEquals(1, drawable.getReferenceCount());
+        Mockito.verifyZeroInteractions(bitmapPool);
+
+        // Too late - it's back in the pool
+        drawable.release();
+        final BucketListener late = Mockito.mock(BucketListener.class);
+        assertFalse(AbstractBucket.notifyLoaded(late, "image", drawable, 100, 100));
+        Mockito.verifyZeroInteractions(late);
+    }
 
-            // Start the loaders
-            lock.notifyAll();
+    public void testDestroyCancelsLoadsOnSharedEngine() throws Exception {
+        final BucketEngine engine = new BucketEngine(1024 * 1024, 1, 1, 1);
+        final List<String> downloaded = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final SimpleBucket destroyed = new SimpleBucket(openTestDiskCache("destroyed"), engine,
+                Mockito.mock(Handler.class)) {
+            @Override
+            protected boolean saveFromWeb(String path, OutputStream os) {
+                downloaded.add(path);
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+        };
 
-            // Wait for things to finish
-            lock.wait(100000);
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final SimpleBucket other = new SimpleBucket(openTestDiskCache("other"), engine, Mockito.mock(Handler.class)) {
+            @Override
+            public void onLoaded(String path, Drawable drawable, int width, int height) {
+                loaded.countDown();
+            }
+        };
+
+        try {
+            destroyed.get("running", 100, 100, null);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            destroyed.get("queued", 100, 100, null);
+            destroyed.prefetchToDisk("prefetched");
+            destroyed.pause();
+            destroyed.get("parked", 100, 100, null);
+            destroyed.destroy();
+            release.countDown();
+
+            // The engine's threads carry on for the other bucket, and nothing of the destroyed one runs on them
+            other.get("other", 100, 100, null);
+            assertTrue(loaded.await(5, TimeUnit.SECONDS));
+                        assertEquals(Collections.singletonList("running"), downloaded);
+        } finally {
+            release.countDown();
+            other.destroy();
+            engine.shutdown();
         }
+    }
 
-        assertTrue(mExpectedIndex.get() == 0);
+    private static DiskCache openTestDiskCache(String name) {
+        return AbstractBucket.openDiskCache(new File(CACHE_PATH, name).getPath(), AbstractBucket.DEFAULT_DISK_CACHE_SIZE);
     }
 
     private static class SimpleBucket extends AbstractBucket {
         private SimpleBucket(String cachePath, int threadPoolSize, Handler handler) {
-            super(cachePath, threadPoolSize, handler);
+            // Every stage the same size, so a single thread keeps requests in order end to end
+            this(openDiskCache(cachePath, DEFAULT_DISK_CACHE_SIZE), threadPoolSize, handler);
+        }
+
+        private SimpleBucket(DiskCache diskCache, int threadPoolSize, Handler handler) {
+            super(diskCache, threadPoolSize, threadPoolSize, threadPoolSize, handler);
+        }
+
+        private SimpleBucket(DiskCache diskCache, BucketEngine engine, Handler handler) {
+            super(diskCache, engine, handler);
         }
 
         @Override
@@ -169,31 +668,19 @@ public class AbstractBucketTest extends TestCase {
         }
 
         @Override
-        protected Drawable loadFromDisk(String path) {
+        protected Drawable loadFromDisk(DiskCache.Snapshot snapshot) {
             return Mockito.mock(Drawable.class);
         }
 
         @Override
-        protected boolean saveFromWeb(String path, String localPath) {
-            // Write a blank file to the path
-            try {
-                new File(localPath).createNewFile();
-            } catch (IOException e) {
-                fail(e.getMessage());
-            }
-
+        protected boolean saveFromWeb(String path, OutputStream os) {
+            // Write a blank image
             return true;
         }
 
         @Override
-        protected boolean scale(String path, int width, int height, String destination) {
-            // Write a blank file to the path
-            try {
-                new File(destination).createNewFile();
-            } catch (IOException e) {
-                fail(e.getMessage());
-            }
-
+        protected boolean scale(DiskCache.Snapshot source, int width, int height, OutputStream os) {
+            // Write a blank image
             return true;
         }
 
@@ -0,0 +1,77 @@
+package com.vinci.bucket;
+
+import junit.framework.TestCase;
+import org.mockito.AdditionalMatchers;
+import org.mockito.Mockito;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NotifyDispatcherTest extends TestCase {
+    private NotifyDispatcher.Poster mPoster;
+    private NotifyDispatcher mDispatcher;
+
+    @Override
+    public void setUp() throws Exception {
+        mPoster = Mockito.mock(NotifyDispatcher.Poster.class);
+        mDispatcher = new NotifyDispatcher(mPoster);
+    }
+
+    public void testOneMessagePerBatch() {
+        final AtomicInteger notified = new AtomicInteger(0);
+        for (int i = 0; i < 50; i++) {
+            mDispatcher.dispatch(new Counter(notified));
+        }
+
+        Mockito.verify(mPoster, Mockito.times(1)).postDelayed(Mockito.any(Runnable.class), Mockito.anyLong());
+        assertEquals(0, notified.get());
+
+        mDispatcher.run();
+        assertEquals(50, notified.get());
+
+        // Drained - nothing more to post
+        Mockito.verify(mPoster, Mockito.times(1)).postDelayed(Mockito.any(Runnable.class), Mockito.anyLong());
+    }
+
+    public void testLongBatchesContinueNextFrame() {
+        mDispatcher.setLimits(16, 1);
+
+        final AtomicInteger notified = new AtomicInteger(0);
+        for (int i = 0; i < 3; i++) {
+            mDispatcher.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    notified.incrementAndGet();
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        mDispatcher.run();
+        assertEquals(1, notified.get());
+
+        // The rest wait for the next frame
+        Mockito.verify(mPoster, Mockito.times(2)).postDelayed(Mockito.any(Runnable.class), Mockito.anyLong());
+        Mockito.verify(mPoster, Mockito.times(1)).postDelayed(Mockito.any(Runnable.class), AdditionalMatchers.gt(0L));
+
+        mDispatcher.run();
+        mDispatcher.run();
+        assertEquals(3, notified.get());
+    }
+
+    private static class Counter implements Runnable {
+        private final AtomicInteger mCount;
+
+        private Counter(AtomicInteger count) {
+            mCount = count;
+        }
+
+        @Override
+        public void run() {
+            mCount.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.vinci.bucket;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class RequestKeyTest extends TestCase {
+    public void testFilenames() {
+        final RequestKey key = new RequestKey("http://example.com/a.jpg", 100, 50);
+
+        // MurmurHash3 x64 128 of the UTF-16LE path
+        assertEquals("5eb91cff1d8b27060a33d96d622d5497-100x50.jpg", key.getFilename());
+        assertEquals("5eb91cff1d8b27060a33d96d622d5497.jpg", key.getSourceFilename());
+    }
+
+    public void testFilenamesAreValidDiskCacheKeys() {
+        final RequestKey key = new RequestKey("http://example.com/a.jpg", Integer.MAX_VALUE, Integer.MIN_VALUE);
+        assertTrue(key.getFilename().matches("[a-z0-9_.-]{1,120}"));
+    }
+
+    public void testSetResetsFilenames() {
+        final RequestKey key = new RequestKey("a", 10, 10);
+        final String filename = key.getFilename();
+        final String sourceFilename = key.getSourceFilename();
+
+        key.set("a", 20, 20);
+        assertFalse(filename.equals(key.getFilename()));
+        assertEquals(sourceFilename, key.getSourceFilename());
+
+        key.set("b", 20, 20);
+        assertFalse(sourceFilename.equals(key.getSourceFilename()));
+        assertEquals(new RequestKey("b", 20, 20).getFilename(), key.getFilename());
+    }
+
+    public void testEquality() {
+        final RequestKey key = new RequestKey("a", 10, 10);
+        assertEquals(key, new RequestKey("a", 10, 10));
+        assertEquals(key.hashCode(), new RequestKey("a", 10, 10).hashCode());
+        assertEquals(key, key.copy());
+        assertFalse(key.equals(new RequestKey("a", 10, 11)));
+        assertFalse(key.equals(new RequestKey("b", 10, 10)));
+    }
+
+    public void testNoCollisionsBetweenSimilarPaths() {
+        // String.hashCode() collides on these
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertFalse(new RequestKey("Aa", 1, 1).getFilename().equals(new RequestKey("BB", 1, 1).getFilename()));
+
+        final Set<String> filenames = new HashSet<String>();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filenames.add(new RequestKey("http://example.com/" + i + ".jpg", 1, 1).getFilename()));
+        }
+    }
+}
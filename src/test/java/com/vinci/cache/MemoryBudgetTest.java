@@ -0,0 +1,87 @@
+package com.vinci.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the {@link com.vinci.cache.MemoryBudget}
+ */
+public class MemoryBudgetTest extends TestCase {
+    private static final int MAX_BYTES = 100;
+
+    private MemoryBudget mBudget;
+    private MemoryCache<String, Integer> mFeed;
+    private MemoryCache<String, Integer> mAvatars;
+
+    @Override
+    public void setUp() throws Exception {
+        mBudget = new MemoryBudget(MAX_BYTES);
+        mFeed = createCache();
+        mAvatars = createCache();
+    }
+
+    /**
+     * Tests that the cache nobody is looking at gives memory back to the busy one.
+     */
+    public void testColdCachesYield() throws Exception {
+        mBudget.register(mFeed, 1);
+        mBudget.register(mAvatars, 1);
+
+        fill(mFeed, "feed", 8);
+        mFeed.get("feed0");
+        assertEquals(0, mBudget.balance());
+
+        Thread.sleep(2);
+        fill(mAvatars, "avatar", 4);
+        mAvatars.get("avatar0");
+        assertEquals(20, mBudget.balance());
+
+        assertEquals(60, mFeed.getWeight());
+        assertEquals(40, mAvatars.getWeight());
+    }
+
+    /**
+     * Tests that however busy one cache is, the others keep their quota.
+     */
+    public void testQuotasAreKept() throws Exception {
+        final MemoryBudget.Account feed = mBudget.register(mFeed, 1);
+        final MemoryBudget.Account avatars = mBudget.register(mAvatars, 1);
+        assertEquals(50, feed.getQuota());
+
+        fill(mFeed, "feed", 4);
+        Thread.sleep(2);
+        fill(mAvatars, "avatar", 10);
+        mAvatars.get("avatar0");
+        mBudget.balance();
+
+        assertEquals(40, mFeed.getWeight());
+        assertEquals(60, mAvatars.getWeight());
+
+        // The feed wants its half back
+        fill(mFeed, "more", 4);
+        mFeed.get("feed0");
+        mBudget.balance();
+
+        assertEquals(50, mAvatars.getWeight());
+        assertEquals(MAX_BYTES, mBudget.getBytes());
+
+        // Once the feed's gone, the avatars may have it all
+        feed.close();
+        assertEquals(MAX_BYTES, avatars.getQuota());
+    }
+
+    private static void fill(MemoryCache<String, Integer> cache, String prefix, int count) {
+        for (int i = 0; i < count; i++) {
+            cache.put(prefix + i, 10);
+        }
+    }
+
+    private static MemoryCache<String, Integer> createCache() {
+        // Values weigh themselves, and each cache may take the whole budget
+        return new MemoryCache<String, Integer>(MAX_BYTES, new Weigher<Integer>() {
+            @Override
+            public int weigh(Integer value) {
+                return value != null ? value : 0;
+            }
+        }, null);
+    }
+}
@@ -0,0 +1,269 @@
+package com.vinci.cache;
+
+import com.vinci.util.Allocations;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit test for the {@link com.vinci.cache.MemoryCache} and its eviction policies
+ */
+public class MemoryCacheTest extends TestCase {
+    private static final int MAX_WEIGHT = 100;
+    private static final int HOT_KEYS = 50;
+    private static final int SCAN_KEYS = 1000;
+    private static final int CONCURRENT_THREADS = 8;
+    private static final int CONCURRENT_OPERATIONS = 100000;
+
+    private final List<String> mEvicted = new ArrayList<String>();
+    private MemoryCache<String, Integer> mCache;
+
+    @Override
+    public void setUp() throws Exception {
+        // Values weigh themselves
+        mCache = createCache(new LruPolicy<String>());
+    }
+
+    /**
+     * Tests that a heavy entry evicts as many light entries as it takes to get under budget.
+     */
+    public void testWeightedEviction() {
+        for (int i = 0; i < 10; i++) {
+            mCache.put("small" + i, 10);
+        }
+        assertTrue(mCache.getWeight() == MAX_WEIGHT);
+        assertTrue(mEvicted.isEmpty());
+
+        mCache.put("large", 35);
+
+        // The four eldest entries had to go
+        assertTrue(mCache.getWeight() == 95);
+        assertTrue(mEvicted.size() == 4);
+        assertEquals("small0", mEvicted.get(0));
+        assertEquals("small3", mEvicted.get(3));
+        assertTrue(mCache.containsKey("large"));
+    }
+
+    /**
+     * Tests that reads refresh an entry's position.
+     */
+    public void testAccessOrder() {
+        mCache.put("a", 50);
+        mCache.put("b", 50);
+        mCache.get("a");
+        mCache.put("c", 50);
+
+        assertTrue(mCache.containsKey("a"));
+        assertFalse(mCache.containsKey("b"));
+    }
+
+    /**
+     * Tests that replacing and removing keep the weight consistent.
+     */
+    public void testReplaceAndRemove() {
+        mCache.put("a", 40);
+        mCache.put("a", 20);
+        assertTrue(mCache.getWeight() == 20);
+        assertEquals("a", mEvicted.get(0));
+
+        mCache.put("b", null);
+        assertTrue(mCache.size() == 2);
+
+        mCache.remove("a");
+        mCache.remove("b");
+        assertTrue(mCache.getWeight() == 0);
+        assertTrue(mCache.size() == 0);
+    }
+
+    /**
+     * Tests shrinking the budget of a live cache.
+     */
+    public void testTrimToWeight() {
+        for (int i = 0; i < 10; i++) {
+            mCache.put(String.valueOf(i), 10);
+        }
+
+        assertTrue(mCache.trimToWeight(25) == 80);
+        assertTrue(mCache.size() == 2);
+    }
+
+    /**
+     * Tests that a one-off scan flushes the hot set out of LRU but not out of W-TinyLFU.
+     */
+    public void testScanResistance() {
+        final MemoryCache<String, Integer> lru = createCache(new LruPolicy<String>());
+        final MemoryCache<String, Integer> tinyLfu = createCache(new WTinyLfuPolicy<String>());
+
+        final int lruHits = replayScanTrace(lru);
+        final int tinyLfuHits = replayScanTrace(tinyLfu);
+
+        assertTrue(lruHits == 0);
+        assertTrue(tinyLfuHits > HOT_KEYS / 2);
+        assertTrue(tinyLfu.getWeight() <= MAX_WEIGHT);
+    }
+
+    /**
+     * Tests that growing the frequency sketch keeps the counts it has seen.
+     */
+    public void testSketchGrowthKeepsFrequencies() {
+        final FrequencySketch<String> sketch = new FrequencySketch<String>();
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("hot");
+        }
+        sketch.increment("warm");
+
+        sketch.ensureCapacity(1000);
+        assertTrue(sketch.frequency("hot") >= 5);
+        assertTrue(sketch.frequency("warm") >= 1);
+        assertTrue(sketch.frequency("hot") > sketch.frequency("warm"));
+    }
+
+    /**
+     * Tests that GDSF gives up an entry that is cheap to reload before an expensive one of the same
+     * size, and a large entry before small ones.
+     */
+    public void testCostAwareEviction() {
+        mCache = createCache(new GreedyDualSizeFrequencyPolicy<String>());
+
+        mCache.put("network", 40, 10);
+        mCache.put("disk", 40, 1);
+        mCache.put("other", 40, 5);
+
+        assertTrue(mCache.containsKey("network"));
+        assertFalse(mCache.containsKey("disk"));
+
+        mCache = createCache(new GreedyDualSizeFrequencyPolicy<String>());
+        mCache.put("large", 60, 1);
+        mCache.put("small0", 20, 1);
+        mCache.put("small1", 20, 1);
+        mCache.put("small2", 20, 1);
+
+        assertFalse(mCache.containsKey("large"));
+        assertTrue(mCache.size() == 3);
+    }
+
+    /**
+     * Hammers the cache from several threads with a mix of reads, writes and removals, then checks
+     * the weight bookkeeping survived.
+     * @throws Exception
+     */
+    public void testConcurrentAccess() throws Exception {
+        final MemoryCache<String, Integer> cache = createCache(new WTinyLfuPolicy<String>());
+        final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_THREADS);
+        final List<Future> futures = new LinkedList<Future>();
+
+        for (int i = 0; i < CONCURRENT_THREADS; i++) {
+            final int seed = i;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    final Random random = new Random(seed);
+                    for (int j = 0; j < CONCURRENT_OPERATIONS; j++) {
+                        final String key = String.valueOf(random.nextInt(200));
+                        final int operation = random.nextInt(10);
+                        if (operation == 0) {
+                            cache.remove(key);
+                        } else if (operation < 3) {
+                            cache.put(key, 1 + random.nextInt(5));
+                        } else {
+                            cache.get(key);
+                        }
+                    }
+                }
+            }));
+        }
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        assertTrue(cache.getWeight() <= MAX_WEIGHT);
+        assertTrue(cache.getHitCount() + cache.getMissCount() > 0);
+
+        // Removing everything must bring the weight back to zero
+        for (int i = 0; i < 200; i++) {
+            cache.remove(String.valueOf(i));
+        }
+        assertTrue(cache.getWeight() == 0);
+        assertTrue(cache.size() == 0);
+    }
+
+    /**
+     * Tests that a steady stream of hits - reads recorded and replayed into the policy - allocates
+     * nothing.
+     */
+    public void testHitsDoNotAllocate() {
+        if (!Allocations.isSupported()) {
+            return;
+        }
+
+        final String[] keys = new String[10];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + i;
+            mCache.put(keys[i], 10);
+        }
+
+        final long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 1000; i++) {
+                    assertNotNull(mCache.get(keys[i % keys.length]));
+                }
+            }
+        }, 100);
+
+        assertEquals(0, allocated);
+    }
+
+    /**
+     * Warms the cache with a hot set, scans through keys that are never seen again, then counts
+     * how much of the hot set is still a hit.
+     */
+    private static int replayScanTrace(MemoryCache<String, Integer> cache) {
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < HOT_KEYS; i++) {
+                final String key = "hot" + i;
+                if (cache.get(key) == null) {
+                    cache.put(key, 1);
+                }
+            }
+        }
+
+        for (int i = 0; i < SCAN_KEYS; i++) {
+            cache.put("scan" + i, 1);
+        }
+
+        int hits = 0;
+        for (int i = 0; i < HOT_KEYS; i++) {
+            if (cache.get("hot" + i) != null) {
+                hits++;
+            }
+        }
+
+        return hits;
+    }
+
+    private MemoryCache<String, Integer> createCache(EvictionPolicy<String> policy) {
+        // Values weigh themselves
+        return new MemoryCache<String, Integer>(MAX_WEIGHT, new Weigher<Integer>() {
+            @Override
+            public int weigh(Integer value) {
+                return value != null ? value : 0;
+            }
+        }, policy, new MemoryCache.EvictionListener<String, Integer>() {
+            @Override
+            public void onEvicted(String key, Integer value) {
+                mEvicted.add(key);
+            }
+        });
+    }
+}
@@ -0,0 +1,92 @@
+package com.vinci.cache;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class NegativeCacheTest extends TestCase {
+    private static final long MS = 1000L * 1000;
+
+    private NegativeCache mCache;
+
+    @Override
+    public void setUp() throws Exception {
+        // No jitter: always the longest wait
+        mCache = new NegativeCache(2, 100, 1000, new Random() {
+            @Override
+            public double nextDouble() {
+                return 0.999999;
+            }
+        });
+    }
+
+    public void testBackoffDoubles() {
+        mCache.onFailure("a", 0);
+        assertTrue(mCache.isSuppressed("a", 99 * MS));
+        assertFalse(mCache.isSuppressed("a", 100 * MS));
+
+        mCache.onFailure("a", 100 * MS);
+        assertTrue(mCache.isSuppressed("a", 299 * MS));
+        assertFalse(mCache.isSuppressed("a", 300 * MS));
+
+        // Capped
+        for (int i = 0; i < 10; i++) {
+            mCache.onFailure("a", 0);
+        }
+        assertTrue(mCache.isSuppressed("a", 999 * MS));
+        assertFalse(mCache.isSuppressed("a", 1000 * MS));
+
+        assertEquals(3, mCache.getSuppressedCount());
+        assertEquals(12, mCache.getFailureCount());
+    }
+
+    public void testJitterWaitsAtLeastHalf() {
+        final NegativeCache cache = new NegativeCache(1, 100, 1000, new Random() {
+            @Override
+            public double nextDouble() {
+                return 0;
+            }
+        });
+
+        cache.onFailure("a", 0);
+        assertTrue(cache.isSuppressed("a", 49 * MS));
+        assertFalse(cache.isSuppressed("a", 50 * MS));
+    }
+
+    public void testSuccessForgets() {
+        mCache.onFailure("a", 0);
+        mCache.onSuccess("a");
+        assertFalse(mCache.isSuppressed("a", 0));
+
+        // And starts the backoff over
+        mCache.onFailure("a", 0);
+        assertFalse(mCache.isSuppressed("a", 100 * MS));
+    }
+
+    public void testBounded() {
+        mCache.onFailure("a", 0);
+        mCache.onFailure("b", 0);
+        mCache.onFailure("c", 0);
+
+        assertEquals(2, mCache.size());
+        assertFalse(mCache.isSuppressed("a", 0));
+        assertTrue(mCache.isSuppressed("c", 0));
+    }
+
+    public void testLeastRecentlyFailedIsForgotten() {
+        mCache.onFailure("a", 0);
+        mCache.onFailure("b", 0);
+
+        // Checking a key doesn't keep it, failing again does
+        assertTrue(mCache.isSuppressed("a", 0));
+        mCache.onFailure("c", 0);
+        assertFalse(mCache.isSuppressed("a", 0));
+        assertTrue(mCache.isSuppressed("b", 0));
+
+        mCache.onFailure("b", 0);
+        mCache.onFailure("d", 0);
+        assertFalse(mCache.isSuppressed("c", 0));
+        assertTrue(mCache.isSuppressed("b", 0));
+        assertTrue(mCache.isSuppressed("d", 0));
+    }
+}
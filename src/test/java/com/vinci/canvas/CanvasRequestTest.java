@@ -0,0 +1,142 @@
+package com.vinci.canvas;
+
+import android.graphics.drawable.Drawable;
+import com.vinci.Bucket;
+import com.vinci.BucketListener;
+import com.vinci.ImageRequest;
+import junit.framework.TestCase;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class CanvasRequestTest extends TestCase {
+    private RecordingBucket mBucket;
+    private MutableCanvas mCanvas;
+
+    @Override
+    public void setUp() throws Exception {
+        mBucket = new RecordingBucket();
+        mCanvas = Mockito.mock(MutableCanvas.class);
+    }
+
+    public void testRebindCancelsThePreviousLoad() {
+        final Object view = new Object();
+        CanvasRequest.bind(view, mCanvas, mBucket, "a", 100, 100).start();
+        CanvasRequest.bind(view, mCanvas, mBucket, "b", 100, 100).start();
+
+        assertEquals(2, mBucket.mGets.size());
+        assertEquals(1, mBucket.mCancels.size());
+        assertEquals("a", mBucket.mCancels.get(0));
+
+        // The old load finishing late doesn't reach the canvas
+        final Drawable drawable = Mockito.mock(Drawable.class);
+        mBucket.mListeners.get(0).onLoaded("a", drawable, 100, 100);
+        Mockito.verify(mCanvas, Mockito.never()).setDrawable(drawable);
+
+        CanvasRequest.unbind(view);
+    }
+
+    public void testRebindToTheSameImageKeepsLoading() {
+        final Object view = new Object();
+        CanvasRequest.bind(view, mCanvas, mBucket, "a", 100, 100).start();
+        assertNull(CanvasRequest.bind(view, mCanvas, mBucket, "a", 100, 100));
+        assertTrue(mBucket.mCancels.isEmpty());
+
+        // Loaded, so the next bind asks again - a memory hit
+        mBucket.mListeners.get(0).onLoaded("a", Mockito.mock(Drawable.class), 100, 100);
+        assertNotNull(CanvasRequest.bind(view, mCanvas, mBucket, "a", 100, 100));
+        assertTrue(mBucket.mCancels.isEmpty());
+
+        CanvasRequest.unbind(view);
+    }
+
+    public void testCollectedViewsReleaseTheirLoads() throws Exception {
+        Object view = new Object();
+        CanvasRequest.bind(view, mCanvas, mBucket, "a", 100, 100).start();
+        view = null;
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!mBucket.mCancels.contains("a")) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            System.gc();
+            Thread.sleep(10);
+
+            // Collected views are let go of on the next bind
+            final Object other = new Object();
+            CanvasRequest.bind(other, mCanvas, mBucket, "b", 100, 100);
+            CanvasRequest.unbind(other);
+        }
+    }
+
+    public void testCollectedViewsAreReleasedAsLoadsComplete() throws Exception {
+        final Object kept = new Object();
+        CanvasRequest.bind(kept, mCanvas, mBucket, "kept", 100, 100).start();
+        Object view = new Object();
+        CanvasRequest.bind(view, mCanvas, mBucket, "a", 100, 100).start();
+        view = null;
+
+        // Nothing is bound again; the other view's load finishing is enough
+        final BucketListener listener = mBucket.mListeners.get(0);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!mBucket.mCancels.contains("a")) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            System.gc();
+            Thread.sleep(10);
+            listener.onFailure("kept", 100, 100);
+        }
+
+        CanvasRequest.unbind(kept);
+    }
+
+    private static class RecordingBucket implements Bucket {
+        private final List<String> mGets = new ArrayList<String>();
+        private final List<BucketListener> mListeners = new ArrayList<BucketListener>();
+        private final List<String> mCancels = new ArrayList<String>();
+
+        @Override
+        public Drawable get(String path, int width, int height, BucketListener listener) {
+            mGets.add(path);
+            mListeners.add(listener);
+            return null;
+        }
+
+        @Override
+        public Drawable precache(String path, int width, int height) {
+            return null;
+        }
+
+        @Override
+        public Drawable prefetch(String path, int width, int height) {
+            return null;
+        }
+
+        @Override
+        public ImageRequest submit(String path, int width, int height, Executor executor) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void cancel(String path, int width, int height, BucketListener listener) {
+            mCancels.add(path);
+        }
+
+        @Override
+        public void pause() {
+        }
+
+        @Override
+        public void resume() {
+        }
+
+        @Override
+        public long trimMemory(int level) {
+            return 0;
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
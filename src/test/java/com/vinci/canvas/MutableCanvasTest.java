@@ -0,0 +1,50 @@
+package com.vinci.canvas;
+
+import android.widget.ImageView;
+import com.vinci.util.BitmapPool;
+import com.vinci.util.PooledBitmapDrawable;
+import com.vinci.util.PooledDrawables;
+import junit.framework.TestCase;
+import org.mockito.Mockito;
+
+public class MutableCanvasTest extends TestCase {
+    private ImageView mView;
+    private MutableCanvas mCanvas;
+    private BitmapPool mBitmapPool;
+
+    @Override
+    public void setUp() {
+        mView = Mockito.mock(ImageView.class);
+        mCanvas = new MutableCanvas(MutableCanvas.CanvasType.ImageView, mView);
+        mBitmapPool = Mockito.mock(BitmapPool.class);
+    }
+
+    public void testReplacedDrawableIsReleased() {
+        final PooledBitmapDrawable first = PooledDrawables.newDrawable(PooledDrawables.newBitmap(), mBitmapPool);
+        final PooledBitmapDrawable second = PooledDrawables.newDrawable(PooledDrawables.newBitmap(), mBitmapPool);
+
+        mCanvas.setDrawable(first);
+        assertEquals(2, first.getReferenceCount());
+
+        // Showing it again doesn't take another reference
+        mCanvas.setDrawable(first);
+        assertEquals(2, first.getReferenceCount());
+
+        mCanvas.setDrawable(second);
+        Mockito.verify(mView).setImageDrawable(second);
+        assertEquals(1, first.getReferenceCount());
+        assertEquals(2, second.getReferenceCount());
+
+        mCanvas.release();
+        assertEquals(1, second.getReferenceCount());
+    }
+
+    public void testReleasedDrawableIsNotShown() {
+        final PooledBitmapDrawable released = PooledDrawables.newDrawable(PooledDrawables.newBitmap(), mBitmapPool);
+        released.release();
+
+        mCanvas.setDrawable(released);
+        Mockito.verify(mView, Mockito.never()).setImageDrawable(released);
+        assertEquals(0, released.getReferenceCount());
+    }
+}
@@ -0,0 +1,34 @@
+package com.vinci.canvas;
+
+import junit.framework.TestCase;
+
+public class TargetSizesTest extends TestCase {
+    public void testSnapsUp() {
+        final TargetSizes sizes = new TargetSizes(256, 64, 128);
+
+        assertEquals(64, sizes.snap(1));
+        assertEquals(64, sizes.snap(64));
+        assertEquals(128, sizes.snap(65));
+        assertEquals(256, sizes.snap(200));
+    }
+
+    public void testLargerThanEverySize() {
+        assertEquals(2048, TargetSizes.DEFAULT.snap(4000));
+    }
+
+    public void testInvalidSizes() {
+        try {
+            new TargetSizes();
+            fail("Accepted no sizes");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        try {
+            new TargetSizes(0, 64);
+            fail("Accepted an empty size");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.vinci.disk;
+
+import com.vinci.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+public class BlobStoreDiskCacheTest extends TestCase {
+    private final static File CACHE_DIR = new File("/tmp/vinci-blob-cache-test");
+    private BlobStoreDiskCache mCache;
+
+    @Override
+    public void setUp() throws Exception {
+        FileUtil.deleteDirectory(CACHE_DIR);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (mCache != null) {
+            mCache.close();
+        }
+
+        FileUtil.deleteDirectory(CACHE_DIR);
+    }
+
+    public void testWriteAndRead() throws Exception {
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 1024);
+        assertNull(mCache.get("a.jpg"));
+        assertFalse(mCache.contains("a.jpg"));
+
+        write(mCache, "a.jpg", 10, (byte) 1);
+        write(mCache, "b.jpg", 20, (byte) 2);
+
+        assertTrue(mCache.contains("a.jpg"));
+        assertContents(mCache, "a.jpg", 10, (byte) 1);
+        assertContents(mCache, "b.jpg", 20, (byte) 2);
+        assertEquals(30, mCache.size());
+        assertEquals(1, mCache.getSegmentCount());
+    }
+
+    public void testReplaceAndRemove() throws Exception {
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 1024);
+        write(mCache, "a.jpg", 10, (byte) 1);
+        write(mCache, "a.jpg", 5, (byte) 2);
+        write(mCache, "b.jpg", 10, (byte) 3);
+
+        assertContents(mCache, "a.jpg", 5, (byte) 2);
+        assertTrue(mCache.remove("b.jpg"));
+        assertFalse(mCache.contains("b.jpg"));
+        assertNull(mCache.get("b.jpg"));
+        assertEquals(5, mCache.size());
+    }
+
+    public void testEntriesSurviveReopen() throws Exception {
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 1024, 64);
+        write(mCache, "a.jpg", 40, (byte) 1);
+        write(mCache, "b.jpg", 40, (byte) 2);
+        write(mCache, "a.jpg", 30, (byte) 3);
+        mCache.remove("b.jpg");
+        write(mCache, "c.jpg", 40, (byte) 4);
+        mCache.close();
+
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 1024, 64);
+        assertContents(mCache, "a.jpg", 30, (byte) 3);
+        assertNull(mCache.get("b.jpg"));
+        assertContents(mCache, "c.jpg", 40, (byte) 4);
+        assertEquals(70, mCache.size());
+    }
+
+    public void testTornRecordIsTruncated() throws Exception {
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 1024);
+        write(mCache, "a.jpg", 10, (byte) 1);
+        write(mCache, "b.jpg", 10, (byte) 2);
+        mCache.close();
+
+        // Chop the end off the last record as if the process died mid-append
+        final File segment = new File(CACHE_DIR, "blob-0.seg");
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(file.length() - 5);
+        } finally {
+            file.close();
+        }
+
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 1024);
+        assertContents(mCache, "a.jpg", 10, (byte) 1);
+        assertNull(mCache.get("b.jpg"));
+
+        // What's left of b's record: an 11 byte header, the key and half the payload
+        assertEquals(11 + "b.jpg".length() + 10 - 5, mCache.getTruncatedBytes());
+
+        // Appends continue after the last good record
+        write(mCache, "c.jpg", 10, (byte) 3);
+        mCache.close();
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 1024);
+        assertContents(mCache, "c.jpg", 10, (byte) 3);
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 25);
+        write(mCache, "a.jpg", 10, (byte) 1);
+        write(mCache, "b.jpg", 10, (byte) 2);
+
+        // Touch a so b is the eldest
+        mCache.get("a.jpg").close();
+        write(mCache, "c.jpg", 10, (byte) 3);
+
+        // Eviction happens in the background
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (mCache.size() > 25 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(20, mCache.size());
+        assertNull(mCache.get("b.jpg"));
+        assertContents(mCache, "a.jpg", 10, (byte) 1);
+        assertContents(mCache, "c.jpg", 10, (byte) 3);
+    }
+
+    public void testCompactionReclaimsDeadSpace() throws Exception {
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 1024 * 1024, 256);
+        for (int i = 0; i < 50; i++) {
+            write(mCache, i + ".jpg", 100, (byte) i);
+        }
+
+        // Keep every fifth entry
+        for (int i = 0; i < 50; i++) {
+            if (i % 5 != 0) {
+                mCache.remove(i + ".jpg");
+            }
+        }
+
+        // The removals may have set off compaction in the background already; either way, most
+        // of the 50 records written are gone afterwards
+        mCache.compact();
+        assertTrue(mCache.getSegmentBytes() < 50 * 100 / 2);
+
+        for (int i = 0; i < 50; i += 5) {
+            assertContents(mCache, i + ".jpg", 100, (byte) i);
+        }
+
+        // Compacted segments must replay to the same index, removals included
+        mCache.close();
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 1024 * 1024, 256);
+        for (int i = 0; i < 50; i++) {
+            if (i % 5 == 0) {
+                assertContents(mCache, i + ".jpg", 100, (byte) i);
+            } else {
+                assertFalse(mCache.contains(i + ".jpg"));
+            }
+        }
+        assertEquals(10 * 100, mCache.size());
+    }
+
+    public void testCompactionKeepsRecencyOrder() throws Exception {
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 1024 * 1024, 256);
+        write(mCache, "a.jpg", 100, (byte) 1);
+        write(mCache, "x.jpg", 100, (byte) 2);
+        write(mCache, "y.jpg", 100, (byte) 3);
+        write(mCache, "b.jpg", 100, (byte) 4);
+        write(mCache, "c.jpg", 100, (byte) 5);
+
+        // The first segment is mostly dead, but a is still the eldest entry
+        mCache.remove("x.jpg");
+        mCache.remove("y.jpg");
+        mCache.compact();
+        mCache.trimToSize(200);
+
+        assertFalse(mCache.contains("a.jpg"));
+        assertContents(mCache, "b.jpg", 100, (byte) 4);
+        assertContents(mCache, "c.jpg", 100, (byte) 5);
+    }
+
+    public void testReadsBetweenAppends() throws Exception {
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 1024 * 1024);
+        for (int i = 0; i < 20; i++) {
+            write(mCache, i + ".jpg", 10 + i, (byte) i);
+            assertContents(mCache, i + ".jpg", 10 + i, (byte) i);
+            assertContents(mCache, "0.jpg", 10, (byte) 0);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            assertContents(mCache, i + ".jpg", 10 + i, (byte) i);
+        }
+    }
+
+    public void testSnapshotOutlivesCompaction() throws Exception {
+        mCache = BlobStoreDiskCache.open(CACHE_DIR, 1024 * 1024, 64);
+        write(mCache, "a.jpg", 100, (byte) 1);
+        write(mCache, "b.jpg", 100, (byte) 2);
+
+        final DiskCache.Snapshot snapshot = mCache.get("a.jpg");
+        write(mCache, "a.jpg", 100, (byte) 3);
+        mCache.compact();
+
+        final ByteBuffer buffer = snapshot.getBuffer();
+        assertEquals(100, buffer.remaining());
+        assertEquals(1, buffer.get(99));
+        snapshot.close();
+    }
+
+    private static void write(DiskCache cache, String key, int length, byte value) throws IOException {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = value;
+        }
+
+        final DiskCache.Editor editor = cache.edit(key);
+        final OutputStream os = editor.newOutputStream();
+        os.write(data);
+        editor.commit();
+    }
+
+    private static void assertContents(DiskCache cache, String key, int length, byte value) throws IOException {
+        final DiskCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(snapshot);
+
+        try {
+            assertEquals(length, snapshot.getLength());
+
+            final InputStream is = snapshot.getInputStream();
+            int read = 0;
+            int b;
+            while ((b = is.read()) != -1) {
+                assertEquals(value, (byte) b);
+                read++;
+            }
+            assertEquals(length, read);
+        } finally {
+            snapshot.close();
+        }
+    }
+}
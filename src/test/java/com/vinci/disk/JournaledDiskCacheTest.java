@@ -0,0 +1,200 @@
+package com.vinci.disk;
+
+import com.vinci.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class JournaledDiskCacheTest extends TestCase {
+    private final static File CACHE_DIR = new File("/tmp/vinci-disk-cache-test");
+    private JournaledDiskCache mCache;
+
+    @Override
+    public void setUp() throws Exception {
+        FileUtil.deleteDirectory(CACHE_DIR);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (mCache != null) {
+            mCache.close();
+        }
+
+        FileUtil.deleteDirectory(CACHE_DIR);
+    }
+
+    public void testWriteAndRead() throws Exception {
+        mCache = JournaledDiskCache.open(CACHE_DIR, 1024);
+        assertNull(mCache.get("a.jpg"));
+
+        write(mCache, "a.jpg", 10);
+
+        assertEquals(10, read(mCache, "a.jpg"));
+        assertEquals(10, mCache.size());
+    }
+
+    public void testContainsTracksCommittedEntries() throws Exception {
+        mCache = JournaledDiskCache.open(CACHE_DIR, 1024);
+
+        final DiskCache.Editor editor = mCache.edit("a.jpg");
+        editor.newOutputStream().write(new byte[10]);
+        assertFalse(mCache.contains("a.jpg"));
+
+        editor.commit();
+        assertTrue(mCache.contains("a.jpg"));
+
+        mCache.remove("a.jpg");
+        assertFalse(mCache.contains("a.jpg"));
+    }
+
+    public void testConcurrentEditIsRefused() throws Exception {
+        mCache = JournaledDiskCache.open(CACHE_DIR, 1024);
+
+        final DiskCache.Editor editor = mCache.edit("a.jpg");
+        assertNotNull(editor);
+        assertNull(mCache.edit("a.jpg"));
+
+        editor.abort();
+        assertNull(mCache.get("a.jpg"));
+        assertNotNull(mCache.edit("a.jpg"));
+    }
+
+    public void testEntriesSurviveReopen() throws Exception {
+        mCache = JournaledDiskCache.open(CACHE_DIR, 1024);
+        write(mCache, "a.jpg", 10);
+        write(mCache, "b.jpg", 20);
+        mCache.remove("a.jpg");
+        mCache.close();
+
+        mCache = JournaledDiskCache.open(CACHE_DIR, 1024);
+        assertNull(mCache.get("a.jpg"));
+        assertEquals(20, read(mCache, "b.jpg"));
+        assertEquals(20, mCache.size());
+    }
+
+    public void testInterruptedEditIsDiscarded() throws Exception {
+        mCache = JournaledDiskCache.open(CACHE_DIR, 1024);
+        final DiskCache.Editor editor = mCache.edit("a.jpg");
+        final OutputStream os = editor.newOutputStream();
+        os.write(new byte[10]);
+        os.close();
+
+        // Simulate the process dying mid-edit by opening a second instance on the same directory
+        final JournaledDiskCache reopened = JournaledDiskCache.open(CACHE_DIR, 1024);
+        try {
+            assertNull(reopened.get("a.jpg"));
+            assertEquals(0, reopened.size());
+            assertFalse(new File(CACHE_DIR, "a.jpg.tmp").exists());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    public void testInterruptedReplaceKeepsCleanEntry() throws Exception {
+        mCache = JournaledDiskCache.open(CACHE_DIR, 1024);
+        write(mCache, "a.jpg", 10);
+        final DiskCache.Editor editor = mCache.edit("a.jpg");
+        final OutputStream os = editor.newOutputStream();
+        os.write(new byte[20]);
+        os.close();
+
+        // The replacement dies with the process; the committed version is still good
+        final JournaledDiskCache reopened = JournaledDiskCache.open(CACHE_DIR, 1024);
+        try {
+            assertEquals(10, read(reopened, "a.jpg"));
+            assertEquals(10, reopened.size());
+            assertFalse(new File(CACHE_DIR, "a.jpg.tmp").exists());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        mCache = JournaledDiskCache.open(CACHE_DIR, 25);
+        write(mCache, "a.jpg", 10);
+        write(mCache, "b.jpg", 10);
+
+        // Touch a so b is the eldest
+        read(mCache, "a.jpg");
+        write(mCache, "c.jpg", 10);
+
+        // Eviction happens in the background
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (mCache.size() > 25 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(20, mCache.size());
+        assertNull(mCache.get("b.jpg"));
+        assertEquals(10, read(mCache, "a.jpg"));
+        assertEquals(10, read(mCache, "c.jpg"));
+    }
+
+    public void testAdoptsLegacyDirectory() throws Exception {
+        assertTrue(CACHE_DIR.mkdirs());
+        writeFile(new File(CACHE_DIR, "1234.jpg"), 10);
+        writeFile(new File(CACHE_DIR, "img123456tmp"), 10);
+
+        mCache = JournaledDiskCache.open(CACHE_DIR, 1024);
+
+        assertEquals(10, read(mCache, "1234.jpg"));
+        assertEquals(10, mCache.size());
+        assertFalse(new File(CACHE_DIR, "img123456tmp").exists());
+        assertTrue(new File(CACHE_DIR, JournaledDiskCache.JOURNAL_FILE).exists());
+    }
+
+    public void testAdoptsLargeLegacyDirectory() throws Exception {
+        // Enough files to be scanned by several threads
+        assertTrue(CACHE_DIR.mkdirs());
+        for (int i = 0; i < 1000; i++) {
+            writeFile(new File(CACHE_DIR, i + ".jpg"), 1);
+        }
+        writeFile(new File(CACHE_DIR, "Not A Key"), 1);
+
+        mCache = JournaledDiskCache.open(CACHE_DIR, 1024 * 1024);
+
+        assertEquals(1000, mCache.size());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(mCache.contains(i + ".jpg"));
+        }
+    }
+
+    private static void write(DiskCache cache, String key, int length) throws IOException {
+        final DiskCache.Editor editor = cache.edit(key);
+        final OutputStream os = editor.newOutputStream();
+        os.write(new byte[length]);
+        editor.commit();
+    }
+
+    private static int read(DiskCache cache, String key) throws IOException {
+        final DiskCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(snapshot);
+
+        try {
+            final InputStream is = snapshot.getInputStream();
+            int length = 0;
+            while (is.read() != -1) {
+                length++;
+            }
+
+            assertEquals(snapshot.getLength(), length);
+            return length;
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static void writeFile(File file, int length) throws IOException {
+        final FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(new byte[length]);
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.vinci.scheduler;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RequestSchedulerTest extends TestCase {
+    private RequestScheduler mScheduler;
+    private final List<String> mRun = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> mDropped = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch mStarted = new CountDownLatch(1);
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        mScheduler = new RequestScheduler("test", 1, 4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRelease.countDown();
+        mScheduler.shutdown();
+    }
+
+    public void testPriorityThenNewestFirst() throws Exception {
+        block();
+        mScheduler.schedule(new NamedJob("prefetch"), Priority.PREFETCH);
+        mScheduler.schedule(new NamedJob("visible-1"), Priority.VISIBLE);
+        mScheduler.schedule(new NamedJob("visible-2"), Priority.VISIBLE);
+        mScheduler.schedule(new NamedJob("precache"), Priority.PRECACHE);
+
+        drain();
+        assertEquals(Arrays.asList("visible-2", "visible-1", "precache", "prefetch"), mRun);
+    }
+
+    public void testHandOffsKeepTheirRequestOrder() throws Exception {
+        final long older = RequestScheduler.nextSequence();
+        final long newer = RequestScheduler.nextSequence();
+
+        // The older request finished the earlier stage last
+        final RequestScheduler.Task from = block();
+        mScheduler.handOff(new NamedJob("newer"), from, newer);
+        mScheduler.handOff(new NamedJob("older"), from, older);
+        mScheduler.schedule(new NamedJob("new"), Priority.VISIBLE);
+
+        drain();
+        assertEquals(Arrays.asList("new", "newer", "older"), mRun);
+    }
+
+    public void testFullQueueDropsOldestLeastUrgent() throws Exception {
+        block();
+        mScheduler.schedule(new NamedJob("prefetch-1"), Priority.PREFETCH);
+        mScheduler.schedule(new NamedJob("prefetch-2"), Priority.PREFETCH);
+        mScheduler.schedule(new NamedJob("visible-1"), Priority.VISIBLE);
+        mScheduler.schedule(new NamedJob("visible-2"), Priority.VISIBLE);
+
+        final RequestScheduler.Task task = mScheduler.schedule(new NamedJob("visible-3"), Priority.VISIBLE);
+        assertEquals(RequestScheduler.State.QUEUED, task.getState());
+        assertEquals(Arrays.asList("prefetch-1"), mDropped);
+        assertEquals(1, mScheduler.getDroppedCount());
+        assertEquals(4, mScheduler.getQueuedCount());
+    }
+
+    public void testFullQueueRejectsLessUrgentNewcomer() throws Exception {
+        block();
+        for (int i = 0; i < 4; i++) {
+            mScheduler.schedule(new NamedJob("visible-" + i), Priority.VISIBLE);
+        }
+
+        final RequestScheduler.Task task = mScheduler.schedule(new NamedJob("prefetch"), Priority.PREFETCH);
+        assertEquals(RequestScheduler.State.DROPPED, task.getState());
+        assertEquals(Arrays.asList("prefetch"), mDropped);
+        assertEquals(4, mScheduler.getQueuedCount(Priority.VISIBLE));
+    }
+
+    public void testExpiredJobsAreDroppedNotRun() throws Exception {
+        block();
+        final RequestScheduler.Task task = mScheduler.schedule(new NamedJob("stale"), Priority.PRECACHE, 1, TimeUnit.MILLISECONDS);
+        Thread.sleep(20);
+
+        drain();
+        assertEquals(RequestScheduler.State.EXPIRED, task.getState());
+        assertEquals(Arrays.asList("stale"), mDropped);
+        assertFalse(mRun.contains("stale"));
+        assertEquals(1, mScheduler.getExpiredCount());
+    }
+
+    public void testCancelQueued() throws Exception {
+        block();
+        final RequestScheduler.Task task = mScheduler.schedule(new NamedJob("cancelled"), Priority.VISIBLE);
+
+        assertTrue(task.cancel());
+        assertEquals(RequestScheduler.State.CANCELLED, task.getState());
+        assertEquals(Arrays.asList("cancelled"), mDropped);
+        assertEquals(0, mScheduler.getQueuedCount());
+
+        // Only once
+        assertFalse(task.cancel());
+        assertEquals(1, mScheduler.getCancelledCount());
+    }
+
+    public void testCancelRunning() throws Exception {
+        final RequestScheduler.Task task = block();
+
+        assertTrue(task.cancel());
+        assertTrue(task.isCancelled());
+        assertTrue(task.cancel());
+        assertEquals(1, mScheduler.getCancelledCount());
+
+        // Running jobs finish on their own terms and aren't told they were dropped
+        drain();
+        assertEquals(RequestScheduler.State.FINISHED, task.getState());
+        assertTrue(mDropped.isEmpty());
+    }
+
+    public void testPromotion() throws Exception {
+        block();
+        mScheduler.schedule(new NamedJob("visible"), Priority.VISIBLE);
+        final RequestScheduler.Task task = mScheduler.schedule(new NamedJob("prefetch"), Priority.PREFETCH);
+        mScheduler.schedule(new NamedJob("precache"), Priority.PRECACHE);
+
+        task.setPriority(Priority.VISIBLE);
+        assertEquals(Priority.VISIBLE, task.getPriority());
+
+        drain();
+        assertEquals(Arrays.asList("prefetch", "visible", "precache"), mRun);
+    }
+
+    public void testPromotionClearsDeadline() throws Exception {
+        block();
+        final RequestScheduler.Task task = mScheduler.schedule(new NamedJob("promoted"), Priority.PRECACHE, 1, TimeUnit.MILLISECONDS);
+        task.setPriority(Priority.VISIBLE);
+        Thread.sleep(20);
+
+        drain();
+        assertEquals(Arrays.asList("promoted"), mRun);
+    }
+
+    /**
+     * Occupies the only worker until {@link #drain()}.
+     */
+    private RequestScheduler.Task block() throws InterruptedException {
+        final RequestScheduler.Task task = mScheduler.schedule(new RequestScheduler.Job() {
+            @Override
+            public void run(RequestScheduler.Task task) {
+                mStarted.countDown();
+                try {
+                    mRelease.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onDropped(RequestScheduler.Task task) {
+            }
+        }, Priority.VISIBLE);
+
+        assertTrue(mStarted.await(5, TimeUnit.SECONDS));
+        return task;
+    }
+
+    /**
+     * Releases the worker and waits for everything queued so far to run: once the queue is empty
+     * a last job can only run after the worker finishes whatever it took last.
+     */
+    private void drain() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mRelease.countDown();
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (mScheduler.getQueuedCount() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        mScheduler.schedule(new RequestScheduler.Job() {
+            @Override
+            public void run(RequestScheduler.Task task) {
+                done.countDown();
+            }
+
+            @Override
+            public void onDropped(RequestScheduler.Task task) {
+                done.countDown();
+            }
+        }, Priority.VISIBLE);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private class NamedJob implements RequestScheduler.Job {
+        private final String mName;
+
+        private NamedJob(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void run(RequestScheduler.Task task) {
+            mRun.add(mName);
+        }
+
+        @Override
+        public void onDropped(RequestScheduler.Task task) {
+            mDropped.add(mName);
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -23,6 +24,9 @@ public class AbstractBlockingPoolTest extends TestCase {
     private static final int ASYNC_TASKS = 512;
     private static final int FACTORY_OVERFLOW_TIMEOUT = 1; // minutes
     private static final int MADNESS_TIMEOUT = 3; // minutes
+    private static final int CONTENTION_ITERATIONS = 200000;
+    private static final int CONTENTION_TIMEOUT = 2; // minutes
+    private static final int[] CONTENTION_THREADS = { 1, 2, 4, 8 };
 
     private AbstractBlockingPool<ResourceTest> mDefaultResourcePool;
     private ResourceFactoryTest mDefaultResourceFactory = new ResourceFactoryTest();
@@ -244,6 +248,155 @@ public class AbstractBlockingPoolTest extends TestCase {
         }
     }
 
+    /**
+     * Checks that a timed acquire gives up on an exhausted pool and records the wait.
+     * @throws Exception
+     */
+    public void testTryAcquireTimeout() throws Exception {
+        fillPool();
+
+        final long start = System.currentTimeMillis();
+        assertNull(mDefaultResourcePool.tryAcquire(100, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+
+        assertTrue(mDefaultResourcePool.getWaitCount() == 1);
+        assertTrue(mDefaultResourcePool.getTimeoutCount() == 1);
+        assertTrue(mDefaultResourcePool.getCreatedCount() == DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Checks that a release on another thread wakes up a timed acquire.
+     * @throws Exception
+     */
+    public void testTryAcquireHandoff() throws Exception {
+        final Set<ResourceTest> resources = fillPool();
+        final ResourceTest resource = resources.iterator().next();
+
+        final Thread releaseThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                mDefaultResourcePool.release(resource);
+            }
+        });
+        releaseThread.start();
+
+        assertTrue(mDefaultResourcePool.tryAcquire(10, TimeUnit.SECONDS) == resource);
+        assertTrue(mDefaultResourcePool.getTimeoutCount() == 0);
+        releaseThread.join();
+    }
+
+    /**
+     * Releasing the same resource twice must be rejected even when it sits in a thread magazine.
+     * @throws Exception
+     */
+    public void testDoubleRelease() throws Exception {
+        final ResourceTest resource = mDefaultResourcePool.acquire();
+        mDefaultResourcePool.release(resource);
+
+        try {
+            mDefaultResourcePool.release(resource);
+            fail("Pool allows for releasing a resource twice");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests that trimming lets go of idle resources only, and that they can be produced again.
+     * @throws Exception
+     */
+    public void testTrimIdle() throws Exception {
+        final ResourceTest held = mDefaultResourcePool.acquire();
+        final ResourceTest idle = mDefaultResourcePool.acquire();
+        mDefaultResourcePool.release(idle);
+
+        assertEquals(1, mDefaultResourcePool.trimIdle());
+        assertEquals(1, mDefaultResourcePool.getCreatedCount());
+
+        // The held resource is still the pool's
+        mDefaultResourcePool.release(held);
+        for (int i = 0; i < DEFAULT_POOL_SIZE; i++) {
+            mDefaultResourcePool.acquire();
+        }
+        assertEquals(DEFAULT_POOL_SIZE, mDefaultResourcePool.getCreatedCount());
+        assertEquals(DEFAULT_POOL_SIZE + 1, mDefaultResourceFactory.mCreated);
+    }
+
+    /**
+     * Hammers acquire/release from a growing number of contending threads, with a resource for
+     * each. The pool must never over-produce under load.
+     * @throws Exception
+     */
+    public void testContention() throws Exception {
+        for (int threads : CONTENTION_THREADS) {
+            final AbstractBlockingPool<ResourceTest> pool = new AbstractBlockingPool<ResourceTest>(threads) {
+                @Override
+                protected ResourceTest produce() {
+                    return new ResourceTest();
+                }
+            };
+            contend(pool, threads);
+
+            assertTrue(pool.getCreatedCount() <= threads);
+            assertTrue(pool.getUnavailable() == 0);
+        }
+    }
+
+    /**
+     * Hammers an oversubscribed pool, where threads regularly have to park and steal from each
+     * other's magazines.
+     * @throws Exception
+     */
+    public void testOversubscribed() throws Exception {
+        contend(mDefaultResourcePool, CONTENTION_THREADS[CONTENTION_THREADS.length - 1]);
+
+        assertTrue(mDefaultResourcePool.getCreatedCount() <= DEFAULT_POOL_SIZE);
+        assertTrue(mDefaultResourcePool.getCreatableAmount() >= 0);
+        assertTrue(mDefaultResourcePool.getUnavailable() == 0);
+    }
+
+    private void contend(final AbstractBlockingPool<ResourceTest> pool, int threads) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future> futures = new LinkedList<Future>();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        fail("Thread killed while contending");
+                    }
+
+                    for (int j = 0; j < CONTENTION_ITERATIONS; j++) {
+                        pool.release(pool.acquire());
+                    }
+                }
+            }));
+        }
+
+        startLatch.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(CONTENTION_TIMEOUT, TimeUnit.MINUTES));
+
+        // Handle unforeseen exceptions
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                fail(e.getMessage());
+            }
+        }
+    }
+
     private Set<ResourceTest> fillPool() throws InterruptedException {
         final Set<ResourceTest> resources = new HashSet<ResourceTest>();
         for (int i = 0; i < DEFAULT_POOL_SIZE; i++) {
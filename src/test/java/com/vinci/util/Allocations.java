@@ -0,0 +1,42 @@
+package com.vinci.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counts the bytes the current thread allocates, on VMs that report it.
+ */
+public final class Allocations {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private Allocations() {
+    }
+
+    public static boolean isSupported() {
+        return THREADS instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported();
+    }
+
+    /**
+     * Runs the work repeatedly to warm it up, then once more while counting.
+     *
+     * @return the bytes allocated by the counted run, less what counting itself costs
+     */
+    public static long measure(Runnable work, int warmups) {
+        for (int i = 0; i < warmups; i++) {
+            work.run();
+        }
+
+        final long overhead = allocated() - allocated();
+        final long before = allocated();
+        work.run();
+        final long after = allocated();
+
+        return Math.max(0, after - before + overhead);
+    }
+
+    private static long allocated() {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
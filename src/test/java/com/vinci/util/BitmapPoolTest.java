@@ -0,0 +1,188 @@
+package com.vinci.util;
+
+import android.graphics.Bitmap;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+public class BitmapPoolTest extends TestCase {
+    private static final int MAX_BYTES = 100 * 1000;
+
+    public void testSizeClasses() {
+        assertEquals(4096, BitmapPool.getSizeClass(1));
+        assertEquals(4096, BitmapPool.getSizeClass(4096));
+
+        // Four classes per power of two
+        assertEquals(40960, BitmapPool.getSizeClass(40000));
+        assertEquals(40960, BitmapPool.getSizeClass(40960));
+        assertEquals(49152, BitmapPool.getSizeClass(40961));
+        assertEquals(65536, BitmapPool.getSizeClass(65536));
+    }
+
+    public void testOnlyExactSizesBeforeKitKat() {
+        final FakeBitmapPool pool = new FakeBitmapPool(MAX_BYTES, false);
+        final Bitmap bitmap = pool.newBitmap(100, 100, Bitmap.Config.ARGB_8888, true);
+        pool.release(bitmap);
+
+        // Same bytes, different dimensions
+        assertNotSame(bitmap, pool.acquire(50, 200, Bitmap.Config.ARGB_8888));
+        assertNotSame(bitmap, pool.acquire(90, 90, Bitmap.Config.ARGB_8888));
+        assertSame(bitmap, pool.acquire(100, 100, Bitmap.Config.ARGB_8888));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+    }
+
+    public void testSmallestFittingBitmapIsReused() {
+        final FakeBitmapPool pool = new FakeBitmapPool(MAX_BYTES * 4, true);
+        final Bitmap large = pool.newBitmap(200, 200, Bitmap.Config.ARGB_8888, true);
+        final Bitmap small = pool.newBitmap(100, 100, Bitmap.Config.ARGB_8888, true);
+        pool.release(large);
+        pool.release(small);
+
+        assertSame(small, pool.acquire(90, 90, Bitmap.Config.ARGB_8888));
+        assertSame(large, pool.acquire(100, 100, Bitmap.Config.ARGB_8888));
+        assertEquals(0, pool.getBytes());
+    }
+
+    public void testFarLargerBitmapsAreNotReused() {
+        final FakeBitmapPool pool = new FakeBitmapPool(MAX_BYTES, true);
+        final Bitmap bitmap = pool.newBitmap(100, 100, Bitmap.Config.ARGB_8888, true);
+        pool.release(bitmap);
+
+        // More than four times the bytes asked for would waste the rest of the allocation
+        assertNotSame(bitmap, pool.acquire(40, 40, Bitmap.Config.ARGB_8888));
+        assertSame(bitmap, pool.acquire(60, 60, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testConfigsAreKeptApart() {
+        final FakeBitmapPool pool = new FakeBitmapPool(MAX_BYTES, true);
+        final Bitmap bitmap = pool.newBitmap(100, 100, Bitmap.Config.RGB_565, true);
+        pool.release(bitmap);
+
+        assertNotSame(bitmap, pool.acquire(100, 100, Bitmap.Config.ARGB_8888));
+        assertSame(bitmap, pool.acquire(100, 100, Bitmap.Config.RGB_565));
+    }
+
+    public void testBudgetEvictsLeastRecentlyReleased() {
+        final FakeBitmapPool pool = new FakeBitmapPool(MAX_BYTES, true);
+        final Bitmap first = pool.newBitmap(100, 100, Bitmap.Config.ARGB_8888, true);
+        final Bitmap second = pool.newBitmap(100, 100, Bitmap.Config.ARGB_8888, true);
+        final Bitmap third = pool.newBitmap(100, 100, Bitmap.Config.ARGB_8888, true);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+
+        assertEquals(80000, pool.getBytes());
+        assertEquals(1, pool.getEvictionCount());
+
+        final HashSet<Bitmap> reused = new HashSet<Bitmap>();
+        for (int i = 0; i < 3; i++) {
+            reused.add(pool.acquire(100, 100, Bitmap.Config.ARGB_8888));
+        }
+        assertTrue(reused.containsAll(Arrays.asList(second, third)));
+        assertFalse(reused.contains(first));
+    }
+
+    public void testTrimDropsOldestFirst() {
+        final FakeBitmapPool pool = new FakeBitmapPool(MAX_BYTES, true);
+        final Bitmap first = pool.newBitmap(100, 100, Bitmap.Config.ARGB_8888, true);
+        final Bitmap second = pool.newBitmap(100, 100, Bitmap.Config.ARGB_8888, true);
+        pool.release(first);
+        pool.release(second);
+
+        assertEquals(40000, pool.trimToSize(50000));
+        assertEquals(40000, pool.getBytes());
+        assertSame(second, pool.acquire(100, 100, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testUnusableBitmapsAreDropped() {
+        final FakeBitmapPool pool = new FakeBitmapPool(MAX_BYTES, true);
+
+        // Nothing can be decoded into an immutable bitmap
+        final Bitmap immutable = pool.newBitmap(100, 100, Bitmap.Config.ARGB_8888, false);
+        pool.release(immutable);
+        assertEquals(0, pool.getBytes());
+        assertNotSame(immutable, pool.acquire(100, 100, Bitmap.Config.ARGB_8888));
+
+        // Bigger than the whole budget
+        pool.release(pool.newBitmap(200, 200, Bitmap.Config.ARGB_8888, true));
+        assertEquals(0, pool.getBytes());
+        assertEquals(1, pool.getEvictionCount());
+
+        // Released twice, pooled once
+        final Bitmap twice = pool.newBitmap(100, 100, Bitmap.Config.ARGB_8888, true);
+        pool.release(twice);
+        pool.release(twice);
+        assertEquals(40000, pool.getBytes());
+
+        pool.release(null);
+        assertEquals(40000, pool.getBytes());
+    }
+
+    public void testAllocationIsWhatCounts() {
+        final FakeBitmapPool pool = new FakeBitmapPool(MAX_BYTES, true);
+        final Bitmap bitmap = pool.acquire(100, 100, Bitmap.Config.ARGB_8888);
+
+        // Decoded into at a smaller size, it still holds the bytes it was allocated with
+        pool.resize(bitmap, 50, 50);
+        pool.release(bitmap);
+        assertEquals(40000, pool.getBytes());
+        assertSame(bitmap, pool.acquire(100, 100, Bitmap.Config.ARGB_8888));
+    }
+
+    /**
+     * Keeps the attributes of bitmaps itself - off the device, bitmaps are bare stubs.
+     */
+    private static class FakeBitmapPool extends BitmapPool {
+        private final Map<Bitmap, FakeBitmap> mBitmaps = new IdentityHashMap<Bitmap, FakeBitmap>();
+
+        private FakeBitmapPool(long maxBytes, boolean reconfigurable) {
+            super(maxBytes, reconfigurable);
+        }
+
+        private Bitmap newBitmap(int width, int height, Bitmap.Config config, boolean mutable) {
+            final Bitmap bitmap = PooledDrawables.newBitmap();
+            mBitmaps.put(bitmap, new FakeBitmap(width, height, config, mutable));
+            return bitmap;
+        }
+
+        private void resize(Bitmap bitmap, int width, int height) {
+            final FakeBitmap fake = mBitmaps.get(bitmap);
+            fake.mWidth = width;
+            fake.mHeight = height;
+        }
+
+        @Override
+        /* package */ Bitmap createBitmap(int width, int height, Bitmap.Config config) {
+            return newBitmap(width, height, config, true);
+        }
+
+        @Override
+        /* package */ Entry describe(Bitmap bitmap, Integer allocation) {
+            final FakeBitmap fake = mBitmaps.get(bitmap);
+            if (!fake.mMutable) {
+                return null;
+            }
+
+            final int bytes = BitmapUtil.getByteCount(fake.mWidth, fake.mHeight, fake.mConfig);
+            return new Entry(bitmap, fake.mConfig, fake.mWidth, fake.mHeight, allocation != null ? allocation : bytes);
+        }
+    }
+
+    private static class FakeBitmap {
+        private int mWidth;
+        private int mHeight;
+        private final Bitmap.Config mConfig;
+        private final boolean mMutable;
+
+        private FakeBitmap(int width, int height, Bitmap.Config config, boolean mutable) {
+            mWidth = width;
+            mHeight = height;
+            mConfig = config;
+            mMutable = mutable;
+        }
+    }
+}
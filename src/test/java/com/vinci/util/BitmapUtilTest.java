@@ -0,0 +1,28 @@
+package com.vinci.util;
+
+import junit.framework.TestCase;
+
+public class BitmapUtilTest extends TestCase {
+    public void testSampleSizeStillCoversTarget() {
+        assertEquals(1, BitmapUtil.getSampleSize(100, 100, 100, 100));
+        assertEquals(1, BitmapUtil.getSampleSize(199, 199, 100, 100));
+        assertEquals(2, BitmapUtil.getSampleSize(200, 200, 100, 100));
+        assertEquals(8, BitmapUtil.getSampleSize(4000, 3000, 300, 300));
+
+        // The shorter side limits it
+        assertEquals(4, BitmapUtil.getSampleSize(4000, 400, 100, 100));
+    }
+
+    public void testSampleSizeNeverEnlarges() {
+        assertEquals(1, BitmapUtil.getSampleSize(50, 50, 100, 100));
+        assertEquals(1, BitmapUtil.getSampleSize(100, 100, 0, 0));
+    }
+
+    public void testCoverScale() {
+        assertEquals(0.5f, BitmapUtil.getCoverScale(200, 200, 100, 100), 0.0001f);
+
+        // Covers both sides, so the side that needs the least shrinking wins
+        assertEquals(0.5f, BitmapUtil.getCoverScale(400, 200, 100, 100), 0.0001f);
+        assertEquals(1f, BitmapUtil.getCoverScale(50, 50, 100, 100), 0.0001f);
+    }
+}
@@ -0,0 +1,62 @@
+package com.vinci.util;
+
+import junit.framework.TestCase;
+
+public class ByteArrayPoolTest extends TestCase {
+    public void testSizeClasses() {
+        assertEquals(4096, ByteArrayPool.getSizeClass(1));
+        assertEquals(4096, ByteArrayPool.getSizeClass(4096));
+        assertEquals(8192, ByteArrayPool.getSizeClass(4097));
+        assertEquals(1 << 20, ByteArrayPool.getSizeClass((1 << 20) - 1));
+    }
+
+    public void testReusesFittingArrays() {
+        final ByteArrayPool pool = new ByteArrayPool(1 << 20);
+
+        final byte[] array = pool.acquire(5000);
+        assertEquals(8192, array.length);
+        pool.release(array);
+        assertEquals(8192, pool.getBytes());
+
+        // Same size class
+        assertSame(array, pool.acquire(6000));
+        assertEquals(0, pool.getBytes());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+
+        // Foreign sizes aren't kept
+        pool.release(new byte[5000]);
+        assertEquals(0, pool.getBytes());
+    }
+
+    public void testBounded() {
+        final ByteArrayPool pool = new ByteArrayPool(8192);
+        pool.release(pool.acquire(4096));
+        pool.release(pool.acquire(8192));
+        assertEquals(4096, pool.getBytes());
+
+        assertEquals(4096, pool.trimToSize(0));
+        assertEquals(0, pool.getBytes());
+    }
+
+    public void testSteadyStateDoesNotAllocate() {
+        if (!Allocations.isSupported()) {
+            return;
+        }
+
+        final ByteArrayPool pool = new ByteArrayPool(1 << 20);
+        final long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    final byte[] small = pool.acquire(1000 + i);
+                    final byte[] large = pool.acquire(100000 + i);
+                    pool.release(large);
+                    pool.release(small);
+                }
+            }
+        }, 100);
+
+        assertEquals(0, allocated);
+    }
+}
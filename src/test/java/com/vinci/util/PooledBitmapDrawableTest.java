@@ -0,0 +1,61 @@
+package com.vinci.util;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import junit.framework.TestCase;
+import org.mockito.Mockito;
+
+public class PooledBitmapDrawableTest extends TestCase {
+    private BitmapPool mBitmapPool;
+    private Bitmap mBitmap;
+    private PooledBitmapDrawable mDrawable;
+
+    @Override
+    public void setUp() {
+        mBitmapPool = Mockito.mock(BitmapPool.class);
+        mBitmap = PooledDrawables.newBitmap();
+        mDrawable = PooledDrawables.newDrawable(mBitmap, mBitmapPool);
+    }
+
+    public void testLastReleaseReturnsBitmapToPool() {
+        assertTrue(mDrawable.acquire());
+        assertEquals(2, mDrawable.getReferenceCount());
+
+        mDrawable.release();
+        Mockito.verifyZeroInteractions(mBitmapPool);
+
+        mDrawable.release();
+        assertEquals(0, mDrawable.getReferenceCount());
+        Mockito.verify(mBitmapPool).release(mBitmap);
+    }
+
+    public void testReleasingTooOftenThrows() {
+        mDrawable.release();
+        try {
+            mDrawable.release();
+            fail("Released drawable released again");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // The bitmap only went back once
+        Mockito.verify(mBitmapPool).release(mBitmap);
+    }
+
+    public void testAcquireFailsAfterLastRelease() {
+        mDrawable.release();
+
+        assertFalse(mDrawable.acquire());
+        assertFalse(PooledBitmapDrawable.acquire(mDrawable));
+        assertEquals(0, mDrawable.getReferenceCount());
+    }
+
+    public void testOtherDrawablesAreNotCounted() {
+        final Drawable drawable = Mockito.mock(Drawable.class);
+
+        assertTrue(PooledBitmapDrawable.acquire(drawable));
+        PooledBitmapDrawable.release(drawable);
+        PooledBitmapDrawable.release(null);
+        Mockito.verifyZeroInteractions(drawable);
+    }
+}
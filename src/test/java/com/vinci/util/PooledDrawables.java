@@ -0,0 +1,44 @@
+package com.vinci.util;
+
+import android.graphics.Bitmap;
+import org.mockito.Mockito;
+import org.objenesis.ObjenesisStd;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds bitmaps and pooled drawables off the device, where their constructors are stubs. The
+ * bitmaps are bare instances that only work as identities.
+ */
+public final class PooledDrawables {
+    private static final ObjenesisStd OBJENESIS = new ObjenesisStd();
+
+    private PooledDrawables() {
+    }
+
+    public static Bitmap newBitmap() {
+        return (Bitmap) OBJENESIS.newInstance(Bitmap.class);
+    }
+
+    /**
+     * @return a drawable of the bitmap with its one initial reference, which releases to the pool
+     */
+    public static PooledBitmapDrawable newDrawable(Bitmap bitmap, BitmapPool bitmapPool) {
+        final PooledBitmapDrawable drawable = Mockito.mock(PooledBitmapDrawable.class, Mockito.CALLS_REAL_METHODS);
+        set(drawable, "mBitmap", bitmap);
+        set(drawable, "mBitmapPool", bitmapPool);
+        set(drawable, "mReferences", new AtomicInteger(1));
+        return drawable;
+    }
+
+    private static void set(PooledBitmapDrawable drawable, String name, Object value) {
+        try {
+            final Field field = PooledBitmapDrawable.class.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(drawable, value);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to set " + name, e);
+        }
+    }
+}
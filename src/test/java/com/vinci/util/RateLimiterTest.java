@@ -0,0 +1,30 @@
+package com.vinci.util;
+
+import junit.framework.TestCase;
+
+public class RateLimiterTest extends TestCase {
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    public void testCallersPayForThePreviousCaller() {
+        final RateLimiter limiter = new RateLimiter(1000);
+
+        assertEquals(0, limiter.reserve(500, 0));
+        assertEquals(SECOND / 2, limiter.reserve(500, 0));
+        assertEquals(SECOND / 2, limiter.reserve(1, SECOND / 2));
+    }
+
+    public void testIdleTimeDoesNotBurst() {
+        final RateLimiter limiter = new RateLimiter(1000);
+
+        assertEquals(0, limiter.reserve(1000, 0));
+        assertEquals(0, limiter.reserve(1000, 10 * SECOND));
+        assertEquals(SECOND, limiter.reserve(1, 10 * SECOND));
+    }
+
+    public void testUnlimited() {
+        final RateLimiter limiter = new RateLimiter(0);
+
+        assertEquals(0, limiter.reserve(Integer.MAX_VALUE, 0));
+        assertEquals(0, limiter.reserve(Integer.MAX_VALUE, 0));
+    }
+}